@@ -0,0 +1,272 @@
+package com.elliottsj.ftw.provider;
+
+import android.util.Log;
+
+import com.elliottsj.ftw.provider.model.SavedStop;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.misc.TransactionManager;
+
+import com.elliottsj.nextbus.domain.Agency;
+import com.elliottsj.nextbus.domain.Direction;
+import com.elliottsj.nextbus.domain.DirectionStop;
+import com.elliottsj.nextbus.domain.Route;
+import com.elliottsj.nextbus.domain.Stop;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+public class NextbusIngesterTest extends NextbusTestCase {
+
+    private static final String TAG = NextbusIngesterTest.class.getSimpleName();
+
+    // About the length of the longest TTC routes, e.g. 501 Queen
+    private static final int STOPS_PER_DIRECTION = 150;
+    private static final int BENCHMARK_RUNS = 5;
+
+    public void testStoresRouteConfig() throws Exception {
+        mData.storeRoutesWithConfigs(STOPS_PER_DIRECTION, "501");
+        NextbusSchema schema = mHelper.getSchema();
+
+        assertEquals(2, count(schema.directions, null));
+        assertEquals(2 * STOPS_PER_DIRECTION, count(schema.stops, null));
+        assertEquals(2 * STOPS_PER_DIRECTION, count(schema.directionStops, null));
+        assertEquals(2 * STOPS_PER_DIRECTION, count(StopGrid.TABLE, null));
+        assertEquals(2 * STOPS_PER_DIRECTION, count(SearchIndex.STOPS_TABLE, null));
+    }
+
+    public void testReingestKeepsIds() throws Exception {
+        List<Route> routes = mData.storeRoutesWithConfigs(STOPS_PER_DIRECTION, "501");
+        NextbusSchema schema = mHelper.getSchema();
+        long directionId = queryId(schema.directions, Direction.FIELD_ID, Direction.FIELD_TAG, "501_1");
+        long stopId = queryId(schema.stops, Stop.FIELD_ID, Stop.FIELD_TAG, "1200");
+
+        mData.storeRouteConfig(routes.get(0).getAgency(), routes.get(0));
+
+        assertEquals(directionId, queryId(schema.directions, Direction.FIELD_ID, Direction.FIELD_TAG, "501_1"));
+        assertEquals(stopId, queryId(schema.stops, Stop.FIELD_ID, Stop.FIELD_TAG, "1200"));
+        assertEquals(2 * STOPS_PER_DIRECTION, count(schema.stops, null));
+        assertEquals(2 * STOPS_PER_DIRECTION, count(schema.directionStops, null));
+    }
+
+    public void testReingestKeepsGeolocations() throws Exception {
+        List<Route> routes = mData.storeRoutesWithConfigs(STOPS_PER_DIRECTION, "501");
+        NextbusSchema schema = mHelper.getSchema();
+        assertEquals(2 * STOPS_PER_DIRECTION, count(schema.geolocations, null));
+
+        mData.storeRouteConfig(routes.get(0).getAgency(), routes.get(0));
+        mData.storeRouteConfig(routes.get(0).getAgency(), routes.get(0));
+
+        assertEquals(2 * STOPS_PER_DIRECTION, count(schema.geolocations, null));
+        assertEquals(0, count(schema.geolocations, String.format("%s NOT IN (SELECT %s FROM %s)",
+                                                                 schema.geolocationIdColumn,
+                                                                 schema.stopGeolocationColumn, schema.stops)));
+    }
+
+    public void testInvalidatesCachedObjectsOnceCommitted() throws Exception {
+        List<Route> routes = mData.storeRoutesWithConfigs(STOPS_PER_DIRECTION, "501");
+        NextbusSchema schema = mHelper.getSchema();
+        int stopId = (int) queryId(schema.stops, Stop.FIELD_ID, Stop.FIELD_TAG, "1200");
+        assertEquals("Queen St West At Stop 1200", mHelper.getStopsDao().queryForId(stopId).getTitle());
+        assertEquals(1, mHelper.getObjectCache().size(Stop.class));
+
+        mData.setStopTitle("King St West At");
+        mData.setRouteConfig("501", 2, STOPS_PER_DIRECTION, 1000);
+        mData.storeRouteConfig(routes.get(0).getAgency(), routes.get(0));
+
+        assertEquals(0, mHelper.getObjectCache().size(Stop.class));
+        assertEquals("King St West At Stop 1200", mHelper.getStopsDao().queryForId(stopId).getTitle());
+    }
+
+    public void testDeletesRoutesNoLongerListed() throws Exception {
+        List<Route> routes = mData.storeRoutesWithConfigs(10, "501", "504");
+        NextbusSchema schema = mHelper.getSchema();
+        long routeId = queryId(schema.routes, Route.FIELD_ID, Route.FIELD_TAG, "501");
+
+        mData.setRoutes("501");
+        mData.storeRoutes(routes.get(0).getAgency());
+
+        assertEquals(routeId, queryId(schema.routes, Route.FIELD_ID, Route.FIELD_TAG, "501"));
+        assertEquals(1, count(schema.routes, null));
+        assertEquals(1, count(SearchIndex.ROUTES_TABLE, null));
+        assertEquals(2, count(schema.directions, null));
+        assertEquals(20, count(schema.directionStops, null));
+        assertEquals(20, count(schema.stops, null));
+        assertEquals(20, count(StopGrid.TABLE, null));
+        assertEquals(20, count(SearchIndex.STOPS_TABLE, null));
+        assertEquals(20, count(schema.geolocations, null));
+    }
+
+    public void testForgetsConfigsOfRoutesNoLongerListed() throws Exception {
+        List<Route> routes = mData.storeRoutesWithConfigs(10, "501", "504");
+        String routeConfigKey = FetchLog.routeConfigKey(NextbusTestData.AGENCY_TAG, "504");
+        assertTrue(mHelper.getFetchLog().isStored(routeConfigKey));
+
+        mData.setRoutes("501");
+        mData.storeRoutes(routes.get(0).getAgency());
+
+        assertFalse(mHelper.getFetchLog().isStored(routeConfigKey));
+        assertEquals(0, count(FetchLog.TABLE, FetchLog.COLUMN_KEY + " = '" + routeConfigKey + "'"));
+        assertTrue(mHelper.getFetchLog().isStored(FetchLog.routeConfigKey(NextbusTestData.AGENCY_TAG, "501")));
+    }
+
+    public void testDeletesDirectionsNoLongerListed() throws Exception {
+        List<Route> routes = mData.storeRoutesWithConfigs(10, "501");
+        NextbusSchema schema = mHelper.getSchema();
+        long directionId = queryId(schema.directions, Direction.FIELD_ID, Direction.FIELD_TAG, "501_0");
+
+        mData.setRouteConfig("501", 1, 10, 1000);
+        mData.storeRouteConfig(routes.get(0).getAgency(), routes.get(0));
+
+        assertEquals(directionId, queryId(schema.directions, Direction.FIELD_ID, Direction.FIELD_TAG, "501_0"));
+        assertEquals(1, count(schema.directions, null));
+        assertEquals(10, count(schema.directionStops, null));
+        assertEquals(10, count(schema.stops, null));
+        assertEquals(10, count(StopGrid.TABLE, null));
+        assertEquals(10, count(SearchIndex.STOPS_TABLE, null));
+    }
+
+    public void testKeepsSavedStopsOfDirectionsNoLongerListed() throws Exception {
+        List<Route> routes = mData.storeRoutesWithConfigs(10, "501");
+        NextbusSchema schema = mHelper.getSchema();
+        long directionId = queryId(schema.directions, Direction.FIELD_ID, Direction.FIELD_TAG, "501_1");
+        saveStop("501_1", "1012");
+
+        mData.setRouteConfig("501", 1, 10, 1000);
+        mData.storeRouteConfig(routes.get(0).getAgency(), routes.get(0));
+
+        assertEquals(1, count(schema.savedStops, SavedStop.FIELD_DIRECTION_ID + " = " + directionId));
+        assertEquals(directionId, queryId(schema.directions, Direction.FIELD_ID, Direction.FIELD_TAG, "501_1"));
+        assertEquals(10, count(schema.directionStops, null));
+        // The stops of 501_0 and the saved stop
+        assertEquals(11, count(schema.stops, null));
+    }
+
+    public void testMovesSavedStopsToTheDirectionWhichReplacedTheirs() throws Exception {
+        List<Route> routes = mData.storeRoutesWithConfigs(10, "501");
+        NextbusSchema schema = mHelper.getSchema();
+        saveStop("501_0", "1002");
+        // Re-tag 501_0, so that the next route configuration replaces it with a new direction listing the same stops
+        mHelper.getWritableDatabase().execSQL(String.format("UPDATE %s SET %s = '501_0_detour' WHERE %s = '501_0'",
+                                                            schema.directions, Direction.FIELD_TAG,
+                                                            Direction.FIELD_TAG));
+
+        mData.storeRouteConfig(routes.get(0).getAgency(), routes.get(0));
+
+        long directionId = queryId(schema.directions, Direction.FIELD_ID, Direction.FIELD_TAG, "501_0");
+        assertEquals(1, count(schema.savedStops, SavedStop.FIELD_DIRECTION_ID + " = " + directionId));
+        assertEquals(0, count(schema.directions, Direction.FIELD_TAG + " = '501_0_detour'"));
+        assertEquals(2, count(schema.directions, null));
+    }
+
+    public void testKeepsRoutesWithSavedStops() throws Exception {
+        List<Route> routes = mData.storeRoutesWithConfigs(10, "501", "504");
+        NextbusSchema schema = mHelper.getSchema();
+        saveStop("504_0", "1021");
+
+        mData.setRoutes("501");
+        mData.storeRoutes(routes.get(0).getAgency());
+
+        assertEquals(2, count(schema.routes, null));
+        assertEquals(1, count(schema.savedStops, null));
+        // 501's directions, and the direction of 504 with the saved stop
+        assertEquals(3, count(schema.directions, null));
+        assertEquals(20, count(schema.directionStops, null));
+        assertEquals(21, count(schema.stops, null));
+    }
+
+    public void testReportsWhetherSavedStopsChanged() throws Exception {
+        List<Route> routes = mData.storeRoutesWithConfigs(10, "501");
+        Agency agency = routes.get(0).getAgency();
+        NextbusSchema schema = mHelper.getSchema();
+        saveStop("501_0", "1002");
+        NextbusIngester ingester = mData.getIngester();
+
+        assertFalse(ingester.ingest(agency, routes.get(0), mData.downloadDirections(routes.get(0))));
+        // Replacing the direction without saved stops leaves the saved stops as they were
+        mHelper.getWritableDatabase().execSQL(String.format("UPDATE %s SET %s = '501_1_detour' WHERE %s = '501_1'",
+                                                            schema.directions, Direction.FIELD_TAG,
+                                                            Direction.FIELD_TAG));
+        assertFalse(ingester.ingest(agency, routes.get(0), mData.downloadDirections(routes.get(0))));
+        assertFalse(ingester.ingestRoutes(agency, mData.getService().getRoutes(agency)));
+
+        mHelper.getWritableDatabase().execSQL(String.format("UPDATE %s SET %s = 'Renamed' WHERE %s = '1002'",
+                                                            schema.stops, Stop.FIELD_TITLE, Stop.FIELD_TAG));
+        assertTrue(ingester.ingest(agency, routes.get(0), mData.downloadDirections(routes.get(0))));
+    }
+
+    /**
+     * Compare storing a route configuration through the DAOs, as fetchDirections() did before NextbusIngester, with
+     * storing it through the ingester. Each run stores a different route of the same size into the same database;
+     * parsing is not timed.
+     */
+    public void testBenchmarkIngestAgainstDaoWrites() throws Exception {
+        String[] routeTags = new String[2 * BENCHMARK_RUNS];
+        for (int i = 0; i < routeTags.length; i++)
+            routeTags[i] = Integer.toString(500 + i);
+        mData.setRoutes(routeTags);
+        for (int i = 0; i < routeTags.length; i++)
+            mData.setRouteConfig(routeTags[i], 2, STOPS_PER_DIRECTION, 1000 + i * 2 * STOPS_PER_DIRECTION);
+        Agency agency = mData.storeAgency();
+        List<Route> routes = mData.storeRoutes(agency);
+
+        long daoNanos = 0;
+        long ingestNanos = 0;
+        for (int i = 0; i < routes.size(); i++) {
+            Route route = routes.get(i);
+            List<Direction> directions = mData.downloadDirections(route);
+            long start = System.nanoTime();
+            if (i % 2 == 0) {
+                storeWithDaos(agency, route, directions);
+                daoNanos += System.nanoTime() - start;
+            } else {
+                mData.getIngester().ingest(agency, route, directions);
+                ingestNanos += System.nanoTime() - start;
+            }
+        }
+
+        Log.i(TAG, String.format("Stored a route configuration of 2 x %d stops in %d ms through the DAOs and in %d ms" +
+                                 " through NextbusIngester (mean of %d runs each)",
+                                 STOPS_PER_DIRECTION, daoNanos / BENCHMARK_RUNS / 1000000,
+                                 ingestNanos / BENCHMARK_RUNS / 1000000, BENCHMARK_RUNS));
+        assertEquals(routes.size() * 2 * STOPS_PER_DIRECTION, count(mHelper.getSchema().directionStops, null));
+    }
+
+    /**
+     * Save a stop of a direction, as SavedStopWriter does.
+     */
+    private void saveStop(String directionTag, String stopTag) throws SQLException {
+        NextbusSchema schema = mHelper.getSchema();
+        mHelper.getWritableDatabase().execSQL(String.format(
+                "INSERT INTO %s (%s, %s, %s) VALUES (%d, %d, 0)",
+                schema.savedStops, SavedStop.FIELD_STOP_ID, SavedStop.FIELD_DIRECTION_ID, SavedStop.FIELD_POSITION,
+                queryId(schema.stops, Stop.FIELD_ID, Stop.FIELD_TAG, stopTag),
+                queryId(schema.directions, Direction.FIELD_ID, Direction.FIELD_TAG, directionTag)));
+    }
+
+    /**
+     * Store directions the way NextbusQueryHelper.fetchDirections() did before NextbusIngester.
+     */
+    private void storeWithDaos(final Agency agency, final Route route, final List<Direction> directions) throws Exception {
+        final Dao<Direction, Integer> directionsDao = mHelper.getDirectionsDao();
+        final Dao<Stop, Integer> stopsDao = mHelper.getStopsDao();
+        final Dao<DirectionStop, Integer> directionStopsDao = mHelper.getDirectionStopsDao();
+        TransactionManager.callInTransaction(mHelper.getConnectionSource(), new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (Direction direction : directions) {
+                    direction.setRoute(route);
+                    directionsDao.create(direction);
+                    for (Stop stop : direction.getStops()) {
+                        stop.setAgency(agency);
+                        stopsDao.createIfNotExists(stop);
+                        directionStopsDao.create(new DirectionStop(direction, stop));
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.elliottsj.ftw.provider;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.elliottsj.ftw.provider.model.SavedStop;
+
+import com.elliottsj.nextbus.domain.Direction;
+import com.elliottsj.nextbus.domain.Stop;
+
+public class NextbusMigrationsTest extends NextbusTestCase {
+
+    public void testVersion10MergesDuplicateStops() throws Exception {
+        mData.storeRoutesWithConfigs(3, "506");
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        NextbusSchema schema = mHelper.getSchema();
+        long stopId = queryId(schema.stops, Stop.FIELD_ID, Stop.FIELD_TAG, "1001");
+        long eastId = queryId(schema.directions, Direction.FIELD_ID, Direction.FIELD_TAG, "506_0");
+        long westId = queryId(schema.directions, Direction.FIELD_ID, Direction.FIELD_TAG, "506_1");
+
+        // Store stop 1001 a second time, as versions before 10 did, listed by both directions and saved
+        NextbusMigrations.dropIndex(db, schema.stops, schema.stopAgencyColumn, Stop.FIELD_TAG);
+        db.execSQL(String.format("INSERT INTO %1$s (%2$s, %3$s, %4$s, %5$s) SELECT %2$s, %3$s, %4$s, %5$s FROM %1$s" +
+                                 " WHERE %6$s = %7$d",
+                                 schema.stops, schema.stopAgencyColumn, Stop.FIELD_TAG, Stop.FIELD_TITLE,
+                                 schema.stopGeolocationColumn, Stop.FIELD_ID, stopId));
+        long duplicateId = DatabaseUtils.longForQuery(db, "SELECT last_insert_rowid()", null);
+        insertDirectionStop(db, schema, eastId, duplicateId);
+        insertDirectionStop(db, schema, westId, duplicateId);
+        db.execSQL(String.format("INSERT INTO %s (%s, %s) VALUES (%d, %d)",
+                                 schema.savedStops, SavedStop.FIELD_STOP_ID, SavedStop.FIELD_DIRECTION_ID,
+                                 duplicateId, westId));
+
+        db.beginTransaction();
+        try {
+            NextbusMigrations.migrate(db, schema, 9, 10);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        assertEquals(1, count(schema.stops, Stop.FIELD_TAG + " = '1001'"));
+        assertEquals(0, count(schema.directionStops, schema.directionStopStopColumn + " = " + duplicateId));
+        assertEquals(1, count(schema.directionStops, directionStop(schema, eastId, stopId)));
+        assertEquals(1, count(schema.directionStops, directionStop(schema, westId, stopId)));
+        assertEquals(1, count(schema.savedStops, SavedStop.FIELD_STOP_ID + " = " + stopId));
+        // The geolocation was shared with the kept stop, so it is kept too
+        assertEquals(1, count(schema.geolocations, String.format("%s IN (SELECT %s FROM %s WHERE %s = %d)",
+                                                                 schema.geolocationIdColumn, schema.stopGeolocationColumn,
+                                                                 schema.stops, Stop.FIELD_ID, stopId)));
+
+        try {
+            db.execSQL(String.format("INSERT INTO %1$s (%2$s, %3$s) SELECT %2$s, %3$s FROM %1$s WHERE %4$s = %5$d",
+                                     schema.stops, schema.stopAgencyColumn, Stop.FIELD_TAG, Stop.FIELD_ID, stopId));
+            fail("stops(agency, tag) is not unique");
+        } catch (SQLiteConstraintException expected) {
+            // The unique index rejects a second row for the same tag
+        }
+    }
+
+    public void testVersion11RemovesDuplicateSavedStops() throws Exception {
+        mData.storeRoutesWithConfigs(3, "506");
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        NextbusSchema schema = mHelper.getSchema();
+        long stopId = queryId(schema.stops, Stop.FIELD_ID, Stop.FIELD_TAG, "1004");
+        long westId = queryId(schema.directions, Direction.FIELD_ID, Direction.FIELD_TAG, "506_1");
+
+        // Save stop 1004 twice, as versions before 11 could
+        NextbusMigrations.dropIndex(db, schema.savedStops, SavedStop.FIELD_STOP_ID, SavedStop.FIELD_DIRECTION_ID);
+        for (int position = 0; position < 2; position++)
+            db.execSQL(String.format("INSERT INTO %s (%s, %s, %s) VALUES (%d, %d, %d)",
+                                     schema.savedStops, SavedStop.FIELD_STOP_ID, SavedStop.FIELD_DIRECTION_ID,
+                                     SavedStop.FIELD_POSITION, stopId, westId, position));
+
+        db.beginTransaction();
+        try {
+            NextbusMigrations.migrate(db, schema, 10, 11);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        assertEquals(1, count(schema.savedStops, null));
+        assertEquals(1, count(schema.savedStops, SavedStop.FIELD_POSITION + " = 0"));
+        try {
+            db.execSQL(String.format("INSERT INTO %s (%s, %s) VALUES (%d, %d)",
+                                     schema.savedStops, SavedStop.FIELD_STOP_ID, SavedStop.FIELD_DIRECTION_ID,
+                                     stopId, westId));
+            fail("saved_stops(stop_id, direction_id) is not unique");
+        } catch (SQLiteConstraintException expected) {
+            // The unique index rejects saving the stop again
+        }
+    }
+
+    public void testVersion12DeletesOrphanedGeolocations() throws Exception {
+        mData.storeRoutesWithConfigs(3, "506");
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        NextbusSchema schema = mHelper.getSchema();
+
+        // Leave a geolocation which no stop refers to, as rewriting a stop did before version 12
+        db.execSQL(String.format("INSERT INTO %s (%s, %s) VALUES (43.65, -79.38)",
+                                 schema.geolocations, schema.geolocationLatitudeColumn,
+                                 schema.geolocationLongitudeColumn));
+        assertEquals(7, count(schema.geolocations, null));
+
+        db.beginTransaction();
+        try {
+            NextbusMigrations.migrate(db, schema, 11, 12);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        assertEquals(6, count(schema.geolocations, null));
+    }
+
+    private static String directionStop(NextbusSchema schema, long directionId, long stopId) {
+        return String.format("%s = %d AND %s = %d", schema.directionStopDirectionColumn, directionId,
+                             schema.directionStopStopColumn, stopId);
+    }
+
+    private static void insertDirectionStop(SQLiteDatabase db, NextbusSchema schema, long directionId, long stopId) {
+        db.execSQL(String.format("INSERT INTO %s (%s, %s) VALUES (%d, %d)",
+                                 schema.directionStops, schema.directionStopDirectionColumn,
+                                 schema.directionStopStopColumn, directionId, stopId));
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.elliottsj.ftw.provider;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.elliottsj.nextbus.domain.Direction;
+import com.elliottsj.nextbus.domain.Route;
+import com.elliottsj.nextbus.domain.Stop;
+
+public class NextbusQueryBuilderFactoryTest extends NextbusTestCase {
+
+    private static final String TAG = NextbusQueryBuilderFactoryTest.class.getSimpleName();
+
+    private static final int BENCHMARK_LOOKUPS = 2000;
+
+    public void testLookupsBelongToTheirHelper() throws Exception {
+        mData.storeRoutesWithConfigs(1, "501");
+        new NextbusQueryBuilderFactory(mHelper).queryRoute(NextbusTestData.AGENCY_TAG, "501");
+        assertFalse(mHelper.getLookups().isEmpty());
+
+        NextbusSQLiteHelper otherHelper = new NextbusSQLiteHelper(mTestContext);
+        try {
+            assertTrue(otherHelper.getLookups().isEmpty());
+            Route route = new NextbusQueryBuilderFactory(otherHelper).queryRoute(NextbusTestData.AGENCY_TAG, "501");
+            assertEquals("501", route.getTag());
+        } finally {
+            otherHelper.close();
+        }
+
+        mHelper.close();
+        assertTrue(mHelper.getLookups().isEmpty());
+        Route route = new NextbusQueryBuilderFactory(mHelper).queryRoute(NextbusTestData.AGENCY_TAG, "501");
+        assertEquals("501", route.getTag());
+    }
+
+    public void testListsStopsAndDirectionsThroughPreparedLookups() throws Exception {
+        mData.storeRoutesWithConfigs(5, "501", "504");
+        NextbusQueryBuilderFactory factory = new NextbusQueryBuilderFactory(mHelper);
+
+        assertEquals(5, factory.queryStops(NextbusTestData.AGENCY_TAG, "501", "501_1").size());
+        assertEquals(5, factory.queryStops(NextbusTestData.AGENCY_TAG, "504", "504_0").size());
+        assertEquals(10, factory.queryStops(NextbusTestData.AGENCY_TAG, "501", null).size());
+
+        String[] projection = { Stop.FIELD_ID, Stop.FIELD_TAG };
+        Cursor cursor = factory.queryStopsCursor(NextbusTestData.AGENCY_TAG, "504", "504_1", projection,
+                                                 Stop.FIELD_TAG);
+        try {
+            assertEquals(5, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals("1015", cursor.getString(cursor.getColumnIndexOrThrow(Stop.FIELD_TAG)));
+        } finally {
+            cursor.close();
+        }
+        cursor = factory.queryDirectionsCursor(NextbusTestData.AGENCY_TAG, "501", null, Direction.FIELD_TITLE);
+        try {
+            assertEquals(2, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+
+        // Running the same shapes again compiles nothing new
+        int lookups = mHelper.getLookups().size();
+        factory.queryStops(NextbusTestData.AGENCY_TAG, "504", null);
+        factory.queryStopsCursor(NextbusTestData.AGENCY_TAG, "501", "501_0", projection, Stop.FIELD_TAG).close();
+        factory.queryDirectionsCursor(NextbusTestData.AGENCY_TAG, "504", null, Direction.FIELD_TITLE).close();
+        assertEquals(lookups, mHelper.getLookups().size());
+    }
+
+    /**
+     * Compare looking up a route through a query built and prepared for each lookup, as NextbusQueryHelper did
+     * before the prepared lookups, with looking it up through the prepared lookup.
+     */
+    public void testBenchmarkPreparedLookups() throws Exception {
+        mData.storeRoutesWithConfigs(1, "501", "504", "505");
+        String[] routeTags = { "501", "504", "505" };
+        NextbusQueryBuilderFactory factory = new NextbusQueryBuilderFactory(mHelper);
+
+        // Warm up both paths so that the lookup is compiled and the routes are in the object cache
+        for (String routeTag : routeTags) {
+            factory.routesQb(NextbusTestData.AGENCY_TAG, routeTag).queryForFirst();
+            factory.queryRoute(NextbusTestData.AGENCY_TAG, routeTag);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_LOOKUPS; i++) {
+            String routeTag = routeTags[i % routeTags.length];
+            assertEquals(routeTag, factory.routesQb(NextbusTestData.AGENCY_TAG, routeTag).queryForFirst().getTag());
+        }
+        long builtNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_LOOKUPS; i++) {
+            String routeTag = routeTags[i % routeTags.length];
+            assertEquals(routeTag, factory.queryRoute(NextbusTestData.AGENCY_TAG, routeTag).getTag());
+        }
+        long preparedNanos = System.nanoTime() - start;
+
+        Log.i(TAG, String.format("Looked up %d routes in %d ms through built queries and in %d ms through the" +
+                                 " prepared lookup", BENCHMARK_LOOKUPS, builtNanos / 1000000,
+                                 preparedNanos / 1000000));
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.elliottsj.ftw.provider;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Runs each test against a new, empty nextbus.db, renamed so that the app's own database is left alone.
+ */
+public abstract class NextbusTestCase extends AndroidTestCase {
+
+    protected Context mTestContext;
+    protected NextbusSQLiteHelper mHelper;
+    protected NextbusTestData mData;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestContext = new RenamingDelegatingContext(getContext(), "test.");
+        mTestContext.deleteDatabase(NextbusSQLiteHelper.DATABASE_NAME);
+        mHelper = new NextbusSQLiteHelper(mTestContext);
+        mData = new NextbusTestData(mHelper);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        mTestContext.deleteDatabase(NextbusSQLiteHelper.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    /**
+     * @return the id of the row of a table with the given tag
+     */
+    protected long queryId(String table, String idColumn, String tagColumn, String tag) {
+        return DatabaseUtils.longForQuery(mHelper.getReadableDatabase(),
+                                          String.format("SELECT %s FROM %s WHERE %s = ?", idColumn, table, tagColumn),
+                                          new String[] { tag });
+    }
+
+    /**
+     * @return the number of rows of a table matching a selection, or of every row if selection is null
+     */
+    protected long count(String table, String selection) {
+        return DatabaseUtils.queryNumEntries(mHelper.getReadableDatabase(), table, selection);
+    }
+
+}
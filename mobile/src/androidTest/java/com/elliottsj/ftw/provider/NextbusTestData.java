@@ -0,0 +1,193 @@
+package com.elliottsj.ftw.provider;
+
+import android.net.Uri;
+
+import com.elliottsj.nextbus.domain.Agency;
+import com.elliottsj.nextbus.domain.Direction;
+import com.elliottsj.nextbus.domain.Route;
+import com.elliottsj.nextbus.impl.NextbusService;
+import com.elliottsj.nextbus.impl.RPCImpl;
+import com.elliottsj.nextbus.impl.RPCRequest;
+import com.elliottsj.nextbus.service.ServiceException;
+import com.elliottsj.nextbus.service.TransientServiceException;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Serves generated NextBus XML feeds instead of the network, and stores them through the same parser and
+ * ingester as the app.
+ *
+ * Route configurations are generated in the routeConfig format: each direction of a route has its own run of
+ * numeric stop tags, laid out along a line through downtown Toronto.
+ */
+class NextbusTestData {
+
+    static final String AGENCY_TAG = "ttc";
+
+    private final NextbusSQLiteHelper mHelper;
+    private final FeedRpc mRpc = new FeedRpc();
+    private final NextbusService mService = new NextbusService(mRpc);
+    private final NextbusIngester mIngester;
+    private String mStopTitle = "Queen St West At";
+
+    NextbusTestData(NextbusSQLiteHelper helper) {
+        mHelper = helper;
+        mIngester = new NextbusIngester(helper);
+    }
+
+    NextbusService getService() {
+        return mService;
+    }
+
+    NextbusIngester getIngester() {
+        return mIngester;
+    }
+
+    /**
+     * @return number of feeds served
+     */
+    int getCallCount() {
+        return mRpc.mCalls;
+    }
+
+    /**
+     * @param stopTitle title of stops in route configurations set later, followed by the stop tag
+     */
+    void setStopTitle(String stopTitle) {
+        mStopTitle = stopTitle;
+    }
+
+    /**
+     * Serve a routeList feed with the given routes.
+     */
+    void setRoutes(String... routeTags) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<body copyright=\"Test\">\n");
+        for (String routeTag : routeTags)
+            xml.append(String.format("<route tag=\"%s\" title=\"%s-Route %s\"/>\n", routeTag, routeTag, routeTag));
+        mRpc.mRouteList = xml.append("</body>\n").toString();
+    }
+
+    /**
+     * Serve a routeConfig feed for a route.
+     *
+     * @param routeTag the route
+     * @param directions number of directions, tagged routeTag_0, routeTag_1, ...
+     * @param stopsPerDirection number of stops in each direction
+     * @param firstStopTag tag of the first stop of the first direction; later stops count up from it
+     */
+    void setRouteConfig(String routeTag, int directions, int stopsPerDirection, int firstStopTag) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<body copyright=\"Test\">\n");
+        xml.append(String.format("<route tag=\"%s\" title=\"%s-Route %s\" color=\"ff0000\" oppositeColor=\"ffffff\"" +
+                                 " latMin=\"43.6\" latMax=\"43.8\" lonMin=\"-79.5\" lonMax=\"-79.3\">\n",
+                                 routeTag, routeTag, routeTag));
+        int stopCount = directions * stopsPerDirection;
+        for (int i = 0; i < stopCount; i++) {
+            int stopTag = firstStopTag + i;
+            xml.append(String.format(Locale.US, "<stop tag=\"%d\" title=\"%s Stop %d\" lat=\"%.6f\"" +
+                                     " lon=\"%.6f\" stopId=\"%d\"/>\n",
+                                     stopTag, mStopTitle, stopTag, 43.6 + 0.2 * i / stopCount, -79.5 + 0.2 * i / stopCount,
+                                     stopTag));
+        }
+        for (int d = 0; d < directions; d++) {
+            xml.append(String.format("<direction tag=\"%s_%d\" title=\"Direction %d\" name=\"%s\" useForUI=\"true\">\n",
+                                     routeTag, d, d, d % 2 == 0 ? "East" : "West"));
+            for (int i = 0; i < stopsPerDirection; i++)
+                xml.append(String.format("<stop tag=\"%d\"/>\n", firstStopTag + d * stopsPerDirection + i));
+            xml.append("</direction>\n");
+        }
+        xml.append("</route>\n</body>\n");
+        mRpc.mRouteConfigs.put(routeTag, xml.toString());
+    }
+
+    /**
+     * Store the agency, as NextbusQueryHelper.fetchAgencies() does.
+     */
+    Agency storeAgency() throws SQLException {
+        Agency agency = mService.getAgencies().get(0);
+        mHelper.getAgenciesDao().create(agency);
+        return agency;
+    }
+
+    /**
+     * Store the routes served by the routeList feed.
+     */
+    List<Route> storeRoutes(Agency agency) throws SQLException {
+        List<Route> routes = mService.getRoutes(agency);
+        mIngester.ingestRoutes(agency, routes);
+        return routes;
+    }
+
+    /**
+     * @return the directions of a route, with their stops, parsed from its routeConfig feed
+     */
+    List<Direction> downloadDirections(Route route) {
+        return mService.getRouteConfiguration(route).getDirections();
+    }
+
+    /**
+     * Store the directions and stops served by a route's routeConfig feed.
+     */
+    List<Direction> storeRouteConfig(Agency agency, Route route) throws SQLException {
+        List<Direction> directions = downloadDirections(route);
+        mIngester.ingest(agency, route, directions);
+        return directions;
+    }
+
+    /**
+     * Store the agency, the given routes, and each route's configuration with 2 directions of stopsPerDirection
+     * stops. Stop tags of different routes do not overlap.
+     *
+     * @return the stored routes
+     */
+    List<Route> storeRoutesWithConfigs(int stopsPerDirection, String... routeTags) throws SQLException {
+        setRoutes(routeTags);
+        for (int i = 0; i < routeTags.length; i++)
+            setRouteConfig(routeTags[i], 2, stopsPerDirection, 1000 + i * 2 * stopsPerDirection);
+        Agency agency = storeAgency();
+        List<Route> routes = storeRoutes(agency);
+        for (Route route : routes)
+            storeRouteConfig(agency, route);
+        return routes;
+    }
+
+    /**
+     * Answers agencyList, routeList and routeConfig requests with the feeds set on the enclosing instance.
+     */
+    private static class FeedRpc implements RPCImpl {
+
+        String mRouteList = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<body copyright=\"Test\">\n</body>\n";
+        final Map<String, String> mRouteConfigs = new HashMap<String, String>();
+        int mCalls;
+
+        @Override
+        public String call(RPCRequest request) throws ServiceException {
+            mCalls++;
+            Uri uri = Uri.parse(request.getFullHttpRequest());
+            String command = uri.getQueryParameter("command");
+            if ("agencyList".equals(command)) {
+                return "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<body copyright=\"Test\">\n" +
+                       "<agency tag=\"" + AGENCY_TAG + "\" title=\"Toronto Transit Commission\"" +
+                       " shortTitle=\"Toronto TTC\" regionTitle=\"Ontario\"/>\n</body>\n";
+            } else if ("routeList".equals(command)) {
+                return mRouteList;
+            } else if ("routeConfig".equals(command)) {
+                String routeConfig = mRouteConfigs.get(uri.getQueryParameter("r"));
+                if (routeConfig != null)
+                    return routeConfig;
+            }
+            throw new TransientServiceException("No feed for " + uri);
+        }
+
+        @Override
+        public void activate() { }
+
+        @Override
+        public void passivate() { }
+
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.elliottsj.ftw.provider;
+
+import android.database.Cursor;
+import android.os.Debug;
+import android.util.Log;
+
+import com.j256.ormlite.dao.CloseableIterator;
+
+import com.elliottsj.nextbus.domain.Agency;
+import com.elliottsj.nextbus.domain.Stop;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class OrmUtilTest extends NextbusTestCase {
+
+    private static final String TAG = OrmUtilTest.class.getSimpleName();
+
+    // About the number of stops of the largest agencies
+    private static final int BENCHMARK_STOPS = 5000;
+    private static final long BENCHMARK_PAGE_SIZE = 100;
+
+    public void testClosingCursorClosesIterator() throws Exception {
+        mData.storeRoutesWithConfigs(5, "501");
+        CloseableIterator<Stop> iterator = mHelper.getStopsDao().iterator();
+        Cursor cursor = OrmUtil.cursorFromIterator(iterator);
+        assertEquals(10, cursor.getCount());
+        assertTrue(iterator.hasNext());
+
+        cursor.close();
+
+        assertTrue(cursor.isClosed());
+        // A closed OrmLite iterator has released its statement and never has a next row
+        assertFalse(iterator.hasNext());
+    }
+
+    public void testPagesCoverEveryRowOnce() throws Exception {
+        mData.storeRoutesWithConfigs(50, "501", "504");
+
+        List<Long> ids = new ArrayList<Long>();
+        int pages = 0;
+        Long after = null;
+        while (true) {
+            Cursor cursor = OrmUtil.pagedCursorFromQueryBuilder(mHelper.getStopsDao().queryBuilder(), Stop.FIELD_ID,
+                                                                after, 30L, new String[] { Stop.FIELD_TAG },
+                                                                null, null);
+            try {
+                if (!cursor.moveToFirst())
+                    break;
+                assertTrue(cursor.getCount() <= 30);
+                pages++;
+                do {
+                    long id = cursor.getLong(cursor.getColumnIndexOrThrow(Stop.FIELD_ID));
+                    if (!ids.isEmpty())
+                        assertTrue("Rows must be ordered by id", id > ids.get(ids.size() - 1));
+                    ids.add(id);
+                } while (cursor.moveToNext());
+                after = ids.get(ids.size() - 1);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        assertEquals(7, pages);
+        assertEquals(200, ids.size());
+        assertEquals(200, count(mHelper.getSchema().stops, null));
+    }
+
+    public void testPageAppliesSelection() throws Exception {
+        mData.storeRoutesWithConfigs(50, "501");
+
+        Cursor cursor = OrmUtil.pagedCursorFromQueryBuilder(mHelper.getStopsDao().queryBuilder(), Stop.FIELD_ID,
+                                                            null, 10L, null, Stop.FIELD_TAG + " >= ?",
+                                                            new String[] { "1095" });
+        try {
+            assertEquals(5, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Compare scrolling a 5,000-stop list through a single cursor with scrolling it a page at a time. Reports the
+     * time to the first row, the time to reach the last row and the native heap held by the open cursor.
+     */
+    public void testBenchmarkPagedScroll() throws Exception {
+        mData.setRoutes("501");
+        mData.setRouteConfig("501", 2, BENCHMARK_STOPS / 2, 1000);
+        Agency agency = mData.storeAgency();
+        mData.storeRouteConfig(agency, mData.storeRoutes(agency).get(0));
+        String[] projection = { Stop.FIELD_ID, Stop.FIELD_TAG, Stop.FIELD_TITLE };
+
+        long heapBefore = Debug.getNativeHeapAllocatedSize();
+        long start = System.nanoTime();
+        Cursor cursor = OrmUtil.cursorFromQueryBuilder(mHelper.getStopsDao().queryBuilder(), projection, null, null,
+                                                       Stop.FIELD_ID);
+        int rows = 0;
+        long fullFirstRowNanos = 0;
+        long fullHeap;
+        try {
+            while (cursor.moveToNext()) {
+                if (rows++ == 0)
+                    fullFirstRowNanos = System.nanoTime() - start;
+                cursor.getString(1);
+            }
+            fullHeap = Debug.getNativeHeapAllocatedSize() - heapBefore;
+        } finally {
+            cursor.close();
+        }
+        long fullNanos = System.nanoTime() - start;
+        assertEquals(BENCHMARK_STOPS, rows);
+
+        heapBefore = Debug.getNativeHeapAllocatedSize();
+        start = System.nanoTime();
+        long pagedFirstRowNanos = 0;
+        long pagedHeap = 0;
+        rows = 0;
+        Long after = null;
+        while (true) {
+            cursor = OrmUtil.pagedCursorFromQueryBuilder(mHelper.getStopsDao().queryBuilder(), Stop.FIELD_ID, after,
+                                                         BENCHMARK_PAGE_SIZE, projection, null, null);
+            try {
+                if (!cursor.moveToFirst())
+                    break;
+                do {
+                    if (rows++ == 0)
+                        pagedFirstRowNanos = System.nanoTime() - start;
+                    cursor.getString(1);
+                    after = cursor.getLong(0);
+                } while (cursor.moveToNext());
+                pagedHeap = Math.max(pagedHeap, Debug.getNativeHeapAllocatedSize() - heapBefore);
+            } finally {
+                cursor.close();
+            }
+        }
+        long pagedNanos = System.nanoTime() - start;
+        assertEquals(BENCHMARK_STOPS, rows);
+
+        Log.i(TAG, String.format("Scrolled %d stops: single cursor first row %d ms, last row %d ms, native heap" +
+                                 " +%d KB; pages of %d first row %d ms, last row %d ms, native heap +%d KB",
+                                 BENCHMARK_STOPS, fullFirstRowNanos / 1000000, fullNanos / 1000000, fullHeap / 1024,
+                                 BENCHMARK_PAGE_SIZE, pagedFirstRowNanos / 1000000, pagedNanos / 1000000,
+                                 pagedHeap / 1024));
+    }
+
+}
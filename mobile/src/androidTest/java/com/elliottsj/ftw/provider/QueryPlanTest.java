@@ -0,0 +1,93 @@
+package com.elliottsj.ftw.provider;
+
+import android.database.Cursor;
+
+import com.j256.ormlite.stmt.QueryBuilder;
+
+import com.elliottsj.nextbus.domain.Agency;
+import com.elliottsj.nextbus.domain.Direction;
+import com.elliottsj.nextbus.domain.Route;
+import com.elliottsj.nextbus.domain.Stop;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that tag lookups are answered through the indexes added by the version 4
+ * migration rather than by scanning tables.
+ */
+public class QueryPlanTest extends NextbusTestCase {
+
+    private NextbusQueryBuilderFactory mQbFactory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mData.storeRoutesWithConfigs(10, "506", "504");
+        mQbFactory = new NextbusQueryBuilderFactory(mHelper);
+    }
+
+    public void testTagLookupsUseIndexes() throws Exception {
+        NextbusSchema schema = mHelper.getSchema();
+        assertUsesIndex(NextbusMigrations.indexName(schema.agencies, Agency.FIELD_TAG),
+                        String.format("SELECT %s FROM %s WHERE %s = 'ttc'",
+                                      Agency.FIELD_ID, schema.agencies, Agency.FIELD_TAG));
+        assertUsesIndex(NextbusMigrations.indexName(schema.routes, schema.routeAgencyColumn, Route.FIELD_TAG),
+                        String.format("SELECT %s FROM %s WHERE %s = 1 AND %s = '506'",
+                                      Route.FIELD_ID, schema.routes, schema.routeAgencyColumn, Route.FIELD_TAG));
+        assertUsesIndex(NextbusMigrations.indexName(schema.directions, schema.directionRouteColumn, Direction.FIELD_TAG),
+                        String.format("SELECT %s FROM %s WHERE %s = 1 AND %s = '506_0'",
+                                      Direction.FIELD_ID, schema.directions, schema.directionRouteColumn,
+                                      Direction.FIELD_TAG));
+        assertUsesIndex(NextbusMigrations.indexName(schema.stops, schema.stopAgencyColumn, Stop.FIELD_TAG),
+                        String.format("SELECT %s FROM %s WHERE %s = 1 AND %s = '1001'",
+                                      Stop.FIELD_ID, schema.stops, schema.stopAgencyColumn, Stop.FIELD_TAG));
+        assertUsesIndex(NextbusMigrations.indexName(schema.directionStops, schema.directionStopDirectionColumn,
+                                                    schema.directionStopStopColumn),
+                        String.format("SELECT %s FROM %s WHERE %s = 1",
+                                      schema.directionStopStopColumn, schema.directionStops,
+                                      schema.directionStopDirectionColumn));
+    }
+
+    public void testJoinedQueriesDoNotScanTables() throws Exception {
+        assertNoTableScan(mQbFactory.agenciesQb("ttc"));
+        assertNoTableScan(mQbFactory.routesQb("ttc"));
+        assertNoTableScan(mQbFactory.routesQb("ttc", "506"));
+        assertNoTableScan(mQbFactory.directionsQb("ttc", "506"));
+        assertNoTableScan(mQbFactory.directionsQb("ttc", "506", "506_0"));
+        assertNoTableScan(mQbFactory.stopsQb("ttc", "506", "506_0"));
+        assertNoTableScan(mQbFactory.stopsQb("ttc", "506", "506_0", "1001"));
+    }
+
+    private void assertUsesIndex(String index, String sql) {
+        for (String step : explain(sql)) {
+            if (step.contains(index))
+                return;
+        }
+        fail(sql + " does not use " + index + ": " + explain(sql));
+    }
+
+    private void assertNoTableScan(QueryBuilder<?, Integer> queryBuilder) throws Exception {
+        String sql = queryBuilder.prepareStatementString();
+        for (String step : explain(sql))
+            assertFalse(sql + " scans a table: " + step, step.startsWith("SCAN") && !step.contains("INDEX"));
+    }
+
+    /**
+     * @return the detail column of each step of the query plan, e.g.
+     *         "SEARCH TABLE routes USING INDEX routes_agency_tag_idx (agency=? AND tag=?)"
+     */
+    private List<String> explain(String sql) {
+        List<String> steps = new ArrayList<String>();
+        Cursor cursor = mHelper.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext())
+                steps.add(cursor.getString(detailIndex));
+        } finally {
+            cursor.close();
+        }
+        return steps;
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.elliottsj.ftw.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.elliottsj.ftw.provider.NextbusProvider.SAVED_STOPS;
+
+import java.sql.SQLException;
+
+public class SavedStopsTest extends NextbusTestCase {
+
+    public void testJoinsSavedStopsWithTheirStopAgencyDirectionAndRoute() throws Exception {
+        mData.storeRoutesWithConfigs(5, "506", "504");
+        assertEquals(2, saveStops(savedStop("506", "506_0", "1001"), savedStop("504", "504_1", "1017")));
+
+        Cursor cursor = querySavedStops(NextbusProvider.SAVED_STOPS_CURSOR_COLUMNS);
+        try {
+            assertEquals(2, cursor.getCount());
+
+            assertTrue(cursor.moveToNext());
+            assertEquals("ttc", getString(cursor, SAVED_STOPS.COLUMN_AGENCY_TAG));
+            assertEquals("Toronto Transit Commission", getString(cursor, SAVED_STOPS.COLUMN_AGENCY_TITLE));
+            assertEquals("1001", getString(cursor, SAVED_STOPS.COLUMN_STOP_TAG));
+            assertEquals("Queen St West At Stop 1001", getString(cursor, SAVED_STOPS.COLUMN_STOP_TITLE));
+            assertEquals("506", getString(cursor, SAVED_STOPS.COLUMN_ROUTE_TAG));
+            assertEquals("506-Route 506", getString(cursor, SAVED_STOPS.COLUMN_ROUTE_TITLE));
+            assertEquals("506_0", getString(cursor, SAVED_STOPS.COLUMN_DIRECTION_TAG));
+            assertEquals("Direction 0", getString(cursor, SAVED_STOPS.COLUMN_DIRECTION_TITLE));
+            assertEquals("East", getString(cursor, SAVED_STOPS.COLUMN_DIRECTION_NAME));
+            assertEquals(0, cursor.getInt(cursor.getColumnIndexOrThrow(SAVED_STOPS.COLUMN_POSITION)));
+
+            assertTrue(cursor.moveToNext());
+            assertEquals("1017", getString(cursor, SAVED_STOPS.COLUMN_STOP_TAG));
+            assertEquals("504", getString(cursor, SAVED_STOPS.COLUMN_ROUTE_TAG));
+            assertEquals("504_1", getString(cursor, SAVED_STOPS.COLUMN_DIRECTION_TAG));
+            assertEquals("West", getString(cursor, SAVED_STOPS.COLUMN_DIRECTION_NAME));
+            assertEquals(1, cursor.getInt(cursor.getColumnIndexOrThrow(SAVED_STOPS.COLUMN_POSITION)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testProjectsOnlyRequestedColumns() throws Exception {
+        mData.storeRoutesWithConfigs(5, "506");
+        saveStops(savedStop("506", "506_1", "1007"));
+
+        Cursor cursor = querySavedStops(new String[] { SAVED_STOPS.COLUMN_STOP_TAG, SAVED_STOPS.COLUMN_ROUTE_TAG });
+        try {
+            assertEquals(2, cursor.getColumnCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals("1007", getString(cursor, SAVED_STOPS.COLUMN_STOP_TAG));
+            assertEquals("506", getString(cursor, SAVED_STOPS.COLUMN_ROUTE_TAG));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testSkipsUnknownStops() throws Exception {
+        mData.storeRoutesWithConfigs(5, "506");
+        // 1001 is a stop of 506_0, not of 506_1
+        assertEquals(0, saveStops(savedStop("506", "506_1", "1001"), savedStop("506", "506_9", "1007")));
+
+        Cursor cursor = querySavedStops(NextbusProvider.SAVED_STOPS_CURSOR_COLUMNS);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testSavesAStopOnce() throws Exception {
+        mData.storeRoutesWithConfigs(5, "506");
+        assertEquals(1, saveStops(savedStop("506", "506_1", "1007"), savedStop("506", "506_1", "1007")));
+        assertEquals(0, saveStops(savedStop("506", "506_1", "1007")));
+        assertEquals(1, saveStops(savedStop("506", "506_1", "1008")));
+
+        assertEquals(2, count(mHelper.getSchema().savedStops, null));
+        Cursor cursor = querySavedStops(new String[] { SAVED_STOPS.COLUMN_STOP_TAG, SAVED_STOPS.COLUMN_POSITION });
+        try {
+            assertTrue(cursor.moveToNext());
+            assertEquals("1007", getString(cursor, SAVED_STOPS.COLUMN_STOP_TAG));
+            assertEquals(0, cursor.getInt(cursor.getColumnIndexOrThrow(SAVED_STOPS.COLUMN_POSITION)));
+            assertTrue(cursor.moveToNext());
+            assertEquals("1008", getString(cursor, SAVED_STOPS.COLUMN_STOP_TAG));
+            assertEquals(1, cursor.getInt(cursor.getColumnIndexOrThrow(SAVED_STOPS.COLUMN_POSITION)));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues savedStop(String routeTag, String directionTag, String stopTag) {
+        ContentValues values = new ContentValues();
+        values.put(SAVED_STOPS.COLUMN_AGENCY_TAG, NextbusTestData.AGENCY_TAG);
+        values.put(SAVED_STOPS.COLUMN_ROUTE_TAG, routeTag);
+        values.put(SAVED_STOPS.COLUMN_DIRECTION_TAG, directionTag);
+        values.put(SAVED_STOPS.COLUMN_STOP_TAG, stopTag);
+        return values;
+    }
+
+    private int saveStops(ContentValues... values) throws SQLException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            int inserted = new SavedStopWriter(db, mHelper.getSchema()).insert(values);
+            db.setTransactionSuccessful();
+            return inserted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private Cursor querySavedStops(String[] projection) throws SQLException {
+        return NextbusProvider.savedStopsQueryBuilder(mHelper.getSchema())
+                .query(mHelper.getReadableDatabase(), projection, null, null, null, null,
+                       SAVED_STOPS.COLUMN_POSITION + ", " + SAVED_STOPS.COLUMN_STOP_TITLE);
+    }
+
+    private static String getString(Cursor cursor, String column) {
+        return cursor.getString(cursor.getColumnIndexOrThrow(column));
+    }
+
+}
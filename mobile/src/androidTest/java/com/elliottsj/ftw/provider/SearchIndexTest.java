@@ -0,0 +1,66 @@
+package com.elliottsj.ftw.provider;
+
+import android.database.Cursor;
+
+public class SearchIndexTest extends NextbusTestCase {
+
+    public void testMatchExpressionPrefixesEveryWord() {
+        assertEquals("queen* sp*", SearchIndex.matchExpression("queen sp"));
+        assertEquals("queen* sp*", SearchIndex.matchExpression("  Queen   SP "));
+        assertEquals("501*", SearchIndex.matchExpression("501"));
+    }
+
+    public void testMatchExpressionDropsOperatorsAndPunctuation() {
+        assertEquals("queen* st* w*", SearchIndex.matchExpression("Queen St. W"));
+        assertEquals("queen* or* king*", SearchIndex.matchExpression("queen OR \"king\""));
+        assertEquals("spadina* near* 2* queen*", SearchIndex.matchExpression("spadina NEAR/2 queen"));
+        assertEquals("queen*", SearchIndex.matchExpression("-queen*"));
+    }
+
+    public void testMatchExpressionKeepsLetters() {
+        assertEquals("c\u00f4te* des* neiges*", SearchIndex.matchExpression("C\u00f4te-des-Neiges"));
+    }
+
+    public void testMatchExpressionWithoutWords() {
+        assertNull(SearchIndex.matchExpression(""));
+        assertNull(SearchIndex.matchExpression("   "));
+        assertNull(SearchIndex.matchExpression("*\"-()"));
+    }
+
+    public void testSearchRanksTitlePrefixAndRoutesFirst() throws Exception {
+        mData.storeRoutesWithConfigs(5, "501", "504");
+
+        Cursor cursor = search("501 rou");
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(NextbusProvider.SEARCH.KIND_ROUTE, getString(cursor, NextbusProvider.SEARCH.COLUMN_KIND));
+            assertEquals("501", getString(cursor, NextbusProvider.SEARCH.COLUMN_TAG));
+            assertFalse(cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+
+        cursor = search("quee");
+        try {
+            assertEquals(20, cursor.getCount());
+            while (cursor.moveToNext())
+                assertEquals(NextbusProvider.SEARCH.KIND_STOP, getString(cursor, NextbusProvider.SEARCH.COLUMN_KIND));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testSearchWithoutWords() throws Exception {
+        assertNull(search("?!"));
+    }
+
+    private Cursor search(String text) throws Exception {
+        return SearchIndex.search(mHelper.getReadableDatabase(), mHelper.getSchema(), NextbusTestData.AGENCY_TAG,
+                                  text, 50);
+    }
+
+    private static String getString(Cursor cursor, String column) {
+        return cursor.getString(cursor.getColumnIndexOrThrow(column));
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.elliottsj.ftw.provider;
+
+import android.test.AndroidTestCase;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest extends AndroidTestCase {
+
+    private static final int CALLERS = 8;
+
+    private final SingleFlight<Integer> mFlight = new SingleFlight<Integer>();
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testConcurrentCallersShareOneCall() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        List<Future<Integer>> results = runConcurrently("agencies/ttc/routes/506", new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                release.await();
+                return calls.incrementAndGet();
+            }
+        });
+        release.countDown();
+
+        for (Future<Integer> result : results)
+            assertEquals(Integer.valueOf(1), result.get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(1, mFlight.getCallCount());
+        assertEquals(CALLERS - 1, mFlight.getDeduplicatedCount());
+    }
+
+    public void testConcurrentCallersShareOneException() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final SQLException failure = new SQLException("Disk full");
+        List<Future<Integer>> results = runConcurrently("agencies/ttc/routes/506", new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                release.await();
+                throw failure;
+            }
+        });
+        release.countDown();
+
+        for (Future<Integer> result : results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Expected SQLException");
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+        assertEquals(1, mFlight.getCallCount());
+    }
+
+    public void testCallsAfterTheFirstEndsRunAgain() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<Integer> call = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return calls.incrementAndGet();
+            }
+        };
+
+        assertEquals(Integer.valueOf(1), mFlight.run("agencies/ttc/routes/506", call));
+        assertEquals(Integer.valueOf(2), mFlight.run("agencies/ttc/routes/506", call));
+        assertEquals(Integer.valueOf(3), mFlight.run("agencies/ttc/routes/501", call));
+
+        assertEquals(3, mFlight.getCallCount());
+        assertEquals(0, mFlight.getDeduplicatedCount());
+    }
+
+    /**
+     * Start CALLERS concurrent runs of a call, and return once all but the first are waiting for it.
+     *
+     * @param call blocks until the test releases it, so that the runs overlap
+     */
+    private List<Future<Integer>> runConcurrently(final String key, final Callable<Integer> call) throws Exception {
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < CALLERS; i++) {
+            results.add(mExecutor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return mFlight.run(key, call);
+                }
+            }));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mFlight.getDeduplicatedCount() < CALLERS - 1) {
+            assertTrue("Callers did not overlap", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return results;
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.elliottsj.ftw.provider;
+
+import android.database.Cursor;
+
+import com.elliottsj.nextbus.domain.Stop;
+
+public class StopIndexTest extends NextbusTestCase {
+
+    // The first stop of the test route configurations
+    private static final double LATITUDE = 43.6;
+    private static final double LONGITUDE = -79.5;
+
+    private StopIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mData.storeRoutesWithConfigs(10, "501");
+        mIndex = StopIndex.load(mHelper.getReadableDatabase(), mHelper.getSchema(), NextbusTestData.AGENCY_TAG);
+    }
+
+    public void testLoadsEveryStop() {
+        assertEquals(20, mIndex.size());
+        int nearest = mIndex.nearest(LATITUDE, LONGITUDE, 100);
+        assertEquals("1000", mIndex.getTag(nearest));
+        assertEquals("Queen St West At Stop 1000", mIndex.getTitle(nearest));
+    }
+
+    public void testKeepsNullAndEmptyShortTitlesApart() throws Exception {
+        NextbusSchema schema = mHelper.getSchema();
+        mHelper.getWritableDatabase().execSQL(String.format("UPDATE %s SET %s = '' WHERE %s = '1000'",
+                                                            schema.stops, Stop.FIELD_SHORT_TITLE, Stop.FIELD_TAG));
+        mHelper.getWritableDatabase().execSQL(String.format("UPDATE %s SET %s = NULL WHERE %s = '1001'",
+                                                            schema.stops, Stop.FIELD_SHORT_TITLE, Stop.FIELD_TAG));
+        mIndex = StopIndex.load(mHelper.getReadableDatabase(), mHelper.getSchema(), NextbusTestData.AGENCY_TAG);
+
+        int[] indexes = new int[2];
+        assertEquals(2, mIndex.nearest(LATITUDE, LONGITUDE, 5000, indexes, new float[2]));
+        assertEquals("1000", mIndex.getTag(indexes[0]));
+        assertEquals("", mIndex.getShortTitle(indexes[0]));
+        assertEquals("1001", mIndex.getTag(indexes[1]));
+        assertNull(mIndex.getShortTitle(indexes[1]));
+    }
+
+    public void testNearestWithoutRoomForResults() {
+        assertEquals(0, mIndex.nearest(LATITUDE, LONGITUDE, 1000, new int[0], new float[0]));
+    }
+
+    public void testNearestOrdersByDistance() {
+        int[] indexes = new int[3];
+        float[] distances = new float[3];
+        assertEquals(3, mIndex.nearest(LATITUDE, LONGITUDE, 5000, indexes, distances));
+        assertEquals("1000", mIndex.getTag(indexes[0]));
+        assertEquals("1001", mIndex.getTag(indexes[1]));
+        assertEquals("1002", mIndex.getTag(indexes[2]));
+        assertTrue(distances[0] <= distances[1] && distances[1] <= distances[2]);
+    }
+
+    public void testNearbyMatchesStopGrid() throws Exception {
+        Cursor indexCursor = mIndex.nearby(LATITUDE + 0.012, LONGITUDE + 0.012, 5000, 5);
+        Cursor gridCursor = StopGrid.nearby(mHelper.getReadableDatabase(), mHelper.getSchema(),
+                                            NextbusTestData.AGENCY_TAG, LATITUDE + 0.012, LONGITUDE + 0.012, 5000, 5);
+        try {
+            assertEquals(5, indexCursor.getCount());
+            assertEquals(gridCursor.getCount(), indexCursor.getCount());
+            while (indexCursor.moveToNext() && gridCursor.moveToNext()) {
+                assertEquals(gridCursor.getLong(gridCursor.getColumnIndexOrThrow(Stop.FIELD_ID)),
+                             indexCursor.getLong(indexCursor.getColumnIndexOrThrow(Stop.FIELD_ID)));
+                assertEquals(gridCursor.getString(gridCursor.getColumnIndexOrThrow(Stop.FIELD_TITLE)),
+                             indexCursor.getString(indexCursor.getColumnIndexOrThrow(Stop.FIELD_TITLE)));
+            }
+        } finally {
+            indexCursor.close();
+            gridCursor.close();
+        }
+    }
+
+}
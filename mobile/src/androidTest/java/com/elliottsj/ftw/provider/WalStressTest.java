@@ -0,0 +1,138 @@
+package com.elliottsj.ftw.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.elliottsj.ftw.provider.NextbusProvider.SAVED_STOPS;
+
+import com.elliottsj.nextbus.domain.Agency;
+import com.elliottsj.nextbus.domain.Route;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reader threads query the saved stops while the test thread ingests route configurations, first with write-ahead
+ * logging disabled and then with it enabled, and the readers' latencies are compared.
+ */
+public class WalStressTest extends NextbusTestCase {
+
+    private static final String TAG = WalStressTest.class.getSimpleName();
+
+    private static final int READERS = 4;
+    private static final int ROUTES_PER_RUN = 5;
+    private static final int STOPS_PER_DIRECTION = 150;
+    private static final int SAVED_STOP_COUNT = 3;
+
+    public void testReadersDuringIngest() throws Exception {
+        String[] routeTags = new String[1 + 2 * ROUTES_PER_RUN];
+        for (int i = 0; i < routeTags.length; i++)
+            routeTags[i] = Integer.toString(500 + i);
+        mData.setRoutes(routeTags);
+        for (int i = 0; i < routeTags.length; i++)
+            mData.setRouteConfig(routeTags[i], 2, STOPS_PER_DIRECTION, 1000 + i * 2 * STOPS_PER_DIRECTION);
+        Agency agency = mData.storeAgency();
+        List<Route> routes = mData.storeRoutes(agency);
+        mData.storeRouteConfig(agency, routes.get(0));
+        saveStops(routeTags[0]);
+
+        mHelper.setWriteAheadLoggingEnabled(false);
+        long[] rollbackJournal = run(agency, routes.subList(1, 1 + ROUTES_PER_RUN));
+        mHelper.setWriteAheadLoggingEnabled(true);
+        long[] writeAheadLog = run(agency, routes.subList(1 + ROUTES_PER_RUN, routes.size()));
+
+        Log.i(TAG, String.format("Saved stop queries by %d readers while ingesting %d route configurations of 2 x %d" +
+                                 " stops: p50 %.2f ms, p99 %.2f ms without WAL; p50 %.2f ms, p99 %.2f ms with WAL",
+                                 READERS, ROUTES_PER_RUN, STOPS_PER_DIRECTION,
+                                 rollbackJournal[0] / 1e6, rollbackJournal[1] / 1e6,
+                                 writeAheadLog[0] / 1e6, writeAheadLog[1] / 1e6));
+        assertEquals(routes.size() * 2 * STOPS_PER_DIRECTION, count(mHelper.getSchema().directionStops, null));
+    }
+
+    /**
+     * Ingest the configurations of the given routes while READERS threads query the saved stops.
+     *
+     * @return the readers' p50 and p99 query latencies in nanoseconds
+     */
+    private long[] run(Agency agency, List<Route> routes) throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch started = new CountDownLatch(READERS);
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int i = 0; i < READERS; i++) {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        SQLiteDatabase db = mHelper.getReadableDatabase();
+                        NextbusSchema schema = mHelper.getSchema();
+                        // Query at least once after the writer finished so that every reader is measured
+                        boolean last = false;
+                        while (!last) {
+                            last = done.get();
+                            long start = System.nanoTime();
+                            Cursor cursor = NextbusProvider.savedStopsQueryBuilder(schema)
+                                    .query(db, NextbusProvider.SAVED_STOPS_CURSOR_COLUMNS, null, null, null, null,
+                                           SAVED_STOPS.COLUMN_POSITION);
+                            try {
+                                assertEquals(SAVED_STOP_COUNT, cursor.getCount());
+                            } finally {
+                                cursor.close();
+                            }
+                            latencies.add(System.nanoTime() - start);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        started.await();
+        for (Route route : routes)
+            mData.storeRouteConfig(agency, route);
+        done.set(true);
+        for (Thread reader : readers)
+            reader.join();
+
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        return new long[] { percentile(sorted, 0.5), percentile(sorted, 0.99) };
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(sorted.size() * fraction) - 1));
+    }
+
+    private void saveStops(String routeTag) throws Exception {
+        ContentValues[] values = new ContentValues[SAVED_STOP_COUNT];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(SAVED_STOPS.COLUMN_AGENCY_TAG, NextbusTestData.AGENCY_TAG);
+            values[i].put(SAVED_STOPS.COLUMN_ROUTE_TAG, routeTag);
+            values[i].put(SAVED_STOPS.COLUMN_DIRECTION_TAG, routeTag + "_0");
+            values[i].put(SAVED_STOPS.COLUMN_STOP_TAG, Integer.toString(1000 + i));
+        }
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            assertEquals(SAVED_STOP_COUNT, new SavedStopWriter(db, mHelper.getSchema()).insert(values));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+}
@@ -0,0 +1,382 @@
+package com.elliottsj.ftw.utilities;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.elliottsj.nextbus.service.TransientServiceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Locale;
+
+public class AndroidRPCImplTest extends AndroidTestCase {
+
+    private static final String TAG = AndroidRPCImplTest.class.getSimpleName();
+
+    private static final int BENCHMARK_CALLS = 20;
+
+    private static final String ROUTE_CONFIG_PATH = "/publicXMLFeed?command=routeConfig&a=ttc&r=501";
+    private static final String PREDICTIONS_PATH = "/publicXMLFeed?command=predictions&a=ttc&stopId=5292";
+
+    private TestHttpServer mServer;
+    private ConditionalGetCache mCache;
+    private File mCacheDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = new File(getContext().getCacheDir(), "test-rpc-http");
+        deleteCacheDir();
+        mCache = new ConditionalGetCache(mCacheDir, ConditionalGetCache.DEFAULT_MAX_BYTES);
+        // Every test server is on the same host, and so shares its breaker
+        CircuitBreaker.forHost("127.0.0.1").recordSuccess();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null)
+            mServer.close();
+        CircuitBreaker.forHost("127.0.0.1").recordSuccess();
+        deleteCacheDir();
+        super.tearDown();
+    }
+
+    public void testDecodesGzipAndCountsWireAndDecodedBytes() throws Exception {
+        final String body = routeConfig(200);
+        mServer = new TestHttpServer(new TestHttpServer.Handler() {
+            @Override
+            public TestHttpServer.Response handle(TestHttpServer.Request request) throws IOException {
+                return TestHttpServer.Response.text(request, body);
+            }
+        });
+        AndroidRPCImpl rpc = newRpc();
+
+        assertEquals(body, rpc.call(mServer.url("/publicXMLFeed?command=routeConfig&a=ttc&r=501"), stringHandler()));
+
+        assertEquals("gzip", mServer.getRequests().get(0).getHeader("Accept-Encoding"));
+        assertEquals(TestHttpServer.gzip(body.getBytes("UTF-8")).length, rpc.getBytesReceived());
+        assertEquals(body.getBytes("UTF-8").length, rpc.getBytesDecoded());
+        assertTrue(rpc.getBytesReceived() * 5 < rpc.getBytesDecoded());
+    }
+
+    public void testReusesConnection() throws Exception {
+        final String body = routeConfig(20);
+        mServer = new TestHttpServer(new TestHttpServer.Handler() {
+            @Override
+            public TestHttpServer.Response handle(TestHttpServer.Request request) throws IOException {
+                return TestHttpServer.Response.text(request, body);
+            }
+        });
+        AndroidRPCImpl rpc = newRpc();
+
+        for (int i = 0; i < 5; i++)
+            assertEquals(body, rpc.call(mServer.url("/publicXMLFeed?command=routeConfig&a=ttc&r=" + i), stringHandler()));
+
+        assertEquals(5, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    public void testRevalidatesStoredResponse() throws Exception {
+        final String body = routeConfig(20);
+        mServer = new TestHttpServer(new RevalidatingHandler(body, null));
+        AndroidRPCImpl rpc = newRpc(mCache);
+        String path = "/publicXMLFeed?command=routeConfig&a=ttc&r=501";
+
+        assertEquals(body, rpc.call(mServer.url(path), stringHandler()));
+        assertEquals(body, rpc.call(mServer.url(path), stringHandler()));
+
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals("\"v1\"", mServer.getRequests().get(1).getHeader("If-None-Match"));
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(1, mCache.getRevalidationCount());
+    }
+
+    public void testRequestsInFullWhenStoredResponseIsGoneAfter304() throws Exception {
+        final String body = routeConfig(20);
+        final String path = "/publicXMLFeed?command=routeConfig&a=ttc&r=501";
+        // Evict the stored response while the request revalidating it is in flight
+        mServer = new TestHttpServer(new RevalidatingHandler(body, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mCache.remove(mServer.url(path).toString());
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }));
+        AndroidRPCImpl rpc = newRpc(mCache);
+
+        assertEquals(body, rpc.call(mServer.url(path), stringHandler()));
+        assertEquals(body, rpc.call(mServer.url(path), stringHandler()));
+
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals("\"v1\"", mServer.getRequests().get(1).getHeader("If-None-Match"));
+        assertNull(mServer.getRequests().get(2).getHeader("If-None-Match"));
+        assertFalse(CircuitBreaker.forHost("127.0.0.1").isOpen());
+        // Stored again by the full response
+        assertNotNull(mCache.get(mServer.url(path).toString()));
+    }
+
+    public void testRetriesServerErrors() throws Exception {
+        FaultInjectingHandler handler = new FaultInjectingHandler(routeConfig(20));
+        mServer = new TestHttpServer(handler);
+        AndroidRPCImpl rpc = newRpc();
+        handler.fail(2, 503);
+
+        assertEquals(routeConfig(20), rpc.call(mServer.url(ROUTE_CONFIG_PATH), stringHandler()));
+
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    public void testRetriesDroppedConnections() throws Exception {
+        FaultInjectingHandler handler = new FaultInjectingHandler(routeConfig(20));
+        mServer = new TestHttpServer(handler);
+        AndroidRPCImpl rpc = newRpc();
+        handler.fail(1, FaultInjectingHandler.DROP_CONNECTION);
+
+        assertEquals(routeConfig(20), rpc.call(mServer.url(ROUTE_CONFIG_PATH), stringHandler()));
+
+        // The platform may retry a dropped connection itself before the call sees the failure
+        assertTrue(mServer.getRequestCount() >= 2);
+    }
+
+    public void testDoesNotRetryOrCountClientErrors() throws Exception {
+        FaultInjectingHandler handler = new FaultInjectingHandler(routeConfig(20));
+        mServer = new TestHttpServer(handler);
+        AndroidRPCImpl rpc = newRpc();
+        handler.fail(Integer.MAX_VALUE, 404);
+
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            try {
+                rpc.call(mServer.url(ROUTE_CONFIG_PATH), stringHandler());
+                fail("Expected TransientServiceException");
+            } catch (TransientServiceException e) {
+                // Expected
+            }
+        }
+
+        assertEquals(CircuitBreaker.FAILURE_THRESHOLD, mServer.getRequestCount());
+        assertFalse(CircuitBreaker.forHost("127.0.0.1").isOpen());
+    }
+
+    public void testServesStoredRouteConfigWhileCircuitOpen() throws Exception {
+        String body = routeConfig(20);
+        FaultInjectingHandler handler = new FaultInjectingHandler(body);
+        mServer = new TestHttpServer(handler);
+        AndroidRPCImpl rpc = newRpc(mCache);
+        assertEquals(body, rpc.call(mServer.url(ROUTE_CONFIG_PATH), stringHandler()));
+        handler.fail(Integer.MAX_VALUE, 503);
+
+        // The first call fails after MAX_ATTEMPTS; the second is served the stored response once its failures open
+        // the breaker, and the third without a request
+        try {
+            rpc.call(mServer.url(ROUTE_CONFIG_PATH), stringHandler());
+            fail("Expected TransientServiceException");
+        } catch (TransientServiceException e) {
+            // Expected
+        }
+        assertEquals(body, rpc.call(mServer.url(ROUTE_CONFIG_PATH), stringHandler()));
+        assertEquals(body, rpc.call(mServer.url(ROUTE_CONFIG_PATH), stringHandler()));
+
+        assertTrue(CircuitBreaker.forHost("127.0.0.1").isOpen());
+        assertEquals(1 + CircuitBreaker.FAILURE_THRESHOLD, mServer.getRequestCount());
+    }
+
+    public void testDoesNotServeStalePredictionsWhileCircuitOpen() throws Exception {
+        String body = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<body copyright=\"Test\">\n</body>\n";
+        FaultInjectingHandler handler = new FaultInjectingHandler(body);
+        mServer = new TestHttpServer(handler);
+        AndroidRPCImpl rpc = newRpc(mCache);
+        assertEquals(body, rpc.call(mServer.url(PREDICTIONS_PATH), stringHandler()));
+        // Only static feeds are stored
+        assertNull(mCache.get(mServer.url(PREDICTIONS_PATH).toString()));
+        handler.fail(Integer.MAX_VALUE, 503);
+
+        // Fail until the breaker opens, and then without a request
+        while (!CircuitBreaker.forHost("127.0.0.1").isOpen()) {
+            try {
+                rpc.call(mServer.url(PREDICTIONS_PATH), stringHandler());
+                fail("Expected TransientServiceException");
+            } catch (TransientServiceException e) {
+                // Expected
+            }
+        }
+        int requests = mServer.getRequestCount();
+        try {
+            rpc.call(mServer.url(PREDICTIONS_PATH), stringHandler());
+            fail("Expected TransientServiceException");
+        } catch (TransientServiceException e) {
+            // Expected
+        }
+
+        assertEquals(1 + CircuitBreaker.FAILURE_THRESHOLD, requests);
+        assertEquals(requests, mServer.getRequestCount());
+    }
+
+    /**
+     * Answers with a body and an ETag, or with a fault for as many requests as set by {@link #fail(int, int)}.
+     */
+    private static class FaultInjectingHandler implements TestHttpServer.Handler {
+
+        static final int DROP_CONNECTION = -1;
+
+        private final String mBody;
+        private int mFaults;
+        private int mStatus;
+
+        FaultInjectingHandler(String body) {
+            mBody = body;
+        }
+
+        /**
+         * @param count number of requests to answer with a fault
+         * @param status the status to answer them with, or DROP_CONNECTION
+         */
+        synchronized void fail(int count, int status) {
+            mFaults = count;
+            mStatus = status;
+        }
+
+        @Override
+        public synchronized TestHttpServer.Response handle(TestHttpServer.Request request) throws IOException {
+            if (mFaults > 0) {
+                mFaults--;
+                if (mStatus == DROP_CONNECTION)
+                    throw new IOException("Dropping connection");
+                return new TestHttpServer.Response(mStatus, null);
+            }
+            return TestHttpServer.Response.text(request, mBody).header("ETag", "\"v1\"");
+        }
+
+    }
+
+    /**
+     * Answers with an ETag, and with 304 Not Modified to requests carrying it.
+     */
+    private static class RevalidatingHandler implements TestHttpServer.Handler {
+
+        private final String mBody;
+        private final Runnable mBeforeNotModified;
+
+        /**
+         * @param beforeNotModified run before each 304 is sent, or null
+         */
+        RevalidatingHandler(String body, Runnable beforeNotModified) {
+            mBody = body;
+            mBeforeNotModified = beforeNotModified;
+        }
+
+        @Override
+        public TestHttpServer.Response handle(TestHttpServer.Request request) throws IOException {
+            if ("\"v1\"".equals(request.getHeader("If-None-Match"))) {
+                if (mBeforeNotModified != null)
+                    mBeforeNotModified.run();
+                return new TestHttpServer.Response(304, null).header("ETag", "\"v1\"");
+            }
+            return TestHttpServer.Response.text(request, mBody).header("ETag", "\"v1\"");
+        }
+
+    }
+
+    /**
+     * Compare calls to a server which neither compresses nor keeps connections alive, as every call was made before
+     * AndroidRPCImpl asked for gzip and stopped disconnecting, with calls to one which does both.
+     */
+    public void testBenchmarkCompressionAndKeepAlive() throws Exception {
+        final String body = routeConfig(100);
+        final TestHttpServer.Handler before = new TestHttpServer.Handler() {
+            @Override
+            public TestHttpServer.Response handle(TestHttpServer.Request request) throws IOException {
+                return new TestHttpServer.Response(200, body.getBytes("UTF-8"))
+                        .header("Content-Type", "text/xml; charset=utf-8").header("Connection", "close");
+            }
+        };
+        final TestHttpServer.Handler after = new TestHttpServer.Handler() {
+            @Override
+            public TestHttpServer.Response handle(TestHttpServer.Request request) throws IOException {
+                return TestHttpServer.Response.text(request, body);
+            }
+        };
+
+        long[] beforeResult = benchmark(before, body);
+        long[] afterResult = benchmark(after, body);
+
+        Log.i(TAG, String.format(Locale.US, "%d calls of %d bytes: %.1f calls/s and %d wire bytes without gzip and" +
+                                 " keep-alive; %.1f calls/s and %d wire bytes with them",
+                                 BENCHMARK_CALLS, body.length(),
+                                 BENCHMARK_CALLS * 1e9 / beforeResult[0], beforeResult[1],
+                                 BENCHMARK_CALLS * 1e9 / afterResult[0], afterResult[1]));
+        assertTrue(afterResult[1] < beforeResult[1]);
+    }
+
+    /**
+     * @return elapsed nanoseconds and wire bytes of BENCHMARK_CALLS calls to a server using the given handler
+     */
+    private long[] benchmark(TestHttpServer.Handler handler, String body) throws Exception {
+        TestHttpServer server = new TestHttpServer(handler);
+        try {
+            AndroidRPCImpl rpc = newRpc();
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_CALLS; i++)
+                assertEquals(body, rpc.call(server.url("/publicXMLFeed?command=routeConfig&a=ttc&r=" + i),
+                                            stringHandler()));
+            return new long[] { System.nanoTime() - start, rpc.getBytesReceived() };
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * @return an instance with its own bandwidth budget, so that tests neither wait for nor use up the shared one
+     */
+    static AndroidRPCImpl newRpc() {
+        return newRpc(null);
+    }
+
+    static AndroidRPCImpl newRpc(ConditionalGetCache cache) {
+        return new AndroidRPCImpl(cache, BandwidthGovernor.Priority.INTERACTIVE,
+                                  new BandwidthGovernor(1L << 40, 1000));
+    }
+
+    static AndroidRPCImpl.ResponseHandler<String> stringHandler() {
+        return new AndroidRPCImpl.ResponseHandler<String>() {
+            @Override
+            public String handleResponse(InputStream body, String charset) throws IOException {
+                Reader reader = new InputStreamReader(body, charset);
+                StringBuilder text = new StringBuilder();
+                char[] buffer = new char[4096];
+                int read;
+                while ((read = reader.read(buffer)) != -1)
+                    text.append(buffer, 0, read);
+                return text.toString();
+            }
+        };
+    }
+
+    private void deleteCacheDir() {
+        File[] files = mCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        mCacheDir.delete();
+    }
+
+    /**
+     * @return a routeConfig-like XML body with the given number of stops
+     */
+    static String routeConfig(int stops) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<body copyright=\"Test\">\n");
+        xml.append("<route tag=\"501\" title=\"501-Queen\">\n");
+        for (int i = 0; i < stops; i++)
+            xml.append(String.format(Locale.US, "<stop tag=\"%d\" title=\"Queen St West At Stop %d\" lat=\"%.6f\"" +
+                                     " lon=\"%.6f\" stopId=\"%d\"/>\n",
+                                     1000 + i, 1000 + i, 43.6 + i * 0.001, -79.5 + i * 0.001, 1000 + i));
+        return xml.append("</route>\n</body>\n").toString();
+    }
+
+}
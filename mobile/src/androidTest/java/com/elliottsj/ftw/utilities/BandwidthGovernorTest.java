@@ -0,0 +1,71 @@
+package com.elliottsj.ftw.utilities;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+public class BandwidthGovernorTest extends AndroidTestCase {
+
+    // 10000 bytes per second: a bucket of 5000 bytes refilled at 5 bytes per millisecond
+    private static final long LIMIT_BYTES = 10000;
+    private static final long INTERVAL_MILLIS = 1000;
+
+    private static final long CALL_BYTES = 100;
+
+    public void testStartsWithHalfTheLimit() {
+        BandwidthGovernor governor = new BandwidthGovernor(LIMIT_BYTES, INTERVAL_MILLIS);
+
+        assertEquals(LIMIT_BYTES / 2, governor.getAvailableBytes());
+    }
+
+    public void testReceivesAtMostTheLimitInAnInterval() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor(LIMIT_BYTES, INTERVAL_MILLIS);
+
+        long received = 0;
+        long start = SystemClock.elapsedRealtime();
+        while (true) {
+            governor.acquire(BandwidthGovernor.Priority.INTERACTIVE);
+            if (SystemClock.elapsedRealtime() - start >= INTERVAL_MILLIS)
+                break;
+            governor.charge(CALL_BYTES);
+            received += CALL_BYTES;
+        }
+
+        // The burst and the refill, and at most the call which put the bucket into debt
+        assertTrue("Received " + received, received <= LIMIT_BYTES + CALL_BYTES);
+        assertTrue("Received " + received, received >= LIMIT_BYTES / 2);
+    }
+
+    public void testWaitsToRepayDebt() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor(LIMIT_BYTES, INTERVAL_MILLIS);
+        governor.charge(LIMIT_BYTES / 2 + 1000);
+        assertTrue(governor.getAvailableBytes() < 0);
+
+        long start = SystemClock.elapsedRealtime();
+        governor.acquire(BandwidthGovernor.Priority.INTERACTIVE);
+
+        // 1000 bytes of debt take 200 ms to repay
+        assertTrue(SystemClock.elapsedRealtime() - start >= 150);
+        assertTrue(governor.getAvailableBytes() > 0);
+    }
+
+    public void testBackgroundCallsLeaveReserveForInteractiveCalls() throws Exception {
+        BandwidthGovernor interactive = new BandwidthGovernor(LIMIT_BYTES, INTERVAL_MILLIS);
+        BandwidthGovernor background = new BandwidthGovernor(LIMIT_BYTES, INTERVAL_MILLIS);
+        interactive.charge(LIMIT_BYTES / 2);
+        background.charge(LIMIT_BYTES / 2);
+
+        long start = SystemClock.elapsedRealtime();
+        interactive.acquire(BandwidthGovernor.Priority.INTERACTIVE);
+        long interactiveMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        background.acquire(BandwidthGovernor.Priority.BACKGROUND);
+        long backgroundMillis = SystemClock.elapsedRealtime() - start;
+
+        // The background call waits for a quarter of the bucket, 1250 bytes, to refill over 250 ms
+        assertTrue("Interactive call waited " + interactiveMillis, interactiveMillis < 100);
+        assertTrue("Background call waited " + backgroundMillis, backgroundMillis >= 200);
+        assertTrue(background.getAvailableBytes() > LIMIT_BYTES / 8);
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.elliottsj.ftw.utilities;
+
+import android.test.AndroidTestCase;
+
+public class CircuitBreakerTest extends AndroidTestCase {
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long OPEN_MILLIS = 200;
+
+    private CircuitBreaker mBreaker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBreaker = new CircuitBreaker("test", FAILURE_THRESHOLD, OPEN_MILLIS);
+    }
+
+    public void testOpensAfterConsecutiveFailures() {
+        for (int i = 0; i < FAILURE_THRESHOLD - 1; i++) {
+            assertTrue(mBreaker.allowRequest());
+            mBreaker.recordFailure();
+        }
+        assertFalse(mBreaker.isOpen());
+
+        assertTrue(mBreaker.allowRequest());
+        mBreaker.recordFailure();
+
+        assertTrue(mBreaker.isOpen());
+        assertFalse(mBreaker.allowRequest());
+    }
+
+    public void testSuccessResetsFailures() {
+        for (int i = 0; i < FAILURE_THRESHOLD - 1; i++)
+            mBreaker.recordFailure();
+        mBreaker.recordSuccess();
+        for (int i = 0; i < FAILURE_THRESHOLD - 1; i++)
+            mBreaker.recordFailure();
+
+        assertFalse(mBreaker.isOpen());
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    public void testClosesWhenTrialCallSucceeds() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 50);
+
+        assertTrue(mBreaker.allowRequest());
+        // Only one trial call at a time
+        assertFalse(mBreaker.allowRequest());
+        assertTrue(mBreaker.isOpen());
+        mBreaker.recordSuccess();
+
+        assertFalse(mBreaker.isOpen());
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    public void testReopensWhenTrialCallFails() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 50);
+
+        assertTrue(mBreaker.allowRequest());
+        mBreaker.recordFailure();
+
+        assertTrue(mBreaker.isOpen());
+        assertFalse(mBreaker.allowRequest());
+    }
+
+    public void testAllowsAnotherTrialCallWhenOneIsAbandoned() throws Exception {
+        open();
+        Thread.sleep(OPEN_MILLIS + 50);
+
+        assertTrue(mBreaker.allowRequest());
+        mBreaker.recordAbandoned();
+
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    private void open() {
+        for (int i = 0; i < FAILURE_THRESHOLD; i++)
+            mBreaker.recordFailure();
+        assertTrue(mBreaker.isOpen());
+    }
+
+}
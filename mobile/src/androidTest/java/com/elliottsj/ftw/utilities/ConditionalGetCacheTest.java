@@ -0,0 +1,167 @@
+package com.elliottsj.ftw.utilities;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class ConditionalGetCacheTest extends AndroidTestCase {
+
+    private static final String URL_A = "http://example.com/publicXMLFeed?command=routeConfig&a=ttc&r=501";
+    private static final String URL_B = "http://example.com/publicXMLFeed?command=routeConfig&a=ttc&r=504";
+    private static final String URL_C = "http://example.com/publicXMLFeed?command=routeConfig&a=ttc&r=505";
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "test-conditional-get");
+        deleteDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDir();
+        super.tearDown();
+    }
+
+    public void testStoresBodyAndValidators() throws Exception {
+        ConditionalGetCache cache = new ConditionalGetCache(mDir, ConditionalGetCache.DEFAULT_MAX_BYTES);
+        store(cache, URL_A, "\"v1\"", "Sun, 18 Oct 2026 07:00:00 GMT", "body a");
+
+        ConditionalGetCache.Entry entry = cache.get(URL_A);
+        assertNotNull(entry);
+        assertEquals("\"v1\"", entry.etag);
+        assertEquals("Sun, 18 Oct 2026 07:00:00 GMT", entry.lastModified);
+        assertEquals("UTF-8", entry.charset);
+        assertFalse(entry.isFresh());
+        assertEquals("body a", read(entry));
+        assertNull(cache.get(URL_B));
+    }
+
+    public void testSkipsResponsesWithoutValidators() {
+        ConditionalGetCache cache = new ConditionalGetCache(mDir, ConditionalGetCache.DEFAULT_MAX_BYTES);
+        assertNull(cache.edit(URL_A, null, null, "UTF-8", 0));
+    }
+
+    public void testAbortStoresNothing() throws Exception {
+        ConditionalGetCache cache = new ConditionalGetCache(mDir, ConditionalGetCache.DEFAULT_MAX_BYTES);
+        ConditionalGetCache.Editor editor = cache.edit(URL_A, "\"v1\"", null, "UTF-8", 0);
+        drain(editor.tee(new ByteArrayInputStream("partial".getBytes("UTF-8"))));
+        editor.abort();
+
+        assertNull(cache.get(URL_A));
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        ConditionalGetCache cache = new ConditionalGetCache(mDir, ConditionalGetCache.DEFAULT_MAX_BYTES);
+        store(cache, URL_A, "\"a\"", null, repeat('a', 1000));
+        long entryBytes = cache.getSizeBytes();
+
+        // Room for two entries
+        cache = new ConditionalGetCache(mDir, 2 * entryBytes + entryBytes / 2);
+        store(cache, URL_B, "\"b\"", null, repeat('b', 1000));
+        assertNotNull(cache.get(URL_A));
+        store(cache, URL_C, "\"c\"", null, repeat('c', 1000));
+
+        assertNotNull(cache.get(URL_A));
+        assertNull(cache.get(URL_B));
+        assertNotNull(cache.get(URL_C));
+        assertTrue(cache.getSizeBytes() <= 2 * entryBytes + entryBytes / 2);
+    }
+
+    public void testRemove() throws Exception {
+        ConditionalGetCache cache = new ConditionalGetCache(mDir, ConditionalGetCache.DEFAULT_MAX_BYTES);
+        store(cache, URL_A, "\"v1\"", null, "body a");
+        ConditionalGetCache.Entry entry = cache.get(URL_A);
+
+        cache.remove(URL_A);
+
+        assertNull(cache.get(URL_A));
+        assertEquals(0, cache.getSizeBytes());
+        try {
+            entry.openBody().close();
+            fail("The body of a removed entry is still readable");
+        } catch (IOException expected) {
+            // An entry looked up before it was removed cannot be read any more
+        }
+    }
+
+    public void testDropsEntryWithCorruptExpiryTime() throws Exception {
+        ConditionalGetCache cache = new ConditionalGetCache(mDir, ConditionalGetCache.DEFAULT_MAX_BYTES);
+        store(cache, URL_A, "\"v1\"", null, "body a");
+        File file = mDir.listFiles()[0];
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(ConditionalGetCache.MAGIC);
+            for (String field : new String[] { URL_A, "\"v1\"", "", "UTF-8", "not a time" })
+                out.writeUTF(field);
+        } finally {
+            out.close();
+        }
+
+        assertNull(cache.get(URL_A));
+        assertFalse(file.exists());
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    public void testCountsHitsRevalidationsAndMisses() {
+        ConditionalGetCache cache = new ConditionalGetCache(mDir, ConditionalGetCache.DEFAULT_MAX_BYTES);
+        cache.recordHit();
+        cache.recordRevalidation();
+        cache.recordRevalidation();
+        cache.recordMiss();
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getRevalidationCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    static void store(ConditionalGetCache cache, String url, String etag, String lastModified, String body)
+            throws Exception {
+        ConditionalGetCache.Editor editor = cache.edit(url, etag, lastModified, "UTF-8", 0);
+        drain(editor.tee(new ByteArrayInputStream(body.getBytes("UTF-8"))));
+        editor.commit();
+    }
+
+    private static String read(ConditionalGetCache.Entry entry) throws Exception {
+        InputStream in = entry.openBody();
+        try {
+            return new String(drain(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] drain(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[512];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder s = new StringBuilder(count);
+        for (int i = 0; i < count; i++)
+            s.append(c);
+        return s.toString();
+    }
+
+    private void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        mDir.delete();
+    }
+
+}
@@ -0,0 +1,243 @@
+package com.elliottsj.ftw.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface which stands in for NextBus in tests.
+ *
+ * Each connection is served on its own thread and kept alive until the client closes it, so tests can count how
+ * many connections their calls opened. A {@link Handler} answers each request and may inject faults by returning an
+ * error status or by throwing, which drops the connection without a response.
+ */
+class TestHttpServer {
+
+    static class Request {
+
+        final String path;
+        // Header names are lower case
+        final Map<String, String> headers;
+
+        Request(String path, Map<String, String> headers) {
+            this.path = path;
+            this.headers = headers;
+        }
+
+        String getHeader(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+
+    }
+
+    static class Response {
+
+        final int status;
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        final byte[] body;
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        /**
+         * @return a 200 response with the given text, gzipped if the request accepts it
+         */
+        static Response text(Request request, String text) throws IOException {
+            byte[] body = text.getBytes("UTF-8");
+            String acceptEncoding = request.getHeader("Accept-Encoding");
+            if (acceptEncoding == null || !acceptEncoding.contains("gzip"))
+                return new Response(200, body).header("Content-Type", "text/xml; charset=utf-8");
+            return new Response(200, gzip(body)).header("Content-Type", "text/xml; charset=utf-8")
+                                                .header("Content-Encoding", "gzip");
+        }
+
+    }
+
+    interface Handler {
+        /**
+         * @return the response to send
+         * @throws IOException to close the connection without a response
+         */
+        Response handle(Request request) throws IOException;
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Handler mHandler;
+    private final List<Request> mRequests = Collections.synchronizedList(new ArrayList<Request>());
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private final List<Socket> mSockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+    TestHttpServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "TestHttpServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @param pathAndQuery e.g. "/publicXMLFeed?command=routeList&a=ttc"
+     */
+    URL url(String pathAndQuery) throws IOException {
+        return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), pathAndQuery);
+    }
+
+    List<Request> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<Request>(mRequests);
+        }
+    }
+
+    int getRequestCount() {
+        return mRequests.size();
+    }
+
+    int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    void close() throws IOException {
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets)
+                socket.close();
+        }
+    }
+
+    static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+            mConnections.incrementAndGet();
+            mSockets.add(socket);
+            Thread connection = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "TestHttpServer connection");
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            Request request;
+            while ((request = readRequest(in)) != null) {
+                mRequests.add(request);
+                Response response = mHandler.handle(request);
+                writeResponse(out, response);
+                if ("close".equalsIgnoreCase(response.headers.get("Connection")))
+                    break;
+            }
+        } catch (SocketException e) {
+            // Closed by the client or by close()
+        } catch (IOException e) {
+            // Dropped by the handler, or by the client
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * @return the next request on the connection, or null at its end; request bodies are not supported
+     */
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null)
+            return null;
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+        }
+        String[] parts = requestLine.split(" ");
+        return new Request(parts.length > 1 ? parts[1] : "/", headers);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n')
+                return line.toString();
+            if (b != '\r')
+                line.append((char) b);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static void writeResponse(OutputStream out, Response response) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.status).append(' ').append(reason(response.status)).append("\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet())
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        int length = response.body != null ? response.body.length : 0;
+        head.append("Content-Length: ").append(length).append("\r\n\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (length > 0)
+            out.write(response.body);
+        out.flush();
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 304: return "Not Modified";
+            case 404: return "Not Found";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status";
+        }
+    }
+
+}
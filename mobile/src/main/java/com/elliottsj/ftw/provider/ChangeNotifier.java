@@ -0,0 +1,115 @@
+package com.elliottsj.ftw.provider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers NextbusProvider change notifications, collapsing bursts of changes into one notification per uri.
+ *
+ * Changed uris are collected for WINDOW_MILLIS after the first change and then notified together. A uri whose
+ * ancestor is also pending is dropped, since notifying a uri reaches every observer of its subtree.
+ *
+ * Provider cursors observe only their own uri (see {@link ExactUriCursor}), so a change is reported at the uris of
+ * the queries it affects: storing a route's configuration notifies "agencies/ttc/routes/506" and the agency's
+ * search and nearby stops, but not the agency's route list.
+ */
+class ChangeNotifier {
+
+    static final long WINDOW_MILLIS = 100;
+
+    private static ChangeNotifier sInstance;
+
+    private final ContentResolver mResolver;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Set<Uri> mPending = new HashSet<Uri>();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private ChangeNotifier(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    static synchronized ChangeNotifier get(Context context) {
+        if (sInstance == null)
+            sInstance = new ChangeNotifier(context.getApplicationContext().getContentResolver());
+        return sInstance;
+    }
+
+    /**
+     * Notify observers of a uri and its subtree once the current window ends.
+     */
+    synchronized void notifyChange(Uri uri) {
+        if (mPending.isEmpty())
+            mExecutor.schedule(mFlush, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        mPending.add(uri.buildUpon().clearQuery().build());
+    }
+
+    /**
+     * Notify the queries affected by storing an agency's routes: its route list and its search results, and, since
+     * routes no longer served are deleted with their directions and stops, its stops.
+     *
+     * @param savedStopsChanged whether the saved stops changed too, e.g. the title of a saved stop's route
+     */
+    void notifyRoutesStored(String agencyTag, boolean savedStopsChanged) {
+        notifyChange(agencyUri(agencyTag, "routes"));
+        notifyChange(agencyUri(agencyTag, "search"));
+        notifyChange(agencyUri(agencyTag, "stops"));
+        if (savedStopsChanged)
+            notifyChange(NextbusProvider.savedStopUri());
+    }
+
+    /**
+     * Notify the queries affected by storing a route's directions and stops: the route's subtree, and the agency's
+     * search results and stops, which include nearby stops.
+     *
+     * @param savedStopsChanged whether the saved stops changed too, e.g. a saved stop's title or direction
+     */
+    void notifyRouteConfigStored(String agencyTag, String routeTag, boolean savedStopsChanged) {
+        notifyChange(agencyUri(agencyTag, "routes/" + routeTag));
+        notifyChange(agencyUri(agencyTag, "search"));
+        notifyChange(agencyUri(agencyTag, "stops"));
+        if (savedStopsChanged)
+            notifyChange(NextbusProvider.savedStopUri());
+    }
+
+    private static Uri agencyUri(String agencyTag, String path) {
+        return Uri.withAppendedPath(NextbusProvider.CONTENT_URI, "agencies/" + agencyTag + "/" + path);
+    }
+
+    private void flush() {
+        List<Uri> uris;
+        synchronized (this) {
+            uris = new ArrayList<Uri>(mPending);
+            mPending.clear();
+        }
+        for (Uri uri : uris) {
+            if (!hasPendingAncestor(uris, uri))
+                mResolver.notifyChange(uri, null, false);
+        }
+    }
+
+    private static boolean hasPendingAncestor(List<Uri> uris, Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        for (Uri other : uris) {
+            List<String> otherSegments = other.getPathSegments();
+            if (otherSegments.size() < segments.size() && segments.subList(0, otherSegments.size()).equals(otherSegments))
+                return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.elliottsj.ftw.provider;
+
+import android.content.ContentResolver;
+import android.database.ContentObservable;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+
+/**
+ * A cursor which is notified of changes to its notification uri or an ancestor of it, but not of changes to its
+ * descendants. Cursor#setNotificationUri also reports changes to descendants, which would reload an agency's route
+ * list whenever the configuration of one of its routes is stored.
+ */
+class ExactUriCursor extends CursorWrapper {
+
+    private final ContentObservable mContentObservable = new ContentObservable();
+    private ContentResolver mResolver;
+    private ContentObserver mSelfObserver;
+    private Uri mNotifyUri;
+    private boolean mClosed;
+
+    ExactUriCursor(Cursor cursor) {
+        super(cursor);
+    }
+
+    @Override
+    public void setNotificationUri(ContentResolver resolver, Uri notifyUri) {
+        synchronized (mContentObservable) {
+            unregisterSelfObserver();
+            mResolver = resolver;
+            mNotifyUri = notifyUri;
+            mSelfObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    mContentObservable.dispatchChange(selfChange);
+                }
+            };
+            resolver.registerContentObserver(notifyUri, false, mSelfObserver);
+        }
+    }
+
+    @Override
+    public Uri getNotificationUri() {
+        return mNotifyUri;
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+        mContentObservable.registerObserver(observer);
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+        // Like AbstractCursor, tolerate observers unregistering after the cursor was closed
+        if (!mClosed)
+            mContentObservable.unregisterObserver(observer);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        synchronized (mContentObservable) {
+            mClosed = true;
+            unregisterSelfObserver();
+            mContentObservable.unregisterAll();
+        }
+    }
+
+    private void unregisterSelfObserver() {
+        if (mSelfObserver != null) {
+            mResolver.unregisterContentObserver(mSelfObserver);
+            mSelfObserver = null;
+        }
+    }
+
+}
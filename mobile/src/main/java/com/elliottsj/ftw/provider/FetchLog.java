@@ -0,0 +1,148 @@
+package com.elliottsj.ftw.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records which levels of Nextbus data (the agency list, an agency's routes, a route's configuration) are fully
+ * stored and when each was last fetched from the network, so that missing data is fetched and stale data is
+ * refreshed in the background.
+ *
+ * Keys are provider paths, e.g. "agencies/ttc/routes" or "agencies/ttc/routes/506".
+ *
+ * The fetch_log table is mirrored in memory, so checking whether a level is stored does not touch the database.
+ * The mirror is loaded on first use and only updated once the transaction which stored the data has committed.
+ * A single instance is shared through {@link NextbusSQLiteHelper#getFetchLog()}.
+ */
+class FetchLog {
+
+    static final String TABLE = "fetch_log";
+    static final String COLUMN_KEY = "key";
+    static final String COLUMN_FETCHED_AT = "fetched_at";
+
+    static final String AGENCIES_KEY = "agencies";
+
+    private final NextbusSQLiteHelper mDbHelper;
+
+    // Mirror of the fetch_log table: (key -> fetched at); null until loaded
+    private Map<String, Long> mFetchedAt;
+
+    FetchLog(NextbusSQLiteHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL(String.format("CREATE TABLE IF NOT EXISTS %s (%s TEXT PRIMARY KEY, %s INTEGER NOT NULL)",
+                                 TABLE, COLUMN_KEY, COLUMN_FETCHED_AT));
+    }
+
+    static String routesKey(String agencyTag) {
+        return String.format("agencies/%s/routes", agencyTag);
+    }
+
+    static String routeConfigKey(String agencyTag, String routeTag) {
+        return String.format("agencies/%s/routes/%s", agencyTag, routeTag);
+    }
+
+    private synchronized Map<String, Long> getFetchedAtMap() {
+        if (mFetchedAt == null) {
+            Map<String, Long> fetchedAt = new HashMap<String, Long>();
+            Cursor cursor = mDbHelper.getReadableDatabase().query(TABLE, new String[] { COLUMN_KEY, COLUMN_FETCHED_AT },
+                                                                  null, null, null, null, null);
+            try {
+                while (cursor.moveToNext())
+                    fetchedAt.put(cursor.getString(0), cursor.getLong(1));
+            } finally {
+                cursor.close();
+            }
+            mFetchedAt = fetchedAt;
+        }
+        return mFetchedAt;
+    }
+
+    /**
+     * @param key a fetch log key
+     * @return the time in milliseconds at which the key was last fetched, or 0 if it never was
+     */
+    synchronized long getFetchedAt(String key) {
+        Long fetchedAt = getFetchedAtMap().get(key);
+        return fetchedAt != null ? fetchedAt : 0;
+    }
+
+    /**
+     * @param key a fetch log key
+     * @return true iff the data for the key has been stored completely at least once
+     */
+    synchronized boolean isStored(String key) {
+        return getFetchedAtMap().containsKey(key);
+    }
+
+    /**
+     * @param key a fetch log key
+     * @param ttlMillis maximum age of fresh data
+     * @return true iff the key was never fetched or was fetched longer than ttlMillis ago
+     */
+    boolean isStale(String key, long ttlMillis) {
+        return System.currentTimeMillis() - getFetchedAt(key) > ttlMillis;
+    }
+
+    /**
+     * Record that the given key was fetched now. Call inside the transaction which stores the fetched data, then
+     * pass the returned time to {@link #commit(String, long)} once the transaction has committed.
+     *
+     * @param db writable database
+     * @param key a fetch log key
+     * @return the recorded fetch time
+     */
+    static long markFetched(SQLiteDatabase db, String key) {
+        long fetchedAt = System.currentTimeMillis();
+        db.execSQL(String.format("INSERT OR REPLACE INTO %s (%s, %s) VALUES (?, ?)",
+                                 TABLE, COLUMN_KEY, COLUMN_FETCHED_AT),
+                   new Object[] { key, fetchedAt });
+        return fetchedAt;
+    }
+
+    /**
+     * Record that the data for the given key is no longer stored, e.g. the configuration of a route which was
+     * deleted. Call inside the transaction which deletes the data, then call {@link #commitCleared(String)} once the
+     * transaction has committed.
+     *
+     * @param db writable database
+     * @param key a fetch log key
+     */
+    static void clearFetched(SQLiteDatabase db, String key) {
+        db.delete(TABLE, COLUMN_KEY + " = ?", new String[] { key });
+    }
+
+    /**
+     * Update the in-memory mirror after a transaction which called {@link #markFetched(SQLiteDatabase, String)}
+     * has committed.
+     *
+     * @param key a fetch log key
+     * @param fetchedAt the time returned by markFetched
+     */
+    synchronized void commit(String key, long fetchedAt) {
+        getFetchedAtMap().put(key, fetchedAt);
+    }
+
+    /**
+     * Update the in-memory mirror after a transaction which called {@link #clearFetched(SQLiteDatabase, String)}
+     * has committed.
+     *
+     * @param key a fetch log key
+     */
+    synchronized void commitCleared(String key) {
+        getFetchedAtMap().remove(key);
+    }
+
+    /**
+     * Forget the in-memory mirror so that it is reloaded from the database on next use.
+     */
+    synchronized void reset() {
+        mFetchedAt = null;
+    }
+
+}
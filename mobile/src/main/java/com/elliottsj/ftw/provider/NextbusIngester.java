@@ -0,0 +1,466 @@
+package com.elliottsj.ftw.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.elliottsj.ftw.provider.model.SavedStop;
+
+import com.elliottsj.nextbus.domain.Agency;
+import com.elliottsj.nextbus.domain.Direction;
+import com.elliottsj.nextbus.domain.Geolocation;
+import com.elliottsj.nextbus.domain.Route;
+import com.elliottsj.nextbus.domain.Stop;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores routes and route configurations (directions and their stops) fetched from the network, each batch in a
+ * single transaction using compiled statements.
+ *
+ * Existing rows are matched by tag through in-memory tag -> id maps, so ingesting the same data again updates
+ * rows in place and keeps the ids referenced by saved stops. Routes and directions which are no longer in the
+ * fetched data are deleted, along with their direction stops and stops which no direction or saved stop refers to
+ * any more. Saved stops are never deleted: those of a dropped direction are moved to another direction of the
+ * route listing the same stop, and otherwise the direction and its route are kept for them. The search index and
+ * stop grid are updated in the same transaction.
+ */
+class NextbusIngester {
+
+    private static final String TAG = NextbusIngester.class.getSimpleName();
+
+    private final NextbusSQLiteHelper mDbHelper;
+
+    NextbusIngester(NextbusSQLiteHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Store the given routes for an agency, updating routes which are already stored.
+     *
+     * @param agency the stored agency which owns the routes
+     * @param routes routes fetched from the network
+     * @return true if the saved stops changed, e.g. the title of a saved stop's route
+     * @throws SQLException
+     */
+    boolean ingestRoutes(Agency agency, List<Route> routes) throws SQLException {
+        NextbusSchema schema = mDbHelper.getSchema();
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        TableWriter<Route> routeWriter = null;
+        SearchIndex searchIndex = null;
+        String fetchKey = FetchLog.routesKey(agency.getTag());
+        long fetchedAt;
+        Map<String, Long> routeIds;
+        List<Long> deletedDirectionIds = new ArrayList<Long>();
+        List<Long> deletedStopIds = new ArrayList<Long>();
+        List<String> droppedFetchKeys = new ArrayList<String>();
+        boolean savedStopsChanged;
+
+        // Immediate rather than exclusive, so that provider queries keep reading through WAL reader connections
+        db.beginTransactionNonExclusive();
+        try {
+            routeWriter = new TableWriter<Route>(db, NextbusSchema.tableInfo(mDbHelper.getRoutesDao()), "");
+            searchIndex = new SearchIndex(db, schema);
+            List<List<String>> savedStops = querySavedStops(db, schema);
+
+            long agencyId = idOf(mDbHelper.getAgenciesDao().extractId(agency));
+            routeIds = loadTagIds(db, schema.routes, Route.FIELD_ID, Route.FIELD_TAG, schema.routeAgencyColumn, agencyId);
+            Set<Long> removedRouteIds = new HashSet<Long>(routeIds.values());
+
+            for (Route route : routes) {
+                route.setAgency(agency);
+                Long routeId = routeIds.get(route.getTag());
+                if (routeId != null) {
+                    routeWriter.assignId(route, routeId);
+                    routeWriter.update(route);
+                } else {
+                    routeId = routeWriter.insert(route);
+                    routeIds.put(route.getTag(), routeId);
+                }
+                removedRouteIds.remove(routeId);
+                searchIndex.indexRoute(routeId);
+            }
+
+            if (!removedRouteIds.isEmpty()) {
+                // A route added again later must have its configuration fetched again
+                for (Map.Entry<String, Long> entry : routeIds.entrySet()) {
+                    if (removedRouteIds.contains(entry.getValue())) {
+                        String routeConfigKey = FetchLog.routeConfigKey(agency.getTag(), entry.getKey());
+                        FetchLog.clearFetched(db, routeConfigKey);
+                        droppedFetchKeys.add(routeConfigKey);
+                    }
+                }
+
+                // Routes dropped by the agency, except those with a direction kept for saved stops
+                deletedDirectionIds.addAll(deleteDirections(db, schema, queryIds(db, String.format(
+                        "SELECT %s FROM %s WHERE %s IN %s",
+                        Direction.FIELD_ID, schema.directions, schema.directionRouteColumn, idList(removedRouteIds)))));
+                removedRouteIds.removeAll(queryIds(db, String.format(
+                        "SELECT DISTINCT %s FROM %s WHERE %s IN %s",
+                        schema.directionRouteColumn, schema.directions, schema.directionRouteColumn,
+                        idList(removedRouteIds))));
+                if (!removedRouteIds.isEmpty()) {
+                    String routeIdList = idList(removedRouteIds);
+                    db.execSQL(String.format("DELETE FROM %s WHERE docid IN %s",
+                                             SearchIndex.ROUTES_TABLE, routeIdList));
+                    db.execSQL(String.format("DELETE FROM %s WHERE %s IN %s",
+                                             schema.routes, Route.FIELD_ID, routeIdList));
+                }
+                deletedStopIds.addAll(deleteUnlistedStops(db, schema, agencyId));
+                Log.i(TAG, String.format("Deleted %d routes of %s which are no longer served",
+                                         removedRouteIds.size(), agency.getTag()));
+            }
+
+            savedStopsChanged = !savedStops.equals(querySavedStops(db, schema));
+            fetchedAt = FetchLog.markFetched(db, fetchKey);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (routeWriter != null) routeWriter.close();
+            if (searchIndex != null) searchIndex.close();
+        }
+
+        // Only reached once the transaction committed. Invalidating earlier would let a reader cache the rows as
+        // they were before the commit again, and leave them cached for good
+        NextbusObjectCache objectCache = mDbHelper.getObjectCache();
+        for (Long routeId : routeIds.values())
+            objectCache.remove(Route.class, routeId.intValue());
+        for (Long directionId : deletedDirectionIds)
+            objectCache.remove(Direction.class, directionId.intValue());
+        for (Long stopId : deletedStopIds)
+            objectCache.remove(Stop.class, stopId.intValue());
+        for (String droppedFetchKey : droppedFetchKeys)
+            mDbHelper.getFetchLog().commitCleared(droppedFetchKey);
+        mDbHelper.getFetchLog().commit(fetchKey, fetchedAt);
+        return savedStopsChanged;
+    }
+
+    /**
+     * Store the given directions and stops for a route, replacing the stop lists of directions already stored.
+     *
+     * @param agency the stored agency which owns the route
+     * @param route the stored route
+     * @param directions directions fetched from the network, with their stops
+     * @return true if the saved stops changed, e.g. the title of a saved stop or its direction
+     * @throws SQLException
+     */
+    boolean ingest(Agency agency, Route route, List<Direction> directions) throws SQLException {
+        NextbusSchema schema = mDbHelper.getSchema();
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long startTime = System.nanoTime();
+        int stopCount = 0;
+        String fetchKey = FetchLog.routeConfigKey(agency.getTag(), route.getTag());
+        long fetchedAt;
+        Map<String, Long> directionIds;
+        Map<String, Long> stopIds;
+        Map<Long, Long> stopGeolocationIds;
+        Set<String> writtenStopTags = new HashSet<String>();
+        Set<Long> removedDirectionIds;
+        List<Long> deletedStopIds;
+        List<Long> deletedDirectionIds;
+        boolean savedStopsChanged;
+
+        TableWriter<Direction> directionWriter = null;
+        TableWriter<Stop> stopWriter = null;
+        TableWriter<Geolocation> geolocationWriter = null;
+        SQLiteStatement stopIdStatement = null;
+        SQLiteStatement deleteGeolocationStatement = null;
+        SQLiteStatement clearDirectionStopsStatement = null;
+        SQLiteStatement directionStopStatement = null;
+        SearchIndex searchIndex = null;
+        StopGrid stopGrid = null;
+
+        db.beginTransactionNonExclusive();
+        try {
+            directionWriter = new TableWriter<Direction>(db, NextbusSchema.tableInfo(mDbHelper.getDirectionsDao()), "");
+            stopWriter = new TableWriter<Stop>(db, NextbusSchema.tableInfo(mDbHelper.getStopsDao()), "OR IGNORE");
+            geolocationWriter = new TableWriter<Geolocation>(db, NextbusSchema.tableInfo(mDbHelper.getGeolocationsDao()),
+                                                             "");
+            searchIndex = new SearchIndex(db, schema);
+            stopGrid = new StopGrid(db, schema);
+            stopIdStatement = db.compileStatement(String.format(
+                    "SELECT %s FROM %s WHERE %s = ? AND %s = ?",
+                    Stop.FIELD_ID, schema.stops, schema.stopAgencyColumn, Stop.FIELD_TAG));
+            deleteGeolocationStatement = db.compileStatement(String.format(
+                    "DELETE FROM %s WHERE %s = ?", schema.geolocations, schema.geolocationIdColumn));
+            clearDirectionStopsStatement = db.compileStatement(String.format(
+                    "DELETE FROM %s WHERE %s = ?",
+                    schema.directionStops, schema.directionStopDirectionColumn));
+            directionStopStatement = db.compileStatement(String.format(
+                    "INSERT OR IGNORE INTO %s (%s, %s) VALUES (?, ?)",
+                    schema.directionStops, schema.directionStopDirectionColumn, schema.directionStopStopColumn));
+
+            long agencyId = idOf(mDbHelper.getAgenciesDao().extractId(agency));
+            long routeId = idOf(mDbHelper.getRoutesDao().extractId(route));
+            directionIds = loadTagIds(db, schema.directions, Direction.FIELD_ID, Direction.FIELD_TAG,
+                                      schema.directionRouteColumn, routeId);
+            stopIds = loadTagIds(db, schema.stops, Stop.FIELD_ID, Stop.FIELD_TAG, schema.stopAgencyColumn, agencyId);
+            stopGeolocationIds = loadGeolocationIds(db, schema, agencyId);
+            removedDirectionIds = new HashSet<Long>(directionIds.values());
+            List<List<String>> savedStops = querySavedStops(db, schema);
+
+            for (Direction direction : directions) {
+                direction.setRoute(route);
+                Long directionId = directionIds.get(direction.getTag());
+                if (directionId != null) {
+                    // Direction already stored; update it and replace its stop list
+                    directionWriter.assignId(direction, directionId);
+                    directionWriter.update(direction);
+                    clearDirectionStopsStatement.bindLong(1, directionId);
+                    clearDirectionStopsStatement.executeUpdateDelete();
+                } else {
+                    directionId = directionWriter.insert(direction);
+                    directionIds.put(direction.getTag(), directionId);
+                }
+                removedDirectionIds.remove(directionId);
+
+                for (Stop stop : direction.getStops()) {
+                    stop.setAgency(agency);
+                    Long stopId = stopIds.get(stop.getTag());
+                    if (stopId != null) {
+                        stopWriter.assignId(stop, stopId);
+                        // Stops are shared between directions; only write each one once per batch
+                        if (writtenStopTags.add(stop.getTag())) {
+                            // Update the stored geolocation in place, since the stop writer would create another
+                            Long geolocationId = stopGeolocationIds.get(stopId);
+                            if (geolocationId != null) {
+                                if (stop.getGeolocation() != null) {
+                                    geolocationWriter.assignId(stop.getGeolocation(), geolocationId);
+                                    geolocationWriter.update(stop.getGeolocation());
+                                } else {
+                                    deleteRow(deleteGeolocationStatement, geolocationId);
+                                }
+                            }
+                            stopWriter.update(stop);
+                            searchIndex.indexStop(stopId);
+                            stopGrid.indexStop(stopId);
+                        }
+                    } else {
+                        stopId = stopWriter.insert(stop);
+                        if (stopId == -1) {
+                            // Ignored by the unique (agency, tag) index: the stop is stored but was not in the map
+                            stopId = queryStopId(stopIdStatement, agencyId, stop.getTag());
+                            stopWriter.assignId(stop, stopId);
+                            // The geolocation created for the ignored row belongs to no stop
+                            if (stop.getGeolocation() != null)
+                                deleteRow(deleteGeolocationStatement,
+                                          mDbHelper.getGeolocationsDao().extractId(stop.getGeolocation()));
+                        }
+                        stopIds.put(stop.getTag(), stopId);
+                        writtenStopTags.add(stop.getTag());
+                        searchIndex.indexStop(stopId);
+                        stopGrid.indexStop(stopId);
+                    }
+
+                    directionStopStatement.bindLong(1, directionId);
+                    directionStopStatement.bindLong(2, stopId);
+                    directionStopStatement.executeInsert();
+                    stopCount++;
+                }
+            }
+
+            // Directions dropped from the route, and stops which no direction lists any more
+            deletedDirectionIds = deleteDirections(db, schema, removedDirectionIds);
+            deletedStopIds = deleteUnlistedStops(db, schema, agencyId);
+
+            savedStopsChanged = !savedStops.equals(querySavedStops(db, schema));
+            fetchedAt = FetchLog.markFetched(db, fetchKey);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (directionWriter != null) directionWriter.close();
+            if (stopWriter != null) stopWriter.close();
+            if (geolocationWriter != null) geolocationWriter.close();
+            if (stopIdStatement != null) stopIdStatement.close();
+            if (deleteGeolocationStatement != null) deleteGeolocationStatement.close();
+            if (clearDirectionStopsStatement != null) clearDirectionStopsStatement.close();
+            if (directionStopStatement != null) directionStopStatement.close();
+            if (searchIndex != null) searchIndex.close();
+            if (stopGrid != null) stopGrid.close();
+        }
+
+        // Cached directions and stops no longer match the committed rows
+        NextbusObjectCache objectCache = mDbHelper.getObjectCache();
+        for (Long directionId : directionIds.values())
+            objectCache.remove(Direction.class, directionId.intValue());
+        for (String stopTag : writtenStopTags)
+            objectCache.remove(Stop.class, stopIds.get(stopTag).intValue());
+        for (Long stopId : deletedStopIds)
+            objectCache.remove(Stop.class, stopId.intValue());
+        mDbHelper.getFetchLog().commit(fetchKey, fetchedAt);
+
+        Log.i(TAG, String.format("Stored %d directions and %d direction stops for route %s in %d ms; deleted %d" +
+                                 " directions and %d stops",
+                                 directions.size(), stopCount, route.getTag(),
+                                 (System.nanoTime() - startTime) / 1000000,
+                                 deletedDirectionIds.size(), deletedStopIds.size()));
+        return savedStopsChanged;
+    }
+
+    /**
+     * Delete directions no longer served along with their direction stops. Their saved stops are moved to another
+     * direction of the same route which lists the same stop, e.g. the direction which replaced a detour; a direction
+     * which still has saved stops after that is kept, without its direction stops.
+     *
+     * @return ids of the deleted directions
+     */
+    private static List<Long> deleteDirections(SQLiteDatabase db, NextbusSchema schema, Collection<Long> directionIds) {
+        if (directionIds.isEmpty())
+            return new ArrayList<Long>();
+        String directionIdList = idList(directionIds);
+        String replacementId = String.format(
+                "(SELECT ds.%1$s FROM %2$s AS ds JOIN %3$s AS d ON d.%4$s = ds.%1$s" +
+                " WHERE ds.%5$s = %6$s.%7$s AND ds.%1$s NOT IN %8$s" +
+                " AND d.%9$s = (SELECT %9$s FROM %3$s WHERE %4$s = %6$s.%10$s) ORDER BY ds.%1$s LIMIT 1)",
+                schema.directionStopDirectionColumn, schema.directionStops, schema.directions, Direction.FIELD_ID,
+                schema.directionStopStopColumn, schema.savedStops, SavedStop.FIELD_STOP_ID, directionIdList,
+                schema.directionRouteColumn, SavedStop.FIELD_DIRECTION_ID);
+        // OR IGNORE leaves a saved stop where it is if the stop is already saved in the other direction
+        db.execSQL(String.format("UPDATE OR IGNORE %1$s SET %2$s = COALESCE(%3$s, %2$s) WHERE %2$s IN %4$s",
+                                 schema.savedStops, SavedStop.FIELD_DIRECTION_ID, replacementId, directionIdList));
+
+        db.execSQL(String.format("DELETE FROM %s WHERE %s IN %s",
+                                 schema.directionStops, schema.directionStopDirectionColumn, directionIdList));
+        List<Long> deletedIds = new ArrayList<Long>(directionIds);
+        deletedIds.removeAll(queryIds(db, String.format("SELECT DISTINCT %s FROM %s WHERE %s IN %s",
+                                                        SavedStop.FIELD_DIRECTION_ID, schema.savedStops,
+                                                        SavedStop.FIELD_DIRECTION_ID, directionIdList)));
+        if (!deletedIds.isEmpty())
+            db.execSQL(String.format("DELETE FROM %s WHERE %s IN %s",
+                                     schema.directions, Direction.FIELD_ID, idList(deletedIds)));
+        return deletedIds;
+    }
+
+    /**
+     * Delete an agency's stops which are neither listed by a direction nor saved, along with their search index,
+     * stop grid and geolocation rows.
+     *
+     * @return ids of the deleted stops
+     */
+    private static List<Long> deleteUnlistedStops(SQLiteDatabase db, NextbusSchema schema, long agencyId) {
+        List<Long> stopIds = queryIds(db, String.format(
+                "SELECT %1$s FROM %2$s WHERE %3$s = %4$d AND %1$s NOT IN (SELECT %5$s FROM %6$s)" +
+                " AND %1$s NOT IN (SELECT %7$s FROM %8$s)",
+                Stop.FIELD_ID, schema.stops, schema.stopAgencyColumn, agencyId,
+                schema.directionStopStopColumn, schema.directionStops, SavedStop.FIELD_STOP_ID, schema.savedStops));
+        if (stopIds.isEmpty())
+            return stopIds;
+        String stopIdList = idList(stopIds);
+        db.execSQL(String.format("DELETE FROM %s WHERE docid IN %s", SearchIndex.STOPS_TABLE, stopIdList));
+        db.execSQL(String.format("DELETE FROM %s WHERE %s IN %s", StopGrid.TABLE, StopGrid.COLUMN_STOP, stopIdList));
+        db.execSQL(String.format("DELETE FROM %s WHERE %s IN (SELECT %s FROM %s WHERE %s IN %s)",
+                                 schema.geolocations, schema.geolocationIdColumn,
+                                 schema.stopGeolocationColumn, schema.stops, Stop.FIELD_ID, stopIdList));
+        db.execSQL(String.format("DELETE FROM %s WHERE %s IN %s", schema.stops, Stop.FIELD_ID, stopIdList));
+        return stopIds;
+    }
+
+    /**
+     * @return the saved stops as the provider lists them, in row order, to tell whether an ingest changed them
+     */
+    private static List<List<String>> querySavedStops(SQLiteDatabase db, NextbusSchema schema) {
+        List<List<String>> rows = new ArrayList<List<String>>();
+        Cursor cursor = NextbusProvider.savedStopsQueryBuilder(schema).query(
+                db, NextbusProvider.SAVED_STOPS_CURSOR_COLUMNS, null, null, null, null, "ss." + SavedStop.FIELD_ID);
+        try {
+            while (cursor.moveToNext()) {
+                List<String> row = new ArrayList<String>(cursor.getColumnCount());
+                for (int i = 0; i < cursor.getColumnCount(); i++)
+                    row.add(cursor.getString(i));
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private static List<Long> queryIds(SQLiteDatabase db, String sql) {
+        List<Long> ids = new ArrayList<Long>();
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext())
+                ids.add(cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * @return the ids as a parenthesized SQL list, e.g. "(3, 5, 8)"
+     */
+    private static String idList(Collection<Long> ids) {
+        StringBuilder list = new StringBuilder("(");
+        for (Long id : ids)
+            list.append(list.length() == 1 ? "" : ", ").append(id);
+        return list.append(')').toString();
+    }
+
+    /**
+     * Load a map of (tag -> id) for the rows of a table which belong to the given parent row.
+     */
+    private static Map<String, Long> loadTagIds(SQLiteDatabase db, String table, String idColumn, String tagColumn,
+                                                String parentColumn, long parentId) {
+        Map<String, Long> tagIds = new HashMap<String, Long>();
+        Cursor cursor = db.rawQuery(String.format("SELECT %s, %s FROM %s WHERE %s = ?",
+                                                  idColumn, tagColumn, table, parentColumn),
+                                    new String[] { Long.toString(parentId) });
+        try {
+            while (cursor.moveToNext())
+                tagIds.put(cursor.getString(1), cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+        return tagIds;
+    }
+
+    /**
+     * Load a map of (stop id -> geolocation id) for an agency's stops which have a geolocation.
+     */
+    private static Map<Long, Long> loadGeolocationIds(SQLiteDatabase db, NextbusSchema schema, long agencyId) {
+        Map<Long, Long> geolocationIds = new HashMap<Long, Long>();
+        Cursor cursor = db.rawQuery(String.format("SELECT %s, %s FROM %s WHERE %s = ? AND %s IS NOT NULL",
+                                                  Stop.FIELD_ID, schema.stopGeolocationColumn, schema.stops,
+                                                  schema.stopAgencyColumn, schema.stopGeolocationColumn),
+                                    new String[] { Long.toString(agencyId) });
+        try {
+            while (cursor.moveToNext())
+                geolocationIds.put(cursor.getLong(0), cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+        return geolocationIds;
+    }
+
+    private static void deleteRow(SQLiteStatement deleteStatement, long id) {
+        deleteStatement.bindLong(1, id);
+        deleteStatement.executeUpdateDelete();
+    }
+
+    private static long queryStopId(SQLiteStatement stopIdStatement, long agencyId, String stopTag) throws SQLException {
+        stopIdStatement.bindLong(1, agencyId);
+        stopIdStatement.bindString(2, stopTag);
+        try {
+            return stopIdStatement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            throw new SQLException("Stop " + stopTag + " was neither inserted nor found", e);
+        }
+    }
+
+    private static long idOf(Integer id) throws SQLException {
+        if (id == null)
+            throw new SQLException("Cannot ingest a route configuration for an object which is not stored");
+        return id;
+    }
+
+}
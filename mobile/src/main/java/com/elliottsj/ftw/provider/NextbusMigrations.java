@@ -0,0 +1,247 @@
+package com.elliottsj.ftw.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.elliottsj.ftw.provider.model.SavedStop;
+
+import com.elliottsj.nextbus.domain.Agency;
+import com.elliottsj.nextbus.domain.Direction;
+import com.elliottsj.nextbus.domain.Route;
+import com.elliottsj.nextbus.domain.Stop;
+
+import java.sql.SQLException;
+
+/**
+ * Incremental schema migrations for nextbus.db.
+ *
+ * Tables are created by OrmLite at BASE_VERSION; each later version is reached by applying its migration step,
+ * so upgrades keep saved stops and cached route configurations. To change the schema, bump
+ * {@link NextbusSQLiteHelper#DATABASE_VERSION} and append a step to MIGRATIONS.
+ */
+class NextbusMigrations {
+
+    private static final String TAG = NextbusMigrations.class.getSimpleName();
+
+    /**
+     * The schema version created by OrmLite's TableUtils. Databases older than this are recreated.
+     */
+    static final int BASE_VERSION = 3;
+
+    abstract static class Migration {
+
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
+
+        /**
+         * Upgrade the database from (version - 1) to version. Called inside a transaction.
+         */
+        abstract void apply(SQLiteDatabase db, NextbusSchema schema) throws SQLException;
+
+    }
+
+    private static final Migration[] MIGRATIONS = {
+            new Migration(4) {
+                @Override
+                void apply(SQLiteDatabase db, NextbusSchema schema) {
+                    // Index the tag lookups made by every join in NextbusQueryBuilderFactory
+                    createIndex(db, false, schema.agencies, Agency.FIELD_TAG);
+                    createIndex(db, false, schema.routes, schema.routeAgencyColumn, Route.FIELD_TAG);
+                    createIndex(db, false, schema.directions, schema.directionRouteColumn, Direction.FIELD_TAG);
+                    createIndex(db, false, schema.stops, schema.stopAgencyColumn, Stop.FIELD_TAG);
+
+                    // Older versions could store a direction's stops twice; remove duplicates before indexing
+                    db.execSQL(String.format("DELETE FROM %1$s WHERE rowid NOT IN (SELECT MIN(rowid) FROM %1$s GROUP BY %2$s, %3$s)",
+                                             schema.directionStops,
+                                             schema.directionStopDirectionColumn,
+                                             schema.directionStopStopColumn));
+                    createIndex(db, true, schema.directionStops,
+                                schema.directionStopDirectionColumn, schema.directionStopStopColumn);
+                }
+            },
+            new Migration(5) {
+                @Override
+                void apply(SQLiteDatabase db, NextbusSchema schema) {
+                    FetchLog.createTable(db);
+                }
+            },
+            new Migration(6) {
+                @Override
+                void apply(SQLiteDatabase db, NextbusSchema schema) {
+                    // The fetch log now decides whether data is stored at all; record the data stored before it
+                    // existed with a fetch time of 0 so that it is served and then refreshed in the background
+                    db.execSQL(String.format("INSERT OR IGNORE INTO %s (%s, %s) SELECT '%s', 0 WHERE EXISTS (SELECT 1 FROM %s)",
+                                             FetchLog.TABLE, FetchLog.COLUMN_KEY, FetchLog.COLUMN_FETCHED_AT,
+                                             FetchLog.AGENCIES_KEY, schema.agencies));
+                    db.execSQL(String.format("INSERT OR IGNORE INTO %1$s (%2$s, %3$s) " +
+                                             "SELECT 'agencies/' || a.%4$s || '/routes', 0 FROM %5$s a " +
+                                             "WHERE EXISTS (SELECT 1 FROM %6$s r WHERE r.%7$s = a.%8$s)",
+                                             FetchLog.TABLE, FetchLog.COLUMN_KEY, FetchLog.COLUMN_FETCHED_AT,
+                                             Agency.FIELD_TAG, schema.agencies,
+                                             schema.routes, schema.routeAgencyColumn, Agency.FIELD_ID));
+                    db.execSQL(String.format("INSERT OR IGNORE INTO %1$s (%2$s, %3$s) " +
+                                             "SELECT 'agencies/' || a.%4$s || '/routes/' || r.%5$s, 0 " +
+                                             "FROM %6$s r JOIN %7$s a ON r.%8$s = a.%9$s " +
+                                             "WHERE EXISTS (SELECT 1 FROM %10$s d WHERE d.%11$s = r.%12$s)",
+                                             FetchLog.TABLE, FetchLog.COLUMN_KEY, FetchLog.COLUMN_FETCHED_AT,
+                                             Agency.FIELD_TAG, Route.FIELD_TAG,
+                                             schema.routes, schema.agencies, schema.routeAgencyColumn, Agency.FIELD_ID,
+                                             schema.directions, schema.directionRouteColumn, Route.FIELD_ID));
+                }
+            },
+            new Migration(7) {
+                @Override
+                void apply(SQLiteDatabase db, NextbusSchema schema) {
+                    SearchIndex.createTables(db);
+                    SearchIndex.rebuild(db, schema);
+                }
+            },
+            new Migration(8) {
+                @Override
+                void apply(SQLiteDatabase db, NextbusSchema schema) {
+                    StopGrid.createTable(db);
+                    StopGrid.rebuild(db, schema);
+                }
+            },
+            new Migration(9) {
+                @Override
+                void apply(SQLiteDatabase db, NextbusSchema schema) {
+                    // Saved stops are listed by position, then title; existing ones keep their title order
+                    if (!hasColumn(db, schema.savedStops, SavedStop.FIELD_POSITION))
+                        db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0",
+                                                 schema.savedStops, SavedStop.FIELD_POSITION));
+                }
+            },
+            new Migration(10) {
+                @Override
+                void apply(SQLiteDatabase db, NextbusSchema schema) {
+                    // Older versions stored a stop once for every direction listing it. Keep the first row of each
+                    // (agency, tag) and point the direction stops and saved stops of the others at it
+                    db.execSQL(String.format("CREATE TEMP TABLE duplicate_stops AS" +
+                                             " SELECT s.%1$s AS duplicate_id, k.survivor_id AS survivor_id FROM %2$s AS s" +
+                                             " JOIN (SELECT %3$s, %4$s, MIN(%1$s) AS survivor_id FROM %2$s" +
+                                             " GROUP BY %3$s, %4$s HAVING COUNT(*) > 1) AS k" +
+                                             " ON k.%3$s = s.%3$s AND k.%4$s = s.%4$s WHERE s.%1$s != k.survivor_id",
+                                             Stop.FIELD_ID, schema.stops, schema.stopAgencyColumn, Stop.FIELD_TAG));
+                    repointStops(db, schema.directionStops, schema.directionStopStopColumn);
+                    repointStops(db, schema.savedStops, SavedStop.FIELD_STOP_ID);
+
+                    String duplicateIds = "(SELECT duplicate_id FROM duplicate_stops)";
+                    db.execSQL(String.format("DELETE FROM %s WHERE %s IN %s",
+                                             StopGrid.TABLE, StopGrid.COLUMN_STOP, duplicateIds));
+                    db.execSQL(String.format("DELETE FROM %s WHERE docid IN %s", SearchIndex.STOPS_TABLE, duplicateIds));
+                    db.execSQL(String.format("DELETE FROM %1$s WHERE %2$s IN (SELECT %3$s FROM %4$s WHERE %5$s IN %6$s)" +
+                                             " AND %2$s NOT IN (SELECT %3$s FROM %4$s WHERE %5$s NOT IN %6$s" +
+                                             " AND %3$s IS NOT NULL)",
+                                             schema.geolocations, schema.geolocationIdColumn,
+                                             schema.stopGeolocationColumn, schema.stops, Stop.FIELD_ID, duplicateIds));
+                    db.execSQL(String.format("DELETE FROM %s WHERE %s IN %s", schema.stops, Stop.FIELD_ID, duplicateIds));
+                    db.execSQL("DROP TABLE duplicate_stops");
+
+                    // A unique index lets the ingester's INSERT OR IGNORE skip a stop which is already stored
+                    dropIndex(db, schema.stops, schema.stopAgencyColumn, Stop.FIELD_TAG);
+                    createIndex(db, true, schema.stops, schema.stopAgencyColumn, Stop.FIELD_TAG);
+                }
+            },
+            new Migration(11) {
+                @Override
+                void apply(SQLiteDatabase db, NextbusSchema schema) {
+                    // Older versions could save a stop twice; keep the first and let SavedStopWriter's
+                    // INSERT OR IGNORE rely on a unique index from now on
+                    db.execSQL(String.format("DELETE FROM %1$s WHERE %2$s NOT IN (SELECT MIN(%2$s) FROM %1$s GROUP BY %3$s, %4$s)",
+                                             schema.savedStops, SavedStop.FIELD_ID,
+                                             SavedStop.FIELD_STOP_ID, SavedStop.FIELD_DIRECTION_ID));
+                    createIndex(db, true, schema.savedStops, SavedStop.FIELD_STOP_ID, SavedStop.FIELD_DIRECTION_ID);
+                }
+            },
+            new Migration(12) {
+                @Override
+                void apply(SQLiteDatabase db, NextbusSchema schema) {
+                    // Older versions created a new geolocation whenever a stored stop was written again
+                    db.execSQL(String.format("DELETE FROM %s WHERE %s NOT IN (SELECT %s FROM %s WHERE %s IS NOT NULL)",
+                                             schema.geolocations, schema.geolocationIdColumn,
+                                             schema.stopGeolocationColumn, schema.stops, schema.stopGeolocationColumn));
+                }
+            },
+    };
+
+    /**
+     * Point the rows of a table which reference a duplicate stop at the stop kept in its place, deleting those
+     * which would then duplicate another row under a unique index. Used by the version 10 migration.
+     */
+    private static void repointStops(SQLiteDatabase db, String table, String stopColumn) {
+        db.execSQL(String.format("UPDATE OR IGNORE %1$s SET %2$s =" +
+                                 " (SELECT survivor_id FROM duplicate_stops WHERE duplicate_id = %1$s.%2$s)" +
+                                 " WHERE %2$s IN (SELECT duplicate_id FROM duplicate_stops)",
+                                 table, stopColumn));
+        db.execSQL(String.format("DELETE FROM %s WHERE %s IN (SELECT duplicate_id FROM duplicate_stops)",
+                                 table, stopColumn));
+    }
+
+    /**
+     * Apply every migration step after fromVersion, up to and including toVersion.
+     *
+     * @param db the database being created or upgraded
+     * @param schema resolved table and column names
+     * @param fromVersion current schema version of the database
+     * @param toVersion target schema version
+     * @throws SQLException
+     */
+    static void migrate(SQLiteDatabase db, NextbusSchema schema, int fromVersion, int toVersion) throws SQLException {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version > fromVersion && migration.version <= toVersion) {
+                Log.i(TAG, "Migrating nextbus.db to version " + migration.version);
+                migration.apply(db, schema);
+            }
+        }
+    }
+
+    /**
+     * Check whether a table has a column. Columns added to the domain classes already exist in databases created
+     * after the change, since OrmLite creates the tables before the migrations run.
+     */
+    static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameIndex)))
+                    return true;
+            }
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Create an index named after its table and columns, e.g. routes_agency_tag_idx.
+     */
+    static void createIndex(SQLiteDatabase db, boolean unique, String table, String... columns) {
+        StringBuilder columnList = new StringBuilder();
+        for (int i = 0; i < columns.length; i++)
+            columnList.append(i == 0 ? "" : ", ").append(columns[i]);
+        db.execSQL(String.format("CREATE %sINDEX IF NOT EXISTS %s ON %s (%s)",
+                                 unique ? "UNIQUE " : "", indexName(table, columns), table, columnList));
+    }
+
+    /**
+     * Drop an index created by {@link #createIndex(SQLiteDatabase, boolean, String, String...)}, e.g. to recreate
+     * it as a unique index.
+     */
+    static void dropIndex(SQLiteDatabase db, String table, String... columns) {
+        db.execSQL("DROP INDEX IF EXISTS " + indexName(table, columns));
+    }
+
+    static String indexName(String table, String... columns) {
+        StringBuilder name = new StringBuilder(table);
+        for (String column : columns)
+            name.append('_').append(column);
+        return name.append("_idx").toString();
+    }
+
+}
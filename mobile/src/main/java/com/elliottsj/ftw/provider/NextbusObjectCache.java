@@ -0,0 +1,196 @@
+package com.elliottsj.ftw.provider;
+
+import com.j256.ormlite.dao.ObjectCache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A thread-safe, per-class LRU object cache shared by the Nextbus DAOs.
+ *
+ * Each registered class gets its own capacity limit so that a burst of stops cannot evict the agencies and
+ * routes used on every lookup. Hit, miss and eviction counts are kept per class and can be read at runtime
+ * through {@link #getStats()}.
+ */
+public class NextbusObjectCache implements ObjectCache {
+
+    private static final int DEFAULT_CAPACITY = 100;
+
+    private final Map<Class<?>, Integer> mCapacities;
+    private final ConcurrentMap<Class<?>, ClassCache> mCaches = new ConcurrentHashMap<Class<?>, ClassCache>();
+
+    /**
+     * @param capacities maximum number of cached objects per class; unlisted classes get a default capacity
+     */
+    public NextbusObjectCache(Map<Class<?>, Integer> capacities) {
+        mCapacities = new HashMap<Class<?>, Integer>(capacities);
+    }
+
+    /**
+     * Counters for a single cached class.
+     */
+    public static class Stats {
+        public final int size;
+        public final int capacity;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+
+        Stats(int size, int capacity, long hits, long misses, long evictions) {
+            this.size = size;
+            this.capacity = capacity;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("size=%d/%d hits=%d misses=%d evictions=%d hitRate=%.2f",
+                                 size, capacity, hits, misses, evictions, hitRate());
+        }
+    }
+
+    /**
+     * LRU map for a single class. All access is synchronized on the instance.
+     */
+    private static class ClassCache extends LinkedHashMap<Object, Object> {
+        private final int capacity;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        ClassCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            if (size() > capacity) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private ClassCache getClassCache(Class<?> clazz) {
+        ClassCache cache = mCaches.get(clazz);
+        if (cache == null) {
+            Integer capacity = mCapacities.get(clazz);
+            ClassCache newCache = new ClassCache(capacity != null ? capacity : DEFAULT_CAPACITY);
+            cache = mCaches.putIfAbsent(clazz, newCache);
+            if (cache == null)
+                cache = newCache;
+        }
+        return cache;
+    }
+
+    @Override
+    public <T> void registerClass(Class<T> clazz) {
+        getClassCache(clazz);
+    }
+
+    @Override
+    public <T, ID> T get(Class<T> clazz, ID id) {
+        ClassCache cache = getClassCache(clazz);
+        synchronized (cache) {
+            Object object = cache.get(id);
+            if (object != null)
+                cache.hits++;
+            else
+                cache.misses++;
+            return clazz.cast(object);
+        }
+    }
+
+    @Override
+    public <T, ID> void put(Class<T> clazz, ID id, T data) {
+        ClassCache cache = getClassCache(clazz);
+        synchronized (cache) {
+            cache.put(id, data);
+        }
+    }
+
+    @Override
+    public <T, ID> void remove(Class<T> clazz, ID id) {
+        ClassCache cache = getClassCache(clazz);
+        synchronized (cache) {
+            cache.remove(id);
+        }
+    }
+
+    @Override
+    public <T, ID> T updateId(Class<T> clazz, ID oldId, ID newId) {
+        ClassCache cache = getClassCache(clazz);
+        synchronized (cache) {
+            Object object = cache.remove(oldId);
+            if (object != null)
+                cache.put(newId, object);
+            return clazz.cast(object);
+        }
+    }
+
+    @Override
+    public <T> void clear(Class<T> clazz) {
+        ClassCache cache = getClassCache(clazz);
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    @Override
+    public void clearAll() {
+        for (ClassCache cache : mCaches.values()) {
+            synchronized (cache) {
+                cache.clear();
+            }
+        }
+    }
+
+    @Override
+    public <T> int size(Class<T> clazz) {
+        ClassCache cache = getClassCache(clazz);
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    @Override
+    public int sizeAll() {
+        int size = 0;
+        for (ClassCache cache : mCaches.values()) {
+            synchronized (cache) {
+                size += cache.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get a snapshot of the counters for every registered class.
+     *
+     * @return a map of (class -> stats)
+     */
+    public Map<Class<?>, Stats> getStats() {
+        Map<Class<?>, Stats> stats = new HashMap<Class<?>, Stats>();
+        for (Map.Entry<Class<?>, ClassCache> entry : mCaches.entrySet()) {
+            ClassCache cache = entry.getValue();
+            synchronized (cache) {
+                stats.put(entry.getKey(), new Stats(cache.size(), cache.capacity,
+                                                    cache.hits, cache.misses, cache.evictions));
+            }
+        }
+        return stats;
+    }
+
+}
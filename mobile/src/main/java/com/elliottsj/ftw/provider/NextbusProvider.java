@@ -1,19 +1,25 @@
 package com.elliottsj.ftw.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.CursorLoader;
 import android.content.Loader;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.util.Log;
 
 import com.elliottsj.ftw.provider.model.SavedStop;
+import com.elliottsj.ftw.utilities.BandwidthGovernor;
+import com.elliottsj.ftw.utilities.ConditionalGetCache;
+import com.elliottsj.ftw.utilities.RpcMetrics;
 import com.j256.ormlite.android.apptools.OpenHelperManager;
 import com.j256.ormlite.stmt.DeleteBuilder;
 import com.j256.ormlite.stmt.QueryBuilder;
@@ -23,10 +29,17 @@ import com.elliottsj.nextbus.domain.Direction;
 import com.elliottsj.nextbus.domain.Route;
 import com.elliottsj.nextbus.domain.Stop;
 import com.elliottsj.nextbus.impl.NextbusService;
+import com.elliottsj.nextbus.service.ServiceException;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class NextbusProvider extends ContentProvider {
 
@@ -35,6 +48,34 @@ public class NextbusProvider extends ContentProvider {
     public static final String AUTHORITY = "com.elliottsj.ftw.provider";
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
+    /**
+     * Query parameters for paging through route, direction and stop lists, e.g.
+     * content://com.elliottsj.ftw.provider/agencies/ttc/routes/506/stops?limit=100&after=2351. Paged rows are
+     * ordered by _id; pass the _id of the last row of a page as "after" to get the next page.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    public static final String QUERY_PARAMETER_AFTER = "after";
+
+    /**
+     * Query parameter holding the search text for the agency search uri, e.g.
+     * content://com.elliottsj.ftw.provider/agencies/ttc/search?q=queen. The limit parameter caps the number of
+     * results, which defaults to DEFAULT_SEARCH_LIMIT.
+     */
+    public static final String QUERY_PARAMETER_QUERY = "q";
+    public static final long DEFAULT_SEARCH_LIMIT = 50;
+
+    /**
+     * Query parameters for the nearby stops uri, e.g.
+     * content://com.elliottsj.ftw.provider/agencies/ttc/stops/nearby?lat=43.66&lon=-79.40&radius=500&k=10.
+     * lat and lon are required; radius is in meters.
+     */
+    public static final String QUERY_PARAMETER_LATITUDE = "lat";
+    public static final String QUERY_PARAMETER_LONGITUDE = "lon";
+    public static final String QUERY_PARAMETER_RADIUS = "radius";
+    public static final String QUERY_PARAMETER_K = "k";
+    public static final double DEFAULT_NEARBY_RADIUS_METERS = 500;
+    public static final long DEFAULT_NEARBY_K = 10;
+
     public static final class SAVED_STOPS {
         public static final String COLUMN_AGENCY_TAG = "agency_tag";
         public static final String COLUMN_AGENCY_TITLE = "agency_title";
@@ -46,6 +87,7 @@ public class NextbusProvider extends ContentProvider {
         public static final String COLUMN_DIRECTION_TAG = "direction_tag";
         public static final String COLUMN_DIRECTION_TITLE = "direction_title";
         public static final String COLUMN_DIRECTION_NAME = "direction_name";
+        public static final String COLUMN_POSITION = "position";
     }
 
     public static final String[] SAVED_STOPS_CURSOR_COLUMNS =
@@ -58,7 +100,48 @@ public class NextbusProvider extends ContentProvider {
               SAVED_STOPS.COLUMN_ROUTE_SHORT_TITLE,
               SAVED_STOPS.COLUMN_DIRECTION_TAG,
               SAVED_STOPS.COLUMN_DIRECTION_TITLE,
-              SAVED_STOPS.COLUMN_DIRECTION_NAME };
+              SAVED_STOPS.COLUMN_DIRECTION_NAME,
+              SAVED_STOPS.COLUMN_POSITION };
+
+    /**
+     * Columns of agency search results. Result ids are unique across kinds: a route's id is its row id * 2 and
+     * a stop's id is its row id * 2 + 1.
+     */
+    public static final class SEARCH {
+        public static final String COLUMN_ID = "_id";
+        public static final String COLUMN_KIND = "kind";
+        public static final String COLUMN_TAG = "tag";
+        public static final String COLUMN_TITLE = "title";
+        public static final String COLUMN_SHORT_TITLE = "short_title";
+
+        public static final String KIND_ROUTE = "route";
+        public static final String KIND_STOP = "stop";
+    }
+
+    public static final String[] SEARCH_CURSOR_COLUMNS =
+            { SEARCH.COLUMN_ID,
+              SEARCH.COLUMN_KIND,
+              SEARCH.COLUMN_TAG,
+              SEARCH.COLUMN_TITLE,
+              SEARCH.COLUMN_SHORT_TITLE };
+
+    /**
+     * Columns of nearby stop results, besides the stop columns. Distances are in meters.
+     */
+    public static final class NEARBY_STOPS {
+        public static final String COLUMN_LATITUDE = "latitude";
+        public static final String COLUMN_LONGITUDE = "longitude";
+        public static final String COLUMN_DISTANCE = "distance";
+    }
+
+    public static final String[] NEARBY_STOPS_CURSOR_COLUMNS =
+            { Stop.FIELD_ID,
+              Stop.FIELD_TAG,
+              Stop.FIELD_TITLE,
+              Stop.FIELD_SHORT_TITLE,
+              NEARBY_STOPS.COLUMN_LATITUDE,
+              NEARBY_STOPS.COLUMN_LONGITUDE,
+              NEARBY_STOPS.COLUMN_DISTANCE };
 
     public static final String[] AGENCIES_CURSOR_COLUMNS =
             { Agency.FIELD_ID,
@@ -103,6 +186,9 @@ public class NextbusProvider extends ContentProvider {
         public static final int AGENCIES_ROUTES_DIRECTIONS_TAG = 13;
         public static final int AGENCIES_ROUTES_DIRECTIONS_STOPS = 14;
         public static final int AGENCIES_ROUTES_DIRECTIONS_STOPS_TAG = 15;
+        public static final int AGENCIES_SEARCH = 16;
+        public static final int AGENCIES_STOPS_NEARBY = 17;
+        public static final int METRICS = 18;
     }
 
     private NextbusQueryHelper mQueryHelper;
@@ -112,12 +198,18 @@ public class NextbusProvider extends ContentProvider {
     private SQLiteDatabase mDatabase;
     private NextbusQueryBuilderFactory mQueryBuilderFactory;
 
+    // Uris changed by the batch running on the current thread, notified once the batch commits
+    private final ThreadLocal<Set<Uri>> mBatchChangedUris = new ThreadLocal<Set<Uri>>();
+
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
         sUriMatcher.addURI(AUTHORITY, "saved-stops", URI_CODE.SAVED_STOPS);
+        sUriMatcher.addURI(AUTHORITY, "metrics", URI_CODE.METRICS);
         sUriMatcher.addURI(AUTHORITY, "agencies", URI_CODE.AGENCIES);
         sUriMatcher.addURI(AUTHORITY, "agencies/*", URI_CODE.AGENCIES_TAG);
+        sUriMatcher.addURI(AUTHORITY, "agencies/*/search", URI_CODE.AGENCIES_SEARCH);
+        sUriMatcher.addURI(AUTHORITY, "agencies/*/stops/nearby", URI_CODE.AGENCIES_STOPS_NEARBY);
         sUriMatcher.addURI(AUTHORITY, "agencies/*/routes", URI_CODE.AGENCIES_ROUTES);
         sUriMatcher.addURI(AUTHORITY, "agencies/*/routes/*", URI_CODE.AGENCIES_ROUTES_TAG);
         sUriMatcher.addURI(AUTHORITY, "agencies/*/routes/*/service-area", URI_CODE.AGENCIES_ROUTES_SERVICE_AREA);
@@ -149,43 +241,21 @@ public class NextbusProvider extends ContentProvider {
             case URI_CODE.SAVED_STOPS: {
                 // e.g. content://com.elliottsj.ftw.provider/saved-stops
                 try {
-                    MatrixCursor matrixCursor = new MatrixCursor(SAVED_STOPS_CURSOR_COLUMNS);
-
-                    // Add each saved stop to a MatrixCursor
-                    for (SavedStop savedStop : getHelper().getSavedStopsDao()) {
-                        // Refresh each of the foreign fields in the saved stop
-                        Stop stop = savedStop.getStop();
-                        getHelper().getStopsDao().refresh(stop);
-                        Agency agency = stop.getAgency();
-                        getHelper().getAgenciesDao().refresh(agency);
-                        Direction direction = savedStop.getDirection();
-                        getHelper().getDirectionsDao().refresh(direction);
-                        Route route = direction.getRoute();
-                        getHelper().getRoutesDao().refresh(route);
-
-                        // Add relevant fields to the cursor according to SAVED_STOPS_CURSOR_COLUMNS
-                        List<String> row = new ArrayList<String>(SAVED_STOPS_CURSOR_COLUMNS.length);
-                        row.add(agency.getTag());
-                        row.add(agency.getTitle());
-                        row.add(stop.getTag());
-                        row.add(stop.getTitle());
-                        row.add(route.getTag());
-                        row.add(route.getTitle());
-                        row.add(route.getShortTitle());
-                        row.add(direction.getTag());
-                        row.add(direction.getTitle());
-                        row.add(direction.getName());
-
-                        matrixCursor.addRow(row);
-                    }
-
-                    // Done loading saved stops; set the result cursor
-                    cursor = matrixCursor;
+                    // Join each saved stop with its stop, agency, direction and route in a single query
+                    SQLiteQueryBuilder queryBuilder = savedStopsQueryBuilder(getHelper().getSchema());
+                    cursor = queryBuilder.query(getHelper().getReadableDatabase(), projection, selection,
+                                                selectionArgs, null, null, sortOrder);
                 } catch (SQLException e) {
                     throw new RuntimeException(e);
                 }
                 break;
             }
+            case URI_CODE.METRICS: {
+                // e.g. content://com.elliottsj.ftw.provider/metrics
+                // One row per RPC endpoint; the projection is always RpcMetrics.CURSOR_COLUMNS
+                cursor = RpcMetrics.getInstance().newCursor();
+                break;
+            }
             case URI_CODE.AGENCIES: {
                 // e.g. content://com.elliottsj.ftw.provider/agencies
                 break;
@@ -194,6 +264,52 @@ public class NextbusProvider extends ContentProvider {
                 // e.g. content://com.elliottsj.ftw.provider/agencies/ttc
                 break;
             }
+            case URI_CODE.AGENCIES_SEARCH: {
+                // e.g. content://com.elliottsj.ftw.provider/agencies/ttc/search?q=queen
+                // Searches only stored routes and stops; the projection is always SEARCH_CURSOR_COLUMNS
+                pathSegments = uri.getPathSegments();
+                String text = uri.getQueryParameter(QUERY_PARAMETER_QUERY);
+                if (pathSegments != null && text != null) {
+                    String agencyTag = pathSegments.get(1);
+                    Long limit = getLongQueryParameter(uri, QUERY_PARAMETER_LIMIT);
+                    try {
+                        cursor = SearchIndex.search(getHelper().getReadableDatabase(), getHelper().getSchema(),
+                                                    agencyTag, text, limit != null ? limit : DEFAULT_SEARCH_LIMIT);
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                break;
+            }
+            case URI_CODE.AGENCIES_STOPS_NEARBY: {
+                // e.g. content://com.elliottsj.ftw.provider/agencies/ttc/stops/nearby?lat=43.66&lon=-79.40
+                // Searches only stored stops; the projection is always NEARBY_STOPS_CURSOR_COLUMNS
+                pathSegments = uri.getPathSegments();
+                Double latitude = getDoubleQueryParameter(uri, QUERY_PARAMETER_LATITUDE);
+                Double longitude = getDoubleQueryParameter(uri, QUERY_PARAMETER_LONGITUDE);
+                if (pathSegments != null && latitude != null && longitude != null) {
+                    String agencyTag = pathSegments.get(1);
+                    Double radius = getDoubleQueryParameter(uri, QUERY_PARAMETER_RADIUS);
+                    Long k = getLongQueryParameter(uri, QUERY_PARAMETER_K);
+                    if (radius == null)
+                        radius = DEFAULT_NEARBY_RADIUS_METERS;
+                    if (k == null)
+                        k = DEFAULT_NEARBY_K;
+                    // Queried on every location update, so answer from the in-memory index when it is loaded
+                    StopIndex index = StopIndex.get(getContext(), agencyTag);
+                    if (index != null) {
+                        cursor = index.nearby(latitude, longitude, radius, (int) Math.max(0, Math.min(k, index.size())));
+                    } else {
+                        try {
+                            cursor = StopGrid.nearby(getHelper().getReadableDatabase(), getHelper().getSchema(),
+                                                     agencyTag, latitude, longitude, radius, k);
+                        } catch (SQLException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+                break;
+            }
             case URI_CODE.AGENCIES_ROUTES: {
                 // e.g. content://com.elliottsj.ftw.provider/agencies/ttc/routes
                 pathSegments = uri.getPathSegments();
@@ -201,9 +317,9 @@ public class NextbusProvider extends ContentProvider {
                     String agencyTag = pathSegments.get(1);
                     try {
                         // Fetch routes from the network if necessary
-                        mQueryHelper.fetchRoutes(agencyTag);
-                        cursor = OrmUtil.cursorFromQueryBuilder(getQbFactory().routesQb(agencyTag),
-                                                                projection, selection, selectionArgs, sortOrder);
+                        fetchRoutes(agencyTag);
+                        cursor = listCursor(uri, getQbFactory().routesQb(agencyTag), Route.FIELD_ID,
+                                            projection, selection, selectionArgs, sortOrder);
                     } catch (SQLException e) {
                         throw new RuntimeException(e);
                     }
@@ -232,6 +348,23 @@ public class NextbusProvider extends ContentProvider {
             }
             case URI_CODE.AGENCIES_ROUTES_STOPS: {
                 // e.g. content://com.elliottsj.ftw.provider/agencies/ttc/routes/506/stops
+                pathSegments = uri.getPathSegments();
+                if (pathSegments != null) {
+                    String agencyTag = pathSegments.get(1);
+                    String routeTag = pathSegments.get(3);
+                    try {
+                        // Fetch directions & stops from the network if necessary
+                        fetchDirections(agencyTag, routeTag, null);
+                        // Stops served by several directions of the route are listed once
+                        if (selection == null && !isPaged(uri))
+                            cursor = getQbFactory().queryStopsCursor(agencyTag, routeTag, null, projection, sortOrder);
+                        else
+                            cursor = listCursor(uri, getQbFactory().stopsQb(agencyTag, routeTag, null).distinct(),
+                                                Stop.FIELD_ID, projection, selection, selectionArgs, sortOrder);
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
                 break;
             }
             case URI_CODE.AGENCIES_ROUTES_STOPS_TAG: {
@@ -246,9 +379,12 @@ public class NextbusProvider extends ContentProvider {
                     String routeTag = pathSegments.get(3);
                     try {
                         // Fetch directions & stops from the network if necessary
-                        mQueryHelper.fetchDirections(agencyTag, routeTag, null);
-                        cursor = OrmUtil.cursorFromQueryBuilder(getQbFactory().directionsQb(agencyTag, routeTag),
-                                                                projection, selection, selectionArgs, sortOrder);
+                        fetchDirections(agencyTag, routeTag, null);
+                        if (selection == null && !isPaged(uri))
+                            cursor = getQbFactory().queryDirectionsCursor(agencyTag, routeTag, projection, sortOrder);
+                        else
+                            cursor = listCursor(uri, getQbFactory().directionsQb(agencyTag, routeTag), Direction.FIELD_ID,
+                                                projection, selection, selectionArgs, sortOrder);
                     } catch (SQLException e) {
                         throw new RuntimeException(e);
                     }
@@ -268,9 +404,13 @@ public class NextbusProvider extends ContentProvider {
                     String directionTag = pathSegments.get(5);
                     try {
                         // Fetch directions & stops from the network if necessary
-                        mQueryHelper.fetchDirections(agencyTag, routeTag, directionTag);
-                        cursor = OrmUtil.cursorFromQueryBuilder(getQbFactory().stopsQb(agencyTag, routeTag, directionTag),
-                                                                projection, selection, selectionArgs, sortOrder);
+                        fetchDirections(agencyTag, routeTag, directionTag);
+                        if (selection == null && !isPaged(uri))
+                            cursor = getQbFactory().queryStopsCursor(agencyTag, routeTag, directionTag, projection,
+                                                                     sortOrder);
+                        else
+                            cursor = listCursor(uri, getQbFactory().stopsQb(agencyTag, routeTag, directionTag),
+                                                Stop.FIELD_ID, projection, selection, selectionArgs, sortOrder);
                     } catch (SQLException e) {
                         throw new RuntimeException(e);
                     }
@@ -286,8 +426,11 @@ public class NextbusProvider extends ContentProvider {
                 break;
         }
 
-        if (cursor != null)
-            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        if (cursor != null) {
+            // Observe only this uri so that the loader reloads when its own data changes, not its subtree's
+            cursor = new ExactUriCursor(cursor);
+            cursor.setNotificationUri(getContext().getContentResolver(), uri.buildUpon().clearQuery().build());
+        }
         return cursor;
     }
 
@@ -298,12 +441,21 @@ public class NextbusProvider extends ContentProvider {
             case URI_CODE.SAVED_STOPS:
                 // e.g. content://com.elliottsj.ftw.provider/saved-stops
                 return ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.elliottsj.stop";
+            case URI_CODE.METRICS:
+                // e.g. content://com.elliottsj.ftw.provider/metrics
+                return ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.elliottsj.rpc-metric";
             case URI_CODE.AGENCIES:
                 // e.g. content://com.elliottsj.ftw.provider/agencies
                 return ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.elliottsj.agency";
             case URI_CODE.AGENCIES_TAG:
                 // e.g. content://com.elliottsj.ftw.provider/agencies/ttc
                 return ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.elliottsj.agency";
+            case URI_CODE.AGENCIES_SEARCH:
+                // e.g. content://com.elliottsj.ftw.provider/agencies/ttc/search?q=queen
+                return ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.elliottsj.search-result";
+            case URI_CODE.AGENCIES_STOPS_NEARBY:
+                // e.g. content://com.elliottsj.ftw.provider/agencies/ttc/stops/nearby?lat=43.66&lon=-79.40
+                return ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.elliottsj.stop";
             case URI_CODE.AGENCIES_ROUTES:
                 // e.g. content://com.elliottsj.ftw.provider/agencies/ttc/routes
                 return ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.elliottsj.route";
@@ -359,14 +511,8 @@ public class NextbusProvider extends ContentProvider {
                     String directionTag = values.getAsString(SAVED_STOPS.COLUMN_DIRECTION_TAG);
                     String stopTag = values.getAsString(SAVED_STOPS.COLUMN_STOP_TAG);
 
-                    Direction direction = getQbFactory().directionsQb(agencyTag, routeTag, directionTag).queryForFirst();
-                    Stop stop = getQbFactory().stopsQb(agencyTag, routeTag, directionTag, stopTag).queryForFirst();
-
-                    SavedStop savedStop = new SavedStop(stop, direction);
-                    getHelper().getSavedStopsDao().createIfNotExists(savedStop);
-
-                    // Notify observers
-                    getContext().getContentResolver().notifyChange(uri, null, false);
+                    if (getSavedStopWriter().insert(new ContentValues[] { values }) > 0)
+                        notifyChange(uri);
 
                     String path = String.format("agencies/%s/routes/%s/directions/%s/stops/%s",
                                                 agencyTag, routeTag, directionTag, stopTag);
@@ -457,7 +603,8 @@ public class NextbusProvider extends ContentProvider {
 
                     int rowsAffected = deleteBuilder.delete();
 
-                    getContext().getContentResolver().notifyChange(uri, null, false);
+                    if (rowsAffected > 0)
+                        notifyChange(uri);
 
                     return rowsAffected;
                 } catch (SQLException e) {
@@ -468,9 +615,138 @@ public class NextbusProvider extends ContentProvider {
         }
     }
 
+    @SuppressWarnings("ConstantConditions")
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        return 0;
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case URI_CODE.SAVED_STOPS: {
+                // Move a saved stop, identified like in delete(), to the position given in values
+                Integer position = values.getAsInteger(SAVED_STOPS.COLUMN_POSITION);
+                if (position == null)
+                    return 0;
+                try {
+                    int rowsAffected = getSavedStopWriter().setPosition(selectionArgs[0], selectionArgs[1],
+                                                                        selectionArgs[2], selectionArgs[3], position);
+                    if (rowsAffected > 0)
+                        notifyChange(uri);
+                    return rowsAffected;
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case URI_CODE.SAVED_STOPS: {
+                // Save every stop in one transaction with a single notification
+                try {
+                    SQLiteDatabase db = getHelper().getWritableDatabase();
+                    int inserted;
+                    db.beginTransactionNonExclusive();
+                    try {
+                        inserted = getSavedStopWriter().insert(values);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                    if (inserted > 0)
+                        notifyChange(uri);
+                    return inserted;
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            default:
+                return super.bulkInsert(uri, values);
+        }
+    }
+
+    /**
+     * Apply a batch of inserts, updates and deletes in a single transaction. Observers are notified once per
+     * changed uri after the batch commits.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+        SQLiteDatabase db = getHelper().getWritableDatabase();
+        Set<Uri> changedUris = new HashSet<Uri>();
+        ContentProviderResult[] results;
+        mBatchChangedUris.set(changedUris);
+        db.beginTransactionNonExclusive();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChangedUris.remove();
+        }
+
+        for (Uri uri : changedUris)
+            ChangeNotifier.get(getContext()).notifyChange(uri);
+        return results;
+    }
+
+    /**
+     * Notify observers of a changed uri, or defer the notification to the end of the batch running on this thread.
+     * Changes made within ChangeNotifier.WINDOW_MILLIS of each other are notified together.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batchChangedUris = mBatchChangedUris.get();
+        if (batchChangedUris != null)
+            batchChangedUris.add(uri);
+        else
+            ChangeNotifier.get(getContext()).notifyChange(uri);
+    }
+
+    /**
+     * Fetch an agency's routes if necessary. A failure to reach NextBus is logged rather than thrown so that the
+     * query still returns whatever is stored, possibly nothing, instead of failing the loader; its cursor is still
+     * notified if the routes are stored later.
+     */
+    private void fetchRoutes(String agencyTag) throws SQLException {
+        try {
+            mQueryHelper.fetchRoutes(agencyTag);
+        } catch (ServiceException e) {
+            Log.w(TAG, "Failed to fetch routes for " + agencyTag + "; serving stored routes", e);
+        }
+    }
+
+    /**
+     * Fetch a route's directions and stops if necessary. Like {@link #fetchRoutes(String)}, failures to reach
+     * NextBus are logged rather than thrown.
+     */
+    private void fetchDirections(String agencyTag, String routeTag, String directionTag) throws SQLException {
+        try {
+            mQueryHelper.fetchDirections(agencyTag, routeTag, directionTag);
+        } catch (ServiceException e) {
+            Log.w(TAG, "Failed to fetch route " + routeTag + " of " + agencyTag + "; serving stored stops", e);
+        }
+    }
+
+    /**
+     * Print the RPC metrics of both HTTP stacks and the object cache counters, e.g. with
+     * adb shell dumpsys activity provider com.elliottsj.ftw/.provider.NextbusProvider
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("RPC metrics:");
+        RpcMetrics.getInstance().dump(writer);
+        ConditionalGetCache responseCache = ConditionalGetCache.get(getContext());
+        writer.println(String.format("NextBus response cache: hits=%d revalidations=%d misses=%d size=%d bytes",
+                                     responseCache.getHitCount(), responseCache.getRevalidationCount(),
+                                     responseCache.getMissCount(), responseCache.getSizeBytes()));
+        writer.println(String.format("NextBus bandwidth available: %d bytes",
+                                     BandwidthGovernor.getInstance().getAvailableBytes()));
+        NextbusQueryHelper.dumpCoalescing(writer);
+        writer.println("Object cache:");
+        for (Map.Entry<Class<?>, NextbusObjectCache.Stats> entry : getHelper().getObjectCache().getStats().entrySet())
+            writer.println("  " + entry.getKey().getSimpleName() + ": " + entry.getValue());
     }
 
     private NextbusSQLiteHelper getHelper() {
@@ -479,12 +755,105 @@ public class NextbusProvider extends ContentProvider {
         return mDbHelper;
     }
 
+    private SavedStopWriter getSavedStopWriter() throws SQLException {
+        return new SavedStopWriter(getHelper().getWritableDatabase(), getHelper().getSchema());
+    }
+
     private NextbusQueryBuilderFactory getQbFactory() {
         if (mQueryBuilderFactory == null)
             mQueryBuilderFactory = new NextbusQueryBuilderFactory(getHelper());
         return mQueryBuilderFactory;
     }
 
+    /**
+     * Get a cursor over a list query, or over a single page of it if the uri has a limit or after parameter.
+     *
+     * @param uri the queried uri
+     * @param queryBuilder the list query
+     * @param idColumn id column of the listed table, which orders paged results
+     * @return a cursor which releases its OrmLite query when closed
+     * @throws SQLException
+     */
+    private static Cursor listCursor(Uri uri, QueryBuilder queryBuilder, String idColumn, String[] projection,
+                                     String selection, String[] selectionArgs, String sortOrder) throws SQLException {
+        Long limit = getLongQueryParameter(uri, QUERY_PARAMETER_LIMIT);
+        Long after = getLongQueryParameter(uri, QUERY_PARAMETER_AFTER);
+        if (limit == null && after == null)
+            return OrmUtil.cursorFromQueryBuilder(queryBuilder, projection, selection, selectionArgs, sortOrder);
+
+        if (sortOrder != null)
+            throw new IllegalArgumentException("Paged queries are ordered by " + idColumn + "; sort order not supported: " + uri);
+        return OrmUtil.pagedCursorFromQueryBuilder(queryBuilder, idColumn, after, limit,
+                                                   projection, selection, selectionArgs);
+    }
+
+    /**
+     * @return true iff the uri asks for a single page of a list query
+     */
+    private static boolean isPaged(Uri uri) {
+        return uri.getQueryParameter(QUERY_PARAMETER_LIMIT) != null || uri.getQueryParameter(QUERY_PARAMETER_AFTER) != null;
+    }
+
+    private static Long getLongQueryParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null)
+            return null;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " parameter: " + uri, e);
+        }
+    }
+
+    private static Double getDoubleQueryParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null)
+            return null;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " parameter: " + uri, e);
+        }
+    }
+
+    /**
+     * Get a query builder which joins saved_stops with stops, agencies, directions and routes, mapping
+     * SAVED_STOPS_CURSOR_COLUMNS onto the joined columns so the result is a native SQLite cursor.
+     *
+     * @param schema resolved table and column names
+     * @return a query builder for saved stops
+     */
+    static SQLiteQueryBuilder savedStopsQueryBuilder(NextbusSchema schema) {
+        Map<String, String> projectionMap = new HashMap<String, String>();
+        projectionMap.put(SavedStop.FIELD_ID, "ss." + SavedStop.FIELD_ID + " AS " + SavedStop.FIELD_ID);
+        projectionMap.put(SAVED_STOPS.COLUMN_AGENCY_TAG, "a." + Agency.FIELD_TAG + " AS " + SAVED_STOPS.COLUMN_AGENCY_TAG);
+        projectionMap.put(SAVED_STOPS.COLUMN_AGENCY_TITLE, "a." + Agency.FIELD_TITLE + " AS " + SAVED_STOPS.COLUMN_AGENCY_TITLE);
+        projectionMap.put(SAVED_STOPS.COLUMN_STOP_TAG, "s." + Stop.FIELD_TAG + " AS " + SAVED_STOPS.COLUMN_STOP_TAG);
+        projectionMap.put(SAVED_STOPS.COLUMN_STOP_TITLE, "s." + Stop.FIELD_TITLE + " AS " + SAVED_STOPS.COLUMN_STOP_TITLE);
+        projectionMap.put(SAVED_STOPS.COLUMN_ROUTE_TAG, "r." + Route.FIELD_TAG + " AS " + SAVED_STOPS.COLUMN_ROUTE_TAG);
+        projectionMap.put(SAVED_STOPS.COLUMN_ROUTE_TITLE, "r." + Route.FIELD_TITLE + " AS " + SAVED_STOPS.COLUMN_ROUTE_TITLE);
+        projectionMap.put(SAVED_STOPS.COLUMN_ROUTE_SHORT_TITLE, "r." + Route.FIELD_SHORT_TITLE + " AS " + SAVED_STOPS.COLUMN_ROUTE_SHORT_TITLE);
+        projectionMap.put(SAVED_STOPS.COLUMN_DIRECTION_TAG, "d." + Direction.FIELD_TAG + " AS " + SAVED_STOPS.COLUMN_DIRECTION_TAG);
+        projectionMap.put(SAVED_STOPS.COLUMN_DIRECTION_TITLE, "d." + Direction.FIELD_TITLE + " AS " + SAVED_STOPS.COLUMN_DIRECTION_TITLE);
+        projectionMap.put(SAVED_STOPS.COLUMN_DIRECTION_NAME, "d." + Direction.FIELD_NAME + " AS " + SAVED_STOPS.COLUMN_DIRECTION_NAME);
+        projectionMap.put(SAVED_STOPS.COLUMN_POSITION, "ss." + SavedStop.FIELD_POSITION + " AS " + SAVED_STOPS.COLUMN_POSITION);
+
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        queryBuilder.setTables(String.format(
+                "%s AS ss" +
+                " JOIN %s AS s ON s.%s = ss.%s" +
+                " JOIN %s AS a ON a.%s = s.%s" +
+                " JOIN %s AS d ON d.%s = ss.%s" +
+                " JOIN %s AS r ON r.%s = d.%s",
+                schema.savedStops,
+                schema.stops, Stop.FIELD_ID, SavedStop.FIELD_STOP_ID,
+                schema.agencies, Agency.FIELD_ID, schema.stopAgencyColumn,
+                schema.directions, Direction.FIELD_ID, SavedStop.FIELD_DIRECTION_ID,
+                schema.routes, Route.FIELD_ID, schema.directionRouteColumn));
+        queryBuilder.setProjectionMap(projectionMap);
+        return queryBuilder;
+    }
+
     /**
      * Get a cursor loader which loads the saved stops from the content provider.
      *
@@ -494,7 +863,7 @@ public class NextbusProvider extends ContentProvider {
     public static Loader<Cursor> savedStopsLoader(Context context) {
         return new CursorLoader(context, Uri.withAppendedPath(CONTENT_URI, "saved-stops"),
                                 SAVED_STOPS_CURSOR_COLUMNS, null, null,
-                                SAVED_STOPS.COLUMN_STOP_TITLE);
+                                SAVED_STOPS.COLUMN_POSITION + ", " + SAVED_STOPS.COLUMN_STOP_TITLE);
     }
 
     /**
@@ -555,4 +924,22 @@ public class NextbusProvider extends ContentProvider {
         contentResolver.delete(savedStopUri(), where, new String[] { agencyTag, routeTag, directionTag, stopTag });
     }
 
+    /**
+     * Get an operation which moves a saved stop to a new position, for use in a batch passed to
+     * {@link ContentResolver#applyBatch(String, ArrayList)}.
+     *
+     * @return a content provider operation
+     */
+    public static ContentProviderOperation moveSavedStopOperation(String agencyTag, String routeTag, String directionTag, String stopTag, int position) {
+        String where = String.format("%s = ? AND %s = ? AND %s = ? AND %s = ?",
+                                     Agency.FIELD_TAG,
+                                     Route.FIELD_TAG,
+                                     Direction.FIELD_TAG,
+                                     Stop.FIELD_TAG);
+        return ContentProviderOperation.newUpdate(savedStopUri())
+                .withSelection(where, new String[] { agencyTag, routeTag, directionTag, stopTag })
+                .withValue(SAVED_STOPS.COLUMN_POSITION, position)
+                .build();
+    }
+
 }
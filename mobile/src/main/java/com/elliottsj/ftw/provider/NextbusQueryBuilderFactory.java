@@ -1,6 +1,12 @@
 package com.elliottsj.ftw.provider;
 
+import android.database.Cursor;
+
+import com.j256.ormlite.dao.CloseableIterator;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.stmt.PreparedQuery;
 import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.SelectArg;
 
 import com.elliottsj.nextbus.domain.Agency;
 import com.elliottsj.nextbus.domain.Direction;
@@ -9,6 +15,9 @@ import com.elliottsj.nextbus.domain.Route;
 import com.elliottsj.nextbus.domain.Stop;
 
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 
 public class NextbusQueryBuilderFactory {
 
@@ -19,9 +28,7 @@ public class NextbusQueryBuilderFactory {
     }
 
     public QueryBuilder<Agency, Integer> agenciesQb(String agencyTag) throws SQLException {
-        QueryBuilder<Agency, Integer> agenciesQb = mDbHelper.getAgenciesDao().queryBuilder();
-        if (agencyTag != null) agenciesQb.where().eq(Agency.FIELD_TAG, agencyTag);
-        return agenciesQb;
+        return buildAgenciesQb(agencyTag);
     }
 
     public QueryBuilder<Agency, Integer> agenciesQb() throws SQLException {
@@ -29,10 +36,7 @@ public class NextbusQueryBuilderFactory {
     }
 
     public QueryBuilder<Route, Integer> routesQb(String agencyTag, String routeTag) throws SQLException {
-        QueryBuilder<Route, Integer> routesQb = mDbHelper.getRoutesDao().queryBuilder();
-        routesQb.join(agenciesQb(agencyTag));
-        if (routeTag != null) routesQb.where().eq(Route.FIELD_TAG, routeTag);
-        return routesQb;
+        return buildRoutesQb(agencyTag, routeTag);
     }
 
     public QueryBuilder<Route, Integer> routesQb(String agencyTag) throws SQLException {
@@ -40,10 +44,7 @@ public class NextbusQueryBuilderFactory {
     }
 
     public QueryBuilder<Direction, Integer> directionsQb(String agencyTag, String routeTag, String directionTag) throws SQLException {
-        QueryBuilder<Direction, Integer> directionsQb = mDbHelper.getDirectionsDao().queryBuilder();
-        directionsQb.join(routesQb(agencyTag, routeTag));
-        if (directionTag != null) directionsQb.where().eq(Direction.FIELD_TAG, directionTag);
-        return directionsQb;
+        return buildDirectionsQb(agencyTag, routeTag, directionTag);
     }
 
     public QueryBuilder<Direction, Integer> directionsQb(String agencyTag, String routeTag) throws SQLException {
@@ -51,16 +52,212 @@ public class NextbusQueryBuilderFactory {
     }
 
     public QueryBuilder<Stop, Integer> stopsQb(String agencyTag, String routeTag, String directionTag, String stopTag) throws SQLException {
+        return buildStopsQb(agencyTag, routeTag, directionTag, stopTag);
+    }
+
+    public QueryBuilder<Stop, Integer> stopsQb(String agencyTag, String routeTag, String directionTag) throws SQLException {
+        return stopsQb(agencyTag, routeTag, directionTag, null);
+    }
+
+    /*
+     * Builders accepting either a tag string or a SelectArg placeholder for each tag; a null tag leaves
+     * the corresponding level unfiltered.
+     */
+
+    private QueryBuilder<Agency, Integer> buildAgenciesQb(Object agencyTag) throws SQLException {
+        QueryBuilder<Agency, Integer> agenciesQb = mDbHelper.getAgenciesDao().queryBuilder();
+        if (agencyTag != null) agenciesQb.where().eq(Agency.FIELD_TAG, agencyTag);
+        return agenciesQb;
+    }
+
+    private QueryBuilder<Route, Integer> buildRoutesQb(Object agencyTag, Object routeTag) throws SQLException {
+        QueryBuilder<Route, Integer> routesQb = mDbHelper.getRoutesDao().queryBuilder();
+        routesQb.join(buildAgenciesQb(agencyTag));
+        if (routeTag != null) routesQb.where().eq(Route.FIELD_TAG, routeTag);
+        return routesQb;
+    }
+
+    private QueryBuilder<Direction, Integer> buildDirectionsQb(Object agencyTag, Object routeTag, Object directionTag) throws SQLException {
+        QueryBuilder<Direction, Integer> directionsQb = mDbHelper.getDirectionsDao().queryBuilder();
+        directionsQb.join(buildRoutesQb(agencyTag, routeTag));
+        if (directionTag != null) directionsQb.where().eq(Direction.FIELD_TAG, directionTag);
+        return directionsQb;
+    }
+
+    private QueryBuilder<Stop, Integer> buildStopsQb(Object agencyTag, Object routeTag, Object directionTag, Object stopTag) throws SQLException {
         QueryBuilder<DirectionStop, Integer> directionStopsQb = mDbHelper.getDirectionStopsDao().queryBuilder();
-        directionStopsQb.join(directionsQb(agencyTag, routeTag, directionTag));
+        directionStopsQb.join(buildDirectionsQb(agencyTag, routeTag, directionTag));
         QueryBuilder<Stop, Integer> stopsQb = mDbHelper.getStopsDao().queryBuilder();
         stopsQb.join(directionStopsQb);
         if (stopTag != null) stopsQb.where().eq(Stop.FIELD_TAG, stopTag);
         return stopsQb;
     }
 
-    public QueryBuilder<Stop, Integer> stopsQb(String agencyTag, String routeTag, String directionTag) throws SQLException {
-        return stopsQb(agencyTag, routeTag, directionTag, null);
+    /*
+     * Hot lookups backed by queries which are compiled once per database helper and re-run with new tag values.
+     * List queries are compiled once for each projection and sort order their callers use.
+     */
+
+    public Agency queryAgency(String agencyTag) throws SQLException {
+        return agencyLookup().queryForFirst(agencyTag);
+    }
+
+    public Route queryRoute(String agencyTag, String routeTag) throws SQLException {
+        return routeLookup().queryForFirst(agencyTag, routeTag);
+    }
+
+    /**
+     * @param directionTag unique direction tag, or null for the stops of every direction of the route
+     */
+    public List<Stop> queryStops(String agencyTag, String routeTag, String directionTag) throws SQLException {
+        return stopsLookup(directionTag != null, null, null).query(tags(agencyTag, routeTag, directionTag));
+    }
+
+    /**
+     * Get a cursor over the stops of a route, or of one of its directions, listing stops served by several
+     * directions once. The query is compiled once for each projection and sort order.
+     *
+     * @param directionTag unique direction tag, or null for the stops of every direction of the route
+     * @param projection columns to select, or null for all
+     * @param sortOrder column to sort by, or null
+     * @return a cursor which releases its OrmLite query when closed
+     */
+    public Cursor queryStopsCursor(String agencyTag, String routeTag, String directionTag, String[] projection,
+                                   String sortOrder) throws SQLException {
+        PreparedLookup<Stop> lookup = stopsLookup(directionTag != null, projection, sortOrder);
+        return OrmUtil.cursorFromIterator(lookup.iterator(tags(agencyTag, routeTag, directionTag)));
+    }
+
+    /**
+     * Get a cursor over the directions of a route. The query is compiled once for each projection and sort order.
+     *
+     * @param projection columns to select, or null for all
+     * @param sortOrder column to sort by, or null
+     * @return a cursor which releases its OrmLite query when closed
+     */
+    public Cursor queryDirectionsCursor(String agencyTag, String routeTag, String[] projection, String sortOrder)
+            throws SQLException {
+        String shape = "directions" + listShape(projection, sortOrder);
+        PreparedLookup<Direction> lookup = getLookup(shape);
+        if (lookup == null) {
+            SelectArg agency = new SelectArg(), route = new SelectArg();
+            lookup = putLookup(shape, new PreparedLookup<Direction>(mDbHelper.getDirectionsDao(),
+                                                                     listQb(buildDirectionsQb(agency, route, null),
+                                                                            projection, sortOrder),
+                                                                     agency, route));
+        }
+        return OrmUtil.cursorFromIterator(lookup.iterator(agencyTag, routeTag));
+    }
+
+    private PreparedLookup<Agency> agencyLookup() throws SQLException {
+        PreparedLookup<Agency> lookup = getLookup("agency");
+        if (lookup == null) {
+            SelectArg agency = new SelectArg();
+            lookup = putLookup("agency", new PreparedLookup<Agency>(mDbHelper.getAgenciesDao(),
+                                                                     buildAgenciesQb(agency), agency));
+        }
+        return lookup;
+    }
+
+    private PreparedLookup<Route> routeLookup() throws SQLException {
+        PreparedLookup<Route> lookup = getLookup("route");
+        if (lookup == null) {
+            SelectArg agency = new SelectArg(), route = new SelectArg();
+            lookup = putLookup("route", new PreparedLookup<Route>(mDbHelper.getRoutesDao(),
+                                                                   buildRoutesQb(agency, route), agency, route));
+        }
+        return lookup;
+    }
+
+    /**
+     * @param byDirection whether the lookup takes a direction tag after the agency and route tags
+     */
+    private PreparedLookup<Stop> stopsLookup(boolean byDirection, String[] projection, String sortOrder)
+            throws SQLException {
+        String shape = (byDirection ? "directionStops" : "routeStops") + listShape(projection, sortOrder);
+        PreparedLookup<Stop> lookup = getLookup(shape);
+        if (lookup == null) {
+            SelectArg agency = new SelectArg(), route = new SelectArg();
+            SelectArg direction = byDirection ? new SelectArg() : null;
+            SelectArg[] args = byDirection ? new SelectArg[] { agency, route, direction }
+                                           : new SelectArg[] { agency, route };
+            QueryBuilder<Stop, Integer> stopsQb = buildStopsQb(agency, route, direction, null).distinct();
+            lookup = putLookup(shape, new PreparedLookup<Stop>(mDbHelper.getStopsDao(),
+                                                                listQb(stopsQb, projection, sortOrder), args));
+        }
+        return lookup;
+    }
+
+    private static Object[] tags(String agencyTag, String routeTag, String directionTag) {
+        return directionTag != null ? new Object[] { agencyTag, routeTag, directionTag }
+                                    : new Object[] { agencyTag, routeTag };
+    }
+
+    private static String listShape(String[] projection, String sortOrder) {
+        return Arrays.toString(projection) + " ORDER BY " + sortOrder;
+    }
+
+    private static <T> QueryBuilder<T, Integer> listQb(QueryBuilder<T, Integer> queryBuilder, String[] projection,
+                                                       String sortOrder) {
+        if (projection != null)
+            queryBuilder.selectColumns(projection);
+        if (sortOrder != null)
+            queryBuilder.orderBy(sortOrder, true);
+        return queryBuilder;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> PreparedLookup<T> getLookup(String shape) {
+        return (PreparedLookup<T>) mDbHelper.getLookups().get(shape);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> PreparedLookup<T> putLookup(String shape, PreparedLookup<T> lookup) {
+        PreparedLookup<?> existing = mDbHelper.getLookups().putIfAbsent(shape, lookup);
+        return existing != null ? (PreparedLookup<T>) existing : lookup;
+    }
+
+    /**
+     * A query compiled once, with SelectArg placeholders that are filled in for each run.
+     * Runs are serialized since the placeholders are shared.
+     *
+     * @param <T> the queried domain class
+     */
+    static class PreparedLookup<T> {
+
+        private final Dao<T, Integer> mDao;
+        private final PreparedQuery<T> mQuery;
+        private final SelectArg[] mArgs;
+
+        PreparedLookup(Dao<T, Integer> dao, QueryBuilder<T, Integer> queryBuilder, SelectArg... args) throws SQLException {
+            mDao = dao;
+            mArgs = args;
+            mQuery = queryBuilder.prepare();
+        }
+
+        synchronized T queryForFirst(Object... values) throws SQLException {
+            bind(values);
+            return mDao.queryForFirst(mQuery);
+        }
+
+        synchronized List<T> query(Object... values) throws SQLException {
+            bind(values);
+            return mDao.query(mQuery);
+        }
+
+        /**
+         * @return an iterator over the results, which holds its own copy of the values once returned
+         */
+        synchronized CloseableIterator<T> iterator(Object... values) throws SQLException {
+            bind(values);
+            return mDao.iterator(mQuery);
+        }
+
+        private void bind(Object... values) {
+            for (int i = 0; i < mArgs.length; i++)
+                mArgs[i].setValue(values[i]);
+        }
+
     }
 
 }
@@ -1,40 +1,69 @@
 package com.elliottsj.ftw.provider;
 
 import android.content.Context;
+import android.text.format.DateUtils;
 import android.util.Log;
 
 import com.elliottsj.ftw.utilities.AndroidNextbusService;
 import com.j256.ormlite.android.apptools.OpenHelperManager;
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.misc.TransactionManager;
-import com.j256.ormlite.stmt.QueryBuilder;
 
 import com.elliottsj.nextbus.domain.Agency;
 import com.elliottsj.nextbus.domain.Direction;
-import com.elliottsj.nextbus.domain.DirectionStop;
 import com.elliottsj.nextbus.domain.PredictionGroup;
 import com.elliottsj.nextbus.domain.Route;
 import com.elliottsj.nextbus.domain.Stop;
 import com.elliottsj.nextbus.impl.NextbusService;
 
+import java.io.PrintWriter;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class NextbusQueryHelper {
 
     private static final String TAG = NextbusQueryHelper.class.getSimpleName();
 
+    public static final long DEFAULT_ROUTES_TTL_MILLIS = 7 * DateUtils.DAY_IN_MILLIS;
+    public static final long DEFAULT_ROUTE_CONFIG_TTL_MILLIS = DateUtils.DAY_IN_MILLIS;
+
+    // Background refreshes are shared by every query helper in the process
+    private static final ExecutorService sRefreshExecutor = Executors.newSingleThreadExecutor();
+    private static final Set<String> sRefreshingKeys = Collections.synchronizedSet(new HashSet<String>());
+
+    // Concurrent downloads of the same data by any query helper in the process share one network call and one
+    // ingestion transaction; keyed by fetch log key, or by agency and stops for predictions
+    private static final SingleFlight<Void> sRouteFlights = new SingleFlight<Void>();
+    private static final SingleFlight<Void> sRouteConfigFlights = new SingleFlight<Void>();
+    private static final SingleFlight<List<PredictionGroup>> sPredictionFlights =
+            new SingleFlight<List<PredictionGroup>>();
+
     private Context mContext;
     private NextbusService mNextbusService;
     private NextbusSQLiteHelper mDbHelper;
     private NextbusQueryBuilderFactory mQbFactory;
+    private NextbusIngester mIngester;
+
+    private long mRoutesTtlMillis = DEFAULT_ROUTES_TTL_MILLIS;
+    private long mRouteConfigTtlMillis = DEFAULT_ROUTE_CONFIG_TTL_MILLIS;
 
     public NextbusQueryHelper(Context context) {
+        this(context, new AndroidNextbusService(context));
+    }
+
+    public NextbusQueryHelper(Context context, NextbusService nextbusService) {
         mContext = context;
-        mNextbusService = new AndroidNextbusService();
+        mNextbusService = nextbusService;
     }
 
     public NextbusSQLiteHelper getHelper() {
@@ -49,41 +78,126 @@ public class NextbusQueryHelper {
         return mQbFactory;
     }
 
+    /**
+     * Release the database helper obtained by this query helper.
+     */
+    public void release() {
+        if (mDbHelper != null) {
+            OpenHelperManager.releaseHelper();
+            mDbHelper = null;
+            mQbFactory = null;
+            mIngester = null;
+        }
+    }
+
+    private NextbusIngester getIngester() {
+        if (mIngester == null)
+            mIngester = new NextbusIngester(getHelper());
+        return mIngester;
+    }
+
+    private FetchLog getFetchLog() {
+        return getHelper().getFetchLog();
+    }
+
+    /**
+     * @param ttlMillis maximum age of an agency's stored routes before they are refreshed
+     */
+    public void setRoutesTtl(long ttlMillis) {
+        mRoutesTtlMillis = ttlMillis;
+    }
+
+    /**
+     * @param ttlMillis maximum age of a route's stored directions and stops before they are refreshed
+     */
+    public void setRouteConfigTtl(long ttlMillis) {
+        mRouteConfigTtlMillis = ttlMillis;
+    }
+
     public void fetchAgencies() throws SQLException {
         final Dao<Agency, Integer> agenciesDao = getHelper().getAgenciesDao();
         final List<Agency> networkAgencies = mNextbusService.getAgencies();
-        TransactionManager.callInTransaction(getHelper().getConnectionSource(), new Callable<Void>() {
+        long fetchedAt = TransactionManager.callInTransaction(getHelper().getConnectionSource(), new Callable<Long>() {
             @Override
-            public Void call() throws Exception {
+            public Long call() throws Exception {
                 for (Agency agency : networkAgencies)
                     agenciesDao.createIfNotExists(agency);
-                return null;
+                return FetchLog.markFetched(getHelper().getWritableDatabase(), FetchLog.AGENCIES_KEY);
             }
         });
+        getFetchLog().commit(FetchLog.AGENCIES_KEY, fetchedAt);
     }
 
-    public void fetchRoutes(String agencyTag) throws SQLException {
-        if (getQbFactory().routesQb(agencyTag).countOf() == 0) {
+    /**
+     * Make sure the routes for an agency are stored in the database. Routes are fetched from the network if the
+     * fetch log has no record of them; stored routes older than the routes TTL are returned as-is and refreshed in
+     * the background. Neither check queries the database once the fetch log is loaded.
+     *
+     * @param agencyTag unique agency tag
+     * @throws SQLException
+     */
+    public void fetchRoutes(final String agencyTag) throws SQLException {
+        final String key = FetchLog.routesKey(agencyTag);
+        if (!getFetchLog().isStored(key)) {
             // No routes found for agency; fetch them from the network and store in the database
+            downloadRoutes(agencyTag);
+        } else if (getFetchLog().isStale(key, mRoutesTtlMillis)) {
+            // Serve the stored routes and refresh them in the background
+            refreshInBackground(key, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    downloadRoutes(agencyTag);
+                    return null;
+                }
+            });
+        }
+    }
 
-            // Fetch agencies if necessary
-            if (getQbFactory().agenciesQb(agencyTag).countOf() == 0) {
-                fetchAgencies();
+    private void downloadRoutes(final String agencyTag) throws SQLException {
+        final String key = FetchLog.routesKey(agencyTag);
+        sRouteFlights.run(key, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                // A download which finished just before this one started may already have stored fresh routes
+                if (!getFetchLog().isStale(key, mRoutesTtlMillis))
+                    return null;
+
+                // Fetch agencies if necessary
+                Agency agency = getAgency(agencyTag);
+                if (agency == null) {
+                    fetchAgencies();
+                    agency = getAgency(agencyTag);
+                }
+
+                List<Route> networkRoutes = mNextbusService.getRoutes(agency);
+                boolean savedStopsChanged = getIngester().ingestRoutes(agency, networkRoutes);
+                ChangeNotifier.get(mContext).notifyRoutesStored(agencyTag, savedStopsChanged);
+                return null;
             }
+        });
+    }
 
-            final Dao<Route, Integer> routesDao = getHelper().getRoutesDao();
-            final Agency agency = getHelper().getAgenciesDao().queryBuilder()
-                    .where()
-                    .eq(Agency.FIELD_TAG, agencyTag)
-                    .queryForFirst();
-            final List<Route> networkRoutes = mNextbusService.getRoutes(agency);
-            TransactionManager.callInTransaction(getHelper().getConnectionSource(), new Callable<Void>() {
+    /**
+     * Make sure the directions and associated stops of a route are stored in the database. They are fetched from
+     * the network if the fetch log has no record of the route's configuration; stored ones older than the route
+     * configuration TTL are returned as-is and refreshed in the background.
+     *
+     * @param agencyTag unique agency tag
+     * @param routeTag unique route tag
+     * @param directionTag unique direction tag, or null; a route's directions are always stored together
+     * @throws SQLException
+     */
+    public void fetchDirections(final String agencyTag, final String routeTag, String directionTag) throws SQLException {
+        final String key = FetchLog.routeConfigKey(agencyTag, routeTag);
+        if (!getFetchLog().isStored(key)) {
+            // No directions found for route; fetch them from the network and store them in the database
+            downloadRouteConfig(agencyTag, routeTag);
+        } else if (getFetchLog().isStale(key, mRouteConfigTtlMillis)) {
+            // Serve the stored directions and refresh them in the background
+            refreshInBackground(key, new Callable<Void>() {
                 @Override
                 public Void call() throws Exception {
-                    for (Route route : networkRoutes) {
-                        route.setAgency(agency);
-                        routesDao.create(route);
-                    }
+                    downloadRouteConfig(agencyTag, routeTag);
                     return null;
                 }
             });
@@ -91,94 +205,176 @@ public class NextbusQueryHelper {
     }
 
     /**
-     * Fetch route directions and associated stops from the network and store them in the database
+     * Download and store the directions and stops of a route unless its stored configuration is still fresh. Callers
+     * downloading the same route at once share one download, so a prefetch never repeats an interactive one.
      *
      * @param agencyTag unique agency tag
      * @param routeTag unique route tag
      * @throws SQLException
      */
-    public void fetchDirections(String agencyTag, String routeTag, String directionTag) throws SQLException {
-        if (getQbFactory().directionsQb(agencyTag, routeTag).countOf() == 0 ||
-            getQbFactory().stopsQb(agencyTag, routeTag, directionTag).countOf() == 0) {
-            // No directions found for route; fetch them from the network and store them in the database
+    public void downloadRouteConfig(final String agencyTag, final String routeTag) throws SQLException {
+        final String key = FetchLog.routeConfigKey(agencyTag, routeTag);
+        sRouteConfigFlights.run(key, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                // A download which finished just before this one started may already have stored fresh directions
+                if (!getFetchLog().isStale(key, mRouteConfigTtlMillis))
+                    return null;
 
-            // Fetch routes if necessary
-            if (getQbFactory().routesQb(agencyTag, routeTag).countOf() == 0) {
+                // Fetch routes if necessary
                 fetchRoutes(agencyTag);
-            }
 
-            final Dao<Direction, Integer> directionsDao = getHelper().getDirectionsDao();
-            final Dao<Stop, Integer> stopsDao = getHelper().getStopsDao();
-            final Dao<DirectionStop, Integer> directionStopsDao = getHelper().getDirectionStopsDao();
+                Agency agency = getAgency(agencyTag);
+                Route route = getQbFactory().queryRoute(agencyTag, routeTag);
+                route.setAgency(agency);
 
-            QueryBuilder<Agency, Integer> agenciesQb = getHelper().getAgenciesDao().queryBuilder();
-            agenciesQb.where().eq(Agency.FIELD_TAG, agencyTag);
-            final Agency agency = agenciesQb.queryForFirst();
+                // Fetch directions from network and store them along with their stops in a single transaction
+                storeDirections(agency, route, downloadDirections(route));
+                return null;
+            }
+        });
+    }
 
-            QueryBuilder<Route, Integer> routesQb = getHelper().getRoutesDao().queryBuilder();
-            routesQb.join(agenciesQb).where().eq(Route.FIELD_TAG, routeTag);
-            final Route route = routesQb.queryForFirst();
+    /**
+     * @param agencyTag unique agency tag
+     * @return the stored agency, or null if it is not stored
+     * @throws SQLException
+     */
+    public Agency getAgency(String agencyTag) throws SQLException {
+        return getQbFactory().queryAgency(agencyTag);
+    }
+
+    /**
+     * Get the routes for an agency, fetching them from the network if necessary.
+     *
+     * @param agencyTag unique agency tag
+     * @return the stored routes, each with its agency assigned
+     * @throws SQLException
+     */
+    public List<Route> getRoutes(String agencyTag) throws SQLException {
+        fetchRoutes(agencyTag);
+        Agency agency = getAgency(agencyTag);
+        List<Route> routes = getQbFactory().routesQb(agencyTag).query();
+        for (Route route : routes)
             route.setAgency(agency);
+        return routes;
+    }
 
-            // Fetch directions from network
-            final List<Direction> networkDirections = mNextbusService.getRouteConfiguration(route).getDirections();
-            TransactionManager.callInTransaction(getHelper().getConnectionSource(), new Callable<Void>() {
-                @Override
-                public Void call() throws Exception {
-                    for (Direction direction : networkDirections) {
-                        // Store the direction in the database
-                        direction.setRoute(route);
-                        directionsDao.create(direction);
-
-                        // Store each stop in the database
-                        for (Stop stop : direction.getStops()) {
-                            stop.setAgency(agency);
-                            stopsDao.createIfNotExists(stop);
-                            DirectionStop directionStop = new DirectionStop(direction, stop);
-                            directionStopsDao.create(directionStop);
-                        }
-                    }
-                    return null;
+    private List<Direction> downloadDirections(Route route) {
+        return mNextbusService.getRouteConfiguration(route).getDirections();
+    }
+
+    private void storeDirections(Agency agency, Route route, List<Direction> directions) throws SQLException {
+        boolean savedStopsChanged = getIngester().ingest(agency, route, directions);
+        ChangeNotifier.get(mContext).notifyRouteConfigStored(agency.getTag(), route.getTag(), savedStopsChanged);
+    }
+
+    /**
+     * @param agencyTag unique agency tag
+     * @param routeTag unique route tag
+     * @return true iff the route's configuration was never stored or is older than the route configuration TTL
+     */
+    public boolean isRouteConfigStale(String agencyTag, String routeTag) {
+        return getFetchLog().isStale(FetchLog.routeConfigKey(agencyTag, routeTag), mRouteConfigTtlMillis);
+    }
+
+    /**
+     * Run a refresh on the shared background executor unless one is already pending for the same key. Observers
+     * are notified once the refreshed data is stored.
+     *
+     * @param key fetch log key of the data being refreshed
+     * @param refresh fetches and stores the data
+     */
+    private void refreshInBackground(final String key, final Callable<Void> refresh) {
+        if (!sRefreshingKeys.add(key))
+            return;
+
+        Log.i(TAG, "Refreshing stale data in the background: " + key);
+        sRefreshExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh.call();
+                } catch (Exception e) {
+                    Log.w(TAG, "Failed to refresh " + key, e);
+                } finally {
+                    sRefreshingKeys.remove(key);
                 }
-            });
-        }
+            }
+        });
     }
 
     /**
-     * Get a list of predictions for the specified stops
+     * Get a list of predictions for the specified stops. Concurrent calls for the same stops share a single
+     * request, and so the same list, which callers must not modify.
      *
      * @param agencyTag unique agency tag
      * @param stopTagMap a map of (route tag -> (direction tag -> stop tag))
      * @return a list of PredictionGroups
      */
-    public List<PredictionGroup> loadPredictions(String agencyTag, Map<String, List<String>> stopTagMap) {
+    public List<PredictionGroup> loadPredictions(final String agencyTag, final Map<String, List<String>> stopTagMap) {
         Log.i(TAG, "Loading predictions; stopTagMap: " + stopTagMap.toString());
         try {
-            Map<Route, List<Stop>> stops = new HashMap<Route, List<Stop>>(stopTagMap.size());
-            for (Map.Entry<String, List<String>> entry : stopTagMap.entrySet()) {
-                String routeTag = entry.getKey();
-                List<String> stopTags = entry.getValue();
-
-                // Make sure stops are downloaded into the database
-                fetchDirections(agencyTag, routeTag, null);
-
-                Route route = getQbFactory().routesQb(agencyTag, routeTag).queryForFirst();
-                getHelper().getAgenciesDao().refresh(route.getAgency());
-                List<Stop> routeStops = getQbFactory().stopsQb(agencyTag, routeTag, null)
-                        .where()
-                        .in(Stop.FIELD_TAG, stopTags)
-                        .query();
-
-                // Assign the agency for each stop
-                for (Stop stop : routeStops)
-                    stop.setAgency(route.getAgency());
-
-                stops.put(route, routeStops);
-            }
-            return mNextbusService.getPredictions(stops);
+            return sPredictionFlights.run(predictionsKey(agencyTag, stopTagMap), new Callable<List<PredictionGroup>>() {
+                @Override
+                public List<PredictionGroup> call() throws Exception {
+                    return downloadPredictions(agencyTag, stopTagMap);
+                }
+            });
         } catch (SQLException e) {
             throw new RuntimeException("Failed to load Nextbus objects while fetching predictions", e);
         }
     }
 
+    /**
+     * @return a key which is the same for equal stop maps, whatever their iteration order
+     */
+    private static String predictionsKey(String agencyTag, Map<String, List<String>> stopTagMap) {
+        StringBuilder key = new StringBuilder("predictions/").append(agencyTag);
+        for (Map.Entry<String, List<String>> entry : new TreeMap<String, List<String>>(stopTagMap).entrySet()) {
+            List<String> stopTags = new ArrayList<String>(entry.getValue());
+            Collections.sort(stopTags);
+            key.append('/').append(entry.getKey()).append('=').append(stopTags);
+        }
+        return key.toString();
+    }
+
+    private List<PredictionGroup> downloadPredictions(String agencyTag, Map<String, List<String>> stopTagMap)
+            throws SQLException {
+        Map<Route, List<Stop>> stops = new HashMap<Route, List<Stop>>(stopTagMap.size());
+        for (Map.Entry<String, List<String>> entry : stopTagMap.entrySet()) {
+            String routeTag = entry.getKey();
+            List<String> stopTags = entry.getValue();
+
+            // Make sure stops are downloaded into the database
+            fetchDirections(agencyTag, routeTag, null);
+
+            Route route = getQbFactory().queryRoute(agencyTag, routeTag);
+            route.setAgency(getHelper().getAgenciesDao().queryForSameId(route.getAgency()));
+            // Filter the route's stops in memory so that the same compiled query serves every set of stop tags
+            Set<String> stopTagSet = new HashSet<String>(stopTags);
+            List<Stop> routeStops = new ArrayList<Stop>(stopTags.size());
+            for (Stop stop : getQbFactory().queryStops(agencyTag, routeTag, null)) {
+                if (stopTagSet.contains(stop.getTag()))
+                    routeStops.add(stop);
+            }
+
+            // Assign the agency for each stop
+            for (Stop stop : routeStops)
+                stop.setAgency(route.getAgency());
+
+            stops.put(route, routeStops);
+        }
+        return mNextbusService.getPredictions(stops);
+    }
+
+    /**
+     * Print how many downloads were shared by concurrent callers.
+     */
+    static void dumpCoalescing(PrintWriter writer) {
+        writer.println("Coalesced route downloads: " + sRouteFlights);
+        writer.println("Coalesced route configuration downloads: " + sRouteConfigFlights);
+        writer.println("Coalesced prediction downloads: " + sPredictionFlights);
+    }
+
 }
@@ -7,8 +7,6 @@ import android.util.Log;
 import com.elliottsj.ftw.provider.model.SavedStop;
 import com.j256.ormlite.android.apptools.OrmLiteSqliteOpenHelper;
 import com.j256.ormlite.dao.Dao;
-import com.j256.ormlite.dao.LruObjectCache;
-import com.j256.ormlite.dao.ObjectCache;
 import com.j256.ormlite.support.ConnectionSource;
 import com.j256.ormlite.table.TableUtils;
 
@@ -20,15 +18,25 @@ import com.elliottsj.nextbus.domain.Route;
 import com.elliottsj.nextbus.domain.Stop;
 
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class NextbusSQLiteHelper extends OrmLiteSqliteOpenHelper {
 
     private static final String TAG = NextbusSQLiteHelper.class.getName();
 
-    protected static final int DATABASE_VERSION = 3;
+    protected static final int DATABASE_VERSION = 12;
     protected static final String DATABASE_NAME = "nextbus.db";
 
-    private ObjectCache objectCache = null;
+    private NextbusObjectCache objectCache = null;
+    private NextbusSchema schema = null;
+    private FetchLog fetchLog = null;
+
+    // Prepared lookups of NextbusQueryBuilderFactory keyed by query shape, compiled against this helper's DAOs
+    private final ConcurrentMap<String, NextbusQueryBuilderFactory.PreparedLookup<?>> lookups =
+            new ConcurrentHashMap<String, NextbusQueryBuilderFactory.PreparedLookup<?>>();
 
     private Dao<Agency, Integer> agenciesDao = null;
     private Dao<Route, Integer> routesDao = null;
@@ -40,6 +48,9 @@ public class NextbusSQLiteHelper extends OrmLiteSqliteOpenHelper {
 
     public NextbusSQLiteHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // With write-ahead logging, provider queries read through a pool of reader connections while ingestion
+        // holds the single writer connection, instead of waiting for its transaction to commit
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -53,6 +64,9 @@ public class NextbusSQLiteHelper extends OrmLiteSqliteOpenHelper {
             TableUtils.createTable(connectionSource, DirectionStop.class);
             TableUtils.createTable(connectionSource, Geolocation.class);
             TableUtils.createTable(connectionSource, SavedStop.class);
+
+            // Bring the freshly created tables up to the current version
+            NextbusMigrations.migrate(database, getSchema(), NextbusMigrations.BASE_VERSION, DATABASE_VERSION);
         } catch (SQLException e) {
             Log.e(TAG, "Can't create database", e);
             throw new RuntimeException(e);
@@ -61,8 +75,24 @@ public class NextbusSQLiteHelper extends OrmLiteSqliteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase database, ConnectionSource connectionSource, int oldVersion, int newVersion) {
+        if (oldVersion < NextbusMigrations.BASE_VERSION) {
+            // Too old to migrate; start over
+            recreateTables(database, connectionSource);
+            return;
+        }
+
         try {
-            Log.i(TAG, "Upgrading Nextbus tables...");
+            Log.i(TAG, "Upgrading Nextbus tables from version " + oldVersion + " to " + newVersion + "...");
+            NextbusMigrations.migrate(database, getSchema(), oldVersion, newVersion);
+        } catch (SQLException e) {
+            Log.e(TAG, "Can't migrate database", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void recreateTables(SQLiteDatabase database, ConnectionSource connectionSource) {
+        try {
+            Log.i(TAG, "Dropping Nextbus tables...");
             TableUtils.dropTable(connectionSource, SavedStop.class, false);
             TableUtils.dropTable(connectionSource, DirectionStop.class, false);
             TableUtils.dropTable(connectionSource, Stop.class, false);
@@ -86,21 +116,73 @@ public class NextbusSQLiteHelper extends OrmLiteSqliteOpenHelper {
         super.close();
         agenciesDao = null;
         routesDao = null;
+        directionsDao = null;
         stopsDao = null;
+        directionStopsDao = null;
         geolocationsDao = null;
         savedStopsDao = null;
+        lookups.clear();
+        if (objectCache != null)
+            objectCache.clearAll();
+        if (fetchLog != null)
+            fetchLog.reset();
     }
 
-    private ObjectCache getObjectCache() {
-        if (objectCache == null)
-            objectCache = new LruObjectCache(500);
+    /**
+     * Get the resolved table and column names for building raw SQL against the Nextbus tables.
+     *
+     * @return the Nextbus schema
+     * @throws SQLException
+     */
+    NextbusSchema getSchema() throws SQLException {
+        if (schema == null)
+            schema = new NextbusSchema(this);
+        return schema;
+    }
+
+    /**
+     * Get the fetch log recording which levels of Nextbus data are stored, shared by every user of this helper.
+     *
+     * @return the fetch log
+     */
+    synchronized FetchLog getFetchLog() {
+        if (fetchLog == null)
+            fetchLog = new FetchLog(this);
+        return fetchLog;
+    }
+
+    /**
+     * Get the prepared lookups shared by every NextbusQueryBuilderFactory using this helper. They are dropped when
+     * the helper is closed, along with the DAOs they were compiled against.
+     *
+     * @return the prepared lookups keyed by query shape
+     */
+    ConcurrentMap<String, NextbusQueryBuilderFactory.PreparedLookup<?>> getLookups() {
+        return lookups;
+    }
+
+    /**
+     * Get the object cache shared by the agency, route, direction and stop DAOs. Writes which bypass the DAOs
+     * must remove the affected objects from this cache.
+     *
+     * @return the shared object cache
+     */
+    public synchronized NextbusObjectCache getObjectCache() {
+        if (objectCache == null) {
+            Map<Class<?>, Integer> capacities = new HashMap<Class<?>, Integer>();
+            capacities.put(Agency.class, 32);
+            capacities.put(Route.class, 512);
+            capacities.put(Direction.class, 1024);
+            capacities.put(Stop.class, 4096);
+            objectCache = new NextbusObjectCache(capacities);
+        }
         return objectCache;
     }
 
     public Dao<Agency, Integer> getAgenciesDao() throws SQLException {
         if (agenciesDao == null) {
             agenciesDao = getDao(Agency.class);
-            agenciesDao.setObjectCache(objectCache);
+            agenciesDao.setObjectCache(getObjectCache());
         }
         return agenciesDao;
     }
@@ -108,7 +190,7 @@ public class NextbusSQLiteHelper extends OrmLiteSqliteOpenHelper {
     public Dao<Route, Integer> getRoutesDao() throws SQLException {
         if (routesDao == null) {
             routesDao = getDao(Route.class);
-            routesDao.setObjectCache(objectCache);
+            routesDao.setObjectCache(getObjectCache());
         }
         return routesDao;
     }
@@ -116,7 +198,7 @@ public class NextbusSQLiteHelper extends OrmLiteSqliteOpenHelper {
     public Dao<Direction, Integer> getDirectionsDao() throws SQLException {
         if (directionsDao == null) {
             directionsDao = getDao(Direction.class);
-            directionsDao.setObjectCache(objectCache);
+            directionsDao.setObjectCache(getObjectCache());
         }
         return directionsDao;
     }
@@ -124,7 +206,7 @@ public class NextbusSQLiteHelper extends OrmLiteSqliteOpenHelper {
     public Dao<Stop, Integer> getStopsDao() throws SQLException {
         if (stopsDao == null) {
             stopsDao = getDao(Stop.class);
-            stopsDao.setObjectCache(objectCache);
+            stopsDao.setObjectCache(getObjectCache());
         }
         return stopsDao;
     }
@@ -132,7 +214,6 @@ public class NextbusSQLiteHelper extends OrmLiteSqliteOpenHelper {
     public Dao<DirectionStop, Integer> getDirectionStopsDao() throws SQLException {
         if (directionStopsDao == null) {
             directionStopsDao = getDao(DirectionStop.class);
-            directionStopsDao.setObjectCache(objectCache);
         }
         return directionStopsDao;
     }
@@ -140,7 +221,6 @@ public class NextbusSQLiteHelper extends OrmLiteSqliteOpenHelper {
     public Dao<Geolocation, Integer> getGeolocationsDao() throws SQLException {
         if (geolocationsDao == null) {
             geolocationsDao = getDao(Geolocation.class);
-            geolocationsDao.setObjectCache(objectCache);
         }
         return geolocationsDao;
     }
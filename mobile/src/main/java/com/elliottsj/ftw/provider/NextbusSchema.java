@@ -0,0 +1,109 @@
+package com.elliottsj.ftw.provider;
+
+import com.elliottsj.ftw.provider.model.SavedStop;
+import com.j256.ormlite.dao.BaseDaoImpl;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.field.FieldType;
+import com.j256.ormlite.table.TableInfo;
+
+import com.elliottsj.nextbus.domain.Agency;
+import com.elliottsj.nextbus.domain.Direction;
+import com.elliottsj.nextbus.domain.DirectionStop;
+import com.elliottsj.nextbus.domain.Geolocation;
+import com.elliottsj.nextbus.domain.Route;
+import com.elliottsj.nextbus.domain.Stop;
+
+import java.sql.SQLException;
+
+/**
+ * Table and foreign key column names for the Nextbus tables, resolved from the OrmLite table configuration
+ * so that raw SQL stays in sync with the annotations on the Nextbus domain classes.
+ */
+class NextbusSchema {
+
+    final String agencies;
+    final String routes;
+    final String directions;
+    final String stops;
+    final String directionStops;
+    final String savedStops;
+    final String geolocations;
+
+    final String routeAgencyColumn;
+    final String directionRouteColumn;
+    final String stopAgencyColumn;
+    final String directionStopDirectionColumn;
+    final String directionStopStopColumn;
+    final String stopGeolocationColumn;
+
+    final String geolocationIdColumn;
+    final String geolocationLatitudeColumn;
+    final String geolocationLongitudeColumn;
+
+    NextbusSchema(NextbusSQLiteHelper helper) throws SQLException {
+        TableInfo<Agency, Integer> agencyInfo = tableInfo(helper.getAgenciesDao());
+        TableInfo<Route, Integer> routeInfo = tableInfo(helper.getRoutesDao());
+        TableInfo<Direction, Integer> directionInfo = tableInfo(helper.getDirectionsDao());
+        TableInfo<Stop, Integer> stopInfo = tableInfo(helper.getStopsDao());
+        TableInfo<DirectionStop, Integer> directionStopInfo = tableInfo(helper.getDirectionStopsDao());
+        TableInfo<SavedStop, Integer> savedStopInfo = tableInfo(helper.getSavedStopsDao());
+        TableInfo<Geolocation, Integer> geolocationInfo = tableInfo(helper.getGeolocationsDao());
+
+        agencies = agencyInfo.getTableName();
+        routes = routeInfo.getTableName();
+        directions = directionInfo.getTableName();
+        stops = stopInfo.getTableName();
+        directionStops = directionStopInfo.getTableName();
+        savedStops = savedStopInfo.getTableName();
+        geolocations = geolocationInfo.getTableName();
+
+        routeAgencyColumn = foreignColumn(routeInfo, Agency.class);
+        directionRouteColumn = foreignColumn(directionInfo, Route.class);
+        stopAgencyColumn = foreignColumn(stopInfo, Agency.class);
+        directionStopDirectionColumn = foreignColumn(directionStopInfo, Direction.class);
+        directionStopStopColumn = foreignColumn(directionStopInfo, Stop.class);
+        stopGeolocationColumn = foreignColumn(stopInfo, Geolocation.class);
+
+        geolocationIdColumn = geolocationInfo.getIdField().getColumnName();
+        geolocationLatitudeColumn = fieldColumn(geolocationInfo, "latitude");
+        geolocationLongitudeColumn = fieldColumn(geolocationInfo, "longitude");
+    }
+
+    static <T> TableInfo<T, Integer> tableInfo(Dao<T, Integer> dao) {
+        return ((BaseDaoImpl<T, Integer>) dao).getTableInfo();
+    }
+
+    /**
+     * Find the column in the given table which references the given foreign class.
+     *
+     * @param tableInfo table to search
+     * @param foreignClass the referenced domain class
+     * @return the foreign key column name
+     * @throws SQLException if the table has no such foreign field
+     */
+    static String foreignColumn(TableInfo<?, ?> tableInfo, Class<?> foreignClass) throws SQLException {
+        for (FieldType fieldType : tableInfo.getFieldTypes()) {
+            if (fieldType.isForeign() && fieldType.getType() == foreignClass)
+                return fieldType.getColumnName();
+        }
+        throw new SQLException(String.format("Table %s has no foreign field referencing %s",
+                                             tableInfo.getTableName(), foreignClass.getSimpleName()));
+    }
+
+    /**
+     * Find the column in the given table which stores the given Java field.
+     *
+     * @param tableInfo table to search
+     * @param fieldName name of the field in the domain class
+     * @return the column name
+     * @throws SQLException if the table has no such field
+     */
+    static String fieldColumn(TableInfo<?, ?> tableInfo, String fieldName) throws SQLException {
+        for (FieldType fieldType : tableInfo.getFieldTypes()) {
+            if (fieldType.getFieldName().equals(fieldName))
+                return fieldType.getColumnName();
+        }
+        throw new SQLException(String.format("Table %s has no field named %s", tableInfo.getTableName(), fieldName));
+    }
+
+}
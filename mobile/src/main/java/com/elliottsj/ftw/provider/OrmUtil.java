@@ -1,13 +1,16 @@
 package com.elliottsj.ftw.provider;
 
 import android.database.Cursor;
+import android.database.CursorWrapper;
 
 import com.j256.ormlite.android.AndroidDatabaseResults;
 import com.j256.ormlite.dao.CloseableIterator;
 import com.j256.ormlite.stmt.QueryBuilder;
 import com.j256.ormlite.stmt.SelectArg;
+import com.j256.ormlite.stmt.Where;
 
 import java.sql.SQLException;
+import java.util.Arrays;
 
 class OrmUtil {
 
@@ -27,9 +30,78 @@ class OrmUtil {
         if (sortOrder != null)
             queryBuilder.orderBy(sortOrder, true);
 
-        CloseableIterator iterator = queryBuilder.iterator();
+        return cursorFromIterator(queryBuilder.iterator());
+    }
+
+    /**
+     * Get a single page of a query using keyset pagination: rows are ordered by idColumn and the page starts after
+     * the given id, so fetching the next page is an index seek rather than an OFFSET scan.
+     *
+     * @param queryBuilder query to page through; must not have where clauses of its own
+     * @param idColumn unique, ordered column of the queried table, e.g. Stop.FIELD_ID; always part of the projection
+     * @param after last id of the previous page, or null for the first page
+     * @param limit maximum number of rows in the page, or null for all remaining rows
+     * @return a cursor over the page which releases the underlying query when closed
+     * @throws SQLException
+     */
+    static Cursor pagedCursorFromQueryBuilder(QueryBuilder queryBuilder, String idColumn, Long after, Long limit,
+                                              String[] projection, String selection, String[] selectionArgs) throws SQLException {
+        if (projection != null) {
+            queryBuilder.selectColumns(projection);
+            // The caller needs the id of the last row to request the next page
+            if (!Arrays.asList(projection).contains(idColumn))
+                queryBuilder.selectColumns(idColumn);
+        }
+
+        Where where = null;
+        int clauses = 0;
+        if (selection != null) {
+            where = queryBuilder.where();
+            where.raw(selection, OrmUtil.selectArgsFromStrings(selectionArgs));
+            clauses++;
+        }
+        if (after != null) {
+            if (where == null)
+                where = queryBuilder.where();
+            where.gt(idColumn, after);
+            clauses++;
+        }
+        if (clauses > 1)
+            where.and(clauses);
+
+        queryBuilder.orderBy(idColumn, true);
+        queryBuilder.limit(limit);
+
+        return cursorFromIterator(queryBuilder.iterator());
+    }
+
+    /**
+     * @return a cursor over the iterator's raw results which closes the iterator when it is closed
+     */
+    static Cursor cursorFromIterator(CloseableIterator iterator) {
         AndroidDatabaseResults results = (AndroidDatabaseResults) iterator.getRawResults();
-        return results.getRawCursor();
+        return new IteratorCursor(results.getRawCursor(), iterator);
+    }
+
+    /**
+     * A raw OrmLite cursor which also closes the iterator it was obtained from, releasing the compiled statement
+     * and database connection held by the iterator.
+     */
+    private static class IteratorCursor extends CursorWrapper {
+
+        private final CloseableIterator mIterator;
+
+        IteratorCursor(Cursor cursor, CloseableIterator iterator) {
+            super(cursor);
+            mIterator = iterator;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            mIterator.closeQuietly();
+        }
+
     }
 
 }
@@ -0,0 +1,165 @@
+package com.elliottsj.ftw.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.elliottsj.ftw.provider.model.SavedStop;
+
+import com.elliottsj.nextbus.domain.Agency;
+import com.elliottsj.nextbus.domain.Direction;
+import com.elliottsj.nextbus.domain.Route;
+import com.elliottsj.nextbus.domain.Stop;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes saved stops identified by agency, route, direction and stop tags.
+ *
+ * Tags are resolved to row ids with one direction lookup per distinct direction and batched IN queries for its
+ * stops, rather than joined queries per saved stop. Callers run writes inside a transaction.
+ */
+class SavedStopWriter {
+
+    private static final String TAG = SavedStopWriter.class.getSimpleName();
+
+    // Stay well below SQLite's limit of 999 bound variables per statement
+    private static final int MAX_IN_ARGS = 500;
+
+    private final SQLiteDatabase mDb;
+    private final NextbusSchema mSchema;
+
+    SavedStopWriter(SQLiteDatabase db, NextbusSchema schema) {
+        mDb = db;
+        mSchema = schema;
+    }
+
+    /**
+     * Save the stops described by the given values, each with the SAVED_STOPS tag columns. Stops which are already
+     * saved are skipped by the unique (stop, direction) index; new stops are appended after the last saved stop.
+     *
+     * @param values saved stop tags
+     * @return the number of saved stops inserted
+     */
+    int insert(ContentValues[] values) {
+        // Group stop tags by direction so that each direction is resolved once
+        Map<List<String>, List<String>> stopTagsByDirection = new LinkedHashMap<List<String>, List<String>>();
+        for (ContentValues value : values) {
+            List<String> directionKey = Arrays.asList(value.getAsString(NextbusProvider.SAVED_STOPS.COLUMN_AGENCY_TAG),
+                                                      value.getAsString(NextbusProvider.SAVED_STOPS.COLUMN_ROUTE_TAG),
+                                                      value.getAsString(NextbusProvider.SAVED_STOPS.COLUMN_DIRECTION_TAG));
+            List<String> stopTags = stopTagsByDirection.get(directionKey);
+            if (stopTags == null) {
+                stopTags = new ArrayList<String>();
+                stopTagsByDirection.put(directionKey, stopTags);
+            }
+            stopTags.add(value.getAsString(NextbusProvider.SAVED_STOPS.COLUMN_STOP_TAG));
+        }
+
+        int inserted = 0;
+        SQLiteStatement insertStatement = mDb.compileStatement(String.format(
+                "INSERT OR IGNORE INTO %1$s (%2$s, %3$s, %4$s) VALUES (?, ?, (SELECT COALESCE(MAX(%4$s), -1) + 1 FROM %1$s))",
+                mSchema.savedStops, SavedStop.FIELD_STOP_ID, SavedStop.FIELD_DIRECTION_ID, SavedStop.FIELD_POSITION));
+        try {
+            for (Map.Entry<List<String>, List<String>> entry : stopTagsByDirection.entrySet()) {
+                List<String> directionKey = entry.getKey();
+                Long directionId = queryDirectionId(directionKey.get(0), directionKey.get(1), directionKey.get(2));
+                if (directionId == null) {
+                    Log.w(TAG, "Cannot save stops of unknown direction " + directionKey);
+                    continue;
+                }
+
+                Map<String, Long> stopIds = queryStopIds(directionId, entry.getValue());
+                for (String stopTag : entry.getValue()) {
+                    Long stopId = stopIds.get(stopTag);
+                    if (stopId == null) {
+                        Log.w(TAG, "Cannot save unknown stop " + stopTag + " of direction " + directionKey);
+                        continue;
+                    }
+                    insertStatement.bindLong(1, stopId);
+                    insertStatement.bindLong(2, directionId);
+                    if (insertStatement.executeInsert() != -1)
+                        inserted++;
+                }
+            }
+        } finally {
+            insertStatement.close();
+        }
+        return inserted;
+    }
+
+    /**
+     * Move a saved stop to the given position in the saved stop list.
+     *
+     * @return the number of saved stops updated
+     */
+    int setPosition(String agencyTag, String routeTag, String directionTag, String stopTag, int position) {
+        Long directionId = queryDirectionId(agencyTag, routeTag, directionTag);
+        if (directionId == null)
+            return 0;
+        Long stopId = queryStopIds(directionId, Arrays.asList(stopTag)).get(stopTag);
+        if (stopId == null)
+            return 0;
+
+        ContentValues values = new ContentValues();
+        values.put(SavedStop.FIELD_POSITION, position);
+        return mDb.update(mSchema.savedStops, values,
+                          SavedStop.FIELD_STOP_ID + " = ? AND " + SavedStop.FIELD_DIRECTION_ID + " = ?",
+                          new String[] { Long.toString(stopId), Long.toString(directionId) });
+    }
+
+    private Long queryDirectionId(String agencyTag, String routeTag, String directionTag) {
+        Cursor cursor = mDb.rawQuery(String.format(
+                "SELECT d.%1$s FROM %2$s AS d JOIN %3$s AS r ON r.%4$s = d.%5$s JOIN %6$s AS a ON a.%7$s = r.%8$s" +
+                " WHERE a.%9$s = ? AND r.%10$s = ? AND d.%11$s = ?",
+                Direction.FIELD_ID, mSchema.directions, mSchema.routes, Route.FIELD_ID, mSchema.directionRouteColumn,
+                mSchema.agencies, Agency.FIELD_ID, mSchema.routeAgencyColumn,
+                Agency.FIELD_TAG, Route.FIELD_TAG, Direction.FIELD_TAG),
+                new String[] { agencyTag, routeTag, directionTag });
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Resolve the given stop tags of a direction to stop ids.
+     *
+     * @return a map of (stop tag -> stop id), without unknown tags
+     */
+    private Map<String, Long> queryStopIds(long directionId, List<String> stopTags) {
+        Map<String, Long> stopIds = new HashMap<String, Long>();
+        for (int start = 0; start < stopTags.size(); start += MAX_IN_ARGS) {
+            List<String> chunk = stopTags.subList(start, Math.min(start + MAX_IN_ARGS, stopTags.size()));
+            StringBuilder placeholders = new StringBuilder();
+            String[] args = new String[chunk.size() + 1];
+            args[0] = Long.toString(directionId);
+            for (int i = 0; i < chunk.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ", ?");
+                args[i + 1] = chunk.get(i);
+            }
+
+            Cursor cursor = mDb.rawQuery(String.format(
+                    "SELECT s.%1$s, s.%2$s FROM %3$s AS s JOIN %4$s AS ds ON ds.%5$s = s.%1$s" +
+                    " WHERE ds.%6$s = ? AND s.%2$s IN (%7$s)",
+                    Stop.FIELD_ID, Stop.FIELD_TAG, mSchema.stops, mSchema.directionStops,
+                    mSchema.directionStopStopColumn, mSchema.directionStopDirectionColumn, placeholders), args);
+            try {
+                while (cursor.moveToNext())
+                    stopIds.put(cursor.getString(1), cursor.getLong(0));
+            } finally {
+                cursor.close();
+            }
+        }
+        return stopIds;
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.elliottsj.ftw.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.elliottsj.nextbus.domain.Agency;
+import com.elliottsj.nextbus.domain.Route;
+import com.elliottsj.nextbus.domain.Stop;
+
+import java.util.Locale;
+
+/**
+ * Full-text index over the titles and tags of stored routes and stops, backed by two FTS4 tables whose docids
+ * are the ids of the indexed rows.
+ *
+ * The index is written by {@link NextbusIngester} inside the same transaction as the rows it indexes. Searches
+ * only read the local database, so they never wait for the network.
+ */
+class SearchIndex {
+
+    static final String ROUTES_TABLE = "routes_search";
+    static final String STOPS_TABLE = "stops_search";
+
+    private final SQLiteStatement mDeleteRouteStatement;
+    private final SQLiteStatement mInsertRouteStatement;
+    private final SQLiteStatement mDeleteStopStatement;
+    private final SQLiteStatement mInsertStopStatement;
+
+    /**
+     * Compile the statements which keep the index in sync with the routes and stops tables.
+     *
+     * @param db writable database, in the ingestion transaction
+     * @param schema resolved table and column names
+     */
+    SearchIndex(SQLiteDatabase db, NextbusSchema schema) {
+        mDeleteRouteStatement = db.compileStatement(String.format("DELETE FROM %s WHERE docid = ?", ROUTES_TABLE));
+        mInsertRouteStatement = db.compileStatement(String.format(
+                "INSERT INTO %s (docid, %s, %s, %s) SELECT %s, %s, %s, %s FROM %s WHERE %s = ?",
+                ROUTES_TABLE, Route.FIELD_TAG, Route.FIELD_TITLE, Route.FIELD_SHORT_TITLE,
+                Route.FIELD_ID, Route.FIELD_TAG, Route.FIELD_TITLE, Route.FIELD_SHORT_TITLE,
+                schema.routes, Route.FIELD_ID));
+        mDeleteStopStatement = db.compileStatement(String.format("DELETE FROM %s WHERE docid = ?", STOPS_TABLE));
+        mInsertStopStatement = db.compileStatement(String.format(
+                "INSERT INTO %s (docid, %s, %s) SELECT %s, %s, %s FROM %s WHERE %s = ?",
+                STOPS_TABLE, Stop.FIELD_TAG, Stop.FIELD_TITLE,
+                Stop.FIELD_ID, Stop.FIELD_TAG, Stop.FIELD_TITLE,
+                schema.stops, Stop.FIELD_ID));
+    }
+
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL(String.format("CREATE VIRTUAL TABLE IF NOT EXISTS %s USING fts4(%s, %s, %s)",
+                                 ROUTES_TABLE, Route.FIELD_TAG, Route.FIELD_TITLE, Route.FIELD_SHORT_TITLE));
+        db.execSQL(String.format("CREATE VIRTUAL TABLE IF NOT EXISTS %s USING fts4(%s, %s)",
+                                 STOPS_TABLE, Stop.FIELD_TAG, Stop.FIELD_TITLE));
+    }
+
+    /**
+     * Index every stored route and stop. Used when the index is first created.
+     */
+    static void rebuild(SQLiteDatabase db, NextbusSchema schema) {
+        db.execSQL("DELETE FROM " + ROUTES_TABLE);
+        db.execSQL(String.format("INSERT INTO %s (docid, %s, %s, %s) SELECT %s, %s, %s, %s FROM %s",
+                                 ROUTES_TABLE, Route.FIELD_TAG, Route.FIELD_TITLE, Route.FIELD_SHORT_TITLE,
+                                 Route.FIELD_ID, Route.FIELD_TAG, Route.FIELD_TITLE, Route.FIELD_SHORT_TITLE,
+                                 schema.routes));
+        db.execSQL("DELETE FROM " + STOPS_TABLE);
+        db.execSQL(String.format("INSERT INTO %s (docid, %s, %s) SELECT %s, %s, %s FROM %s",
+                                 STOPS_TABLE, Stop.FIELD_TAG, Stop.FIELD_TITLE,
+                                 Stop.FIELD_ID, Stop.FIELD_TAG, Stop.FIELD_TITLE,
+                                 schema.stops));
+    }
+
+    /**
+     * Re-index a route after its row was inserted or updated.
+     */
+    void indexRoute(long routeId) {
+        mDeleteRouteStatement.bindLong(1, routeId);
+        mDeleteRouteStatement.executeUpdateDelete();
+        mInsertRouteStatement.bindLong(1, routeId);
+        mInsertRouteStatement.executeInsert();
+    }
+
+    /**
+     * Re-index a stop after its row was inserted or updated.
+     */
+    void indexStop(long stopId) {
+        mDeleteStopStatement.bindLong(1, stopId);
+        mDeleteStopStatement.executeUpdateDelete();
+        mInsertStopStatement.bindLong(1, stopId);
+        mInsertStopStatement.executeInsert();
+    }
+
+    void close() {
+        mDeleteRouteStatement.close();
+        mInsertRouteStatement.close();
+        mDeleteStopStatement.close();
+        mInsertStopStatement.close();
+    }
+
+    /**
+     * Turn free text into an FTS prefix query matching rows which contain every word, e.g. "queen sp" becomes
+     * "queen* sp*".
+     *
+     * @param text search text typed by the user
+     * @return the match expression, or null if the text has no words
+     */
+    static String matchExpression(String text) {
+        // Drop FTS operators and punctuation; only letters and digits are indexed
+        String[] words = text.toLowerCase(Locale.US).replaceAll("[^\\p{L}\\p{N}]+", " ").trim().split(" ");
+        StringBuilder expression = new StringBuilder();
+        for (String word : words) {
+            if (word.isEmpty())
+                continue;
+            if (expression.length() > 0)
+                expression.append(' ');
+            expression.append(word).append('*');
+        }
+        return expression.length() > 0 ? expression.toString() : null;
+    }
+
+    /**
+     * Search the routes and stops of an agency.
+     *
+     * Results are ranked by whether the title starts with the first word of the search, then routes before stops,
+     * then by title length so that the closest matches come first.
+     *
+     * @param db readable database
+     * @param schema resolved table and column names
+     * @param agencyTag unique agency tag
+     * @param text search text typed by the user
+     * @param limit maximum number of results
+     * @return a cursor with columns NextbusProvider.SEARCH_CURSOR_COLUMNS, or null if the text has no words
+     */
+    static Cursor search(SQLiteDatabase db, NextbusSchema schema, String agencyTag, String text, long limit) {
+        String match = matchExpression(text);
+        if (match == null)
+            return null;
+        String firstWord = match.substring(0, match.indexOf('*'));
+
+        String sql = String.format(
+                "SELECT %1$s, %2$s, %3$s, %4$s, %5$s FROM (" +
+                " SELECT r.%6$s * 2 AS %1$s, '%7$s' AS %2$s, r.%8$s AS %3$s, r.%9$s AS %4$s, r.%10$s AS %5$s, 0 AS kind_rank" +
+                " FROM %11$s JOIN %12$s AS r ON r.%6$s = %11$s.docid JOIN %13$s AS a ON a.%14$s = r.%15$s" +
+                " WHERE %11$s MATCH ? AND a.%16$s = ?" +
+                " UNION ALL" +
+                " SELECT s.%17$s * 2 + 1, '%18$s', s.%19$s, s.%20$s, s.%21$s, 1" +
+                " FROM %22$s JOIN %23$s AS s ON s.%17$s = %22$s.docid JOIN %13$s AS a ON a.%14$s = s.%24$s" +
+                " WHERE %22$s MATCH ? AND a.%16$s = ?" +
+                ") ORDER BY (%4$s LIKE ?) DESC, kind_rank, length(%4$s), %4$s LIMIT ?",
+                NextbusProvider.SEARCH.COLUMN_ID, NextbusProvider.SEARCH.COLUMN_KIND, NextbusProvider.SEARCH.COLUMN_TAG,
+                NextbusProvider.SEARCH.COLUMN_TITLE, NextbusProvider.SEARCH.COLUMN_SHORT_TITLE,
+                Route.FIELD_ID, NextbusProvider.SEARCH.KIND_ROUTE,
+                Route.FIELD_TAG, Route.FIELD_TITLE, Route.FIELD_SHORT_TITLE,
+                ROUTES_TABLE, schema.routes, schema.agencies, Agency.FIELD_ID, schema.routeAgencyColumn, Agency.FIELD_TAG,
+                Stop.FIELD_ID, NextbusProvider.SEARCH.KIND_STOP,
+                Stop.FIELD_TAG, Stop.FIELD_TITLE, Stop.FIELD_SHORT_TITLE,
+                STOPS_TABLE, schema.stops, schema.stopAgencyColumn);
+        return db.rawQuery(sql, new String[] { match, agencyTag, match, agencyTag,
+                                               firstWord + "%", Long.toString(limit) });
+    }
+
+}
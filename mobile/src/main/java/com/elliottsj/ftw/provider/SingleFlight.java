@@ -0,0 +1,88 @@
+package com.elliottsj.ftw.provider;
+
+import com.elliottsj.nextbus.service.TransientServiceException;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls with the same key: the first caller runs the call on its own thread, and callers
+ * arriving while it is running wait for it and share its result or exception instead of making the call again.
+ *
+ * @param <V> the result of a call
+ */
+class SingleFlight<V> {
+
+    private final ConcurrentMap<String, FutureTask<V>> mInFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mDeduplicated = new AtomicLong();
+
+    /**
+     * Run a call, or wait for the call already running with the same key.
+     *
+     * @param key identifies calls which have the same result, e.g. "agencies/ttc/routes/506"
+     * @param call makes the call
+     * @return the result of the call
+     * @throws SQLException
+     */
+    V run(String key, Callable<V> call) throws SQLException {
+        FutureTask<V> task = new FutureTask<V>(call);
+        FutureTask<V> running = mInFlight.putIfAbsent(key, task);
+        if (running != null) {
+            mDeduplicated.incrementAndGet();
+            return get(running);
+        }
+
+        mCalls.incrementAndGet();
+        try {
+            task.run();
+        } finally {
+            mInFlight.remove(key, task);
+        }
+        return get(task);
+    }
+
+    private static <V> V get(FutureTask<V> task) throws SQLException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransientServiceException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * @return number of calls made
+     */
+    long getCallCount() {
+        return mCalls.get();
+    }
+
+    /**
+     * @return number of callers which shared the result of a call made by another caller
+     */
+    long getDeduplicatedCount() {
+        return mDeduplicated.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("calls=%d deduplicated=%d", getCallCount(), getDeduplicatedCount());
+    }
+
+}
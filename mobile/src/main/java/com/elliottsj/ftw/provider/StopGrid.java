@@ -0,0 +1,176 @@
+package com.elliottsj.ftw.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.location.Location;
+
+import com.elliottsj.nextbus.domain.Agency;
+import com.elliottsj.nextbus.domain.Stop;
+
+import java.util.Locale;
+
+/**
+ * Spatial index over the locations of stored stops, used to find the stops nearest to a location.
+ *
+ * Each stop is assigned to a cell of a fixed grid of CELL_DEGREES x CELL_DEGREES cells. The stop_cells table is
+ * indexed by (agency, cell), so a nearby query reads only the stops in the few cells covering the search circle
+ * rather than every stop of the agency. SQLite's R-tree module is not available on every Android version, which
+ * is why a plain indexed grid is used.
+ *
+ * Like {@link SearchIndex}, the grid is written by {@link NextbusIngester} in the same transaction as the stops.
+ */
+class StopGrid {
+
+    static final String TABLE = "stop_cells";
+    static final String COLUMN_STOP = "stop";
+    static final String COLUMN_AGENCY = "agency";
+    static final String COLUMN_CELL = "cell";
+    static final String COLUMN_LATITUDE = "latitude";
+    static final String COLUMN_LONGITUDE = "longitude";
+
+    // About 550 m of latitude; a typical nearby search covers a 3 x 3 block of cells
+    static final double CELL_DEGREES = 0.005;
+    // Cells per row of the grid, rounded up so that a cell id is (row * ROW_STRIDE + column)
+    private static final long ROW_STRIDE = 100000;
+
+    static final int MAX_RADIUS_METERS = 5000;
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private final SQLiteStatement mDeleteStatement;
+    private final SQLiteStatement mInsertStatement;
+
+    /**
+     * Compile the statements which keep the grid in sync with the stops table.
+     *
+     * @param db writable database, in the ingestion transaction
+     * @param schema resolved table and column names
+     */
+    StopGrid(SQLiteDatabase db, NextbusSchema schema) {
+        mDeleteStatement = db.compileStatement(String.format("DELETE FROM %s WHERE %s = ?", TABLE, COLUMN_STOP));
+        mInsertStatement = db.compileStatement(insertSql(schema) + String.format(" WHERE s.%s = ?", Stop.FIELD_ID));
+    }
+
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL(String.format("CREATE TABLE IF NOT EXISTS %s (%s INTEGER PRIMARY KEY, %s INTEGER NOT NULL, " +
+                                 "%s INTEGER NOT NULL, %s REAL NOT NULL, %s REAL NOT NULL)",
+                                 TABLE, COLUMN_STOP, COLUMN_AGENCY, COLUMN_CELL, COLUMN_LATITUDE, COLUMN_LONGITUDE));
+        NextbusMigrations.createIndex(db, false, TABLE, COLUMN_AGENCY, COLUMN_CELL);
+    }
+
+    /**
+     * Add every stored stop to the grid. Used when the grid is first created.
+     */
+    static void rebuild(SQLiteDatabase db, NextbusSchema schema) {
+        db.execSQL("DELETE FROM " + TABLE);
+        db.execSQL(insertSql(schema));
+    }
+
+    /**
+     * Select the grid rows for stops joined with their geolocations. The cell expression must match
+     * {@link #row(double)} and {@link #column(double)}.
+     */
+    private static String insertSql(NextbusSchema schema) {
+        return String.format(Locale.US,
+                "INSERT INTO %1$s (%2$s, %3$s, %4$s, %5$s, %6$s)" +
+                " SELECT s.%7$s, s.%8$s," +
+                " CAST((g.%9$s + 90) / %11$s AS INTEGER) * %12$d + CAST((g.%10$s + 180) / %11$s AS INTEGER)," +
+                " g.%9$s, g.%10$s" +
+                " FROM %13$s AS s JOIN %14$s AS g ON g.%15$s = s.%16$s",
+                TABLE, COLUMN_STOP, COLUMN_AGENCY, COLUMN_CELL, COLUMN_LATITUDE, COLUMN_LONGITUDE,
+                Stop.FIELD_ID, schema.stopAgencyColumn,
+                schema.geolocationLatitudeColumn, schema.geolocationLongitudeColumn,
+                Double.toString(CELL_DEGREES), ROW_STRIDE,
+                schema.stops, schema.geolocations, schema.geolocationIdColumn, schema.stopGeolocationColumn);
+    }
+
+    /**
+     * Move a stop to its current cell after its row was inserted or updated.
+     */
+    void indexStop(long stopId) {
+        mDeleteStatement.bindLong(1, stopId);
+        mDeleteStatement.executeUpdateDelete();
+        mInsertStatement.bindLong(1, stopId);
+        mInsertStatement.executeInsert();
+    }
+
+    void close() {
+        mDeleteStatement.close();
+        mInsertStatement.close();
+    }
+
+    private static long row(double latitude) {
+        return (long) ((latitude + 90) / CELL_DEGREES);
+    }
+
+    private static long column(double longitude) {
+        return (long) ((longitude + 180) / CELL_DEGREES);
+    }
+
+    /**
+     * Find the stops of an agency nearest to a location.
+     *
+     * Candidates are read from the cells overlapping the search circle and ordered in SQL by an equirectangular
+     * approximation of their distance, which is accurate at the scale of a city; exact distances are computed
+     * only for the k returned stops.
+     *
+     * @param db readable database
+     * @param schema resolved table and column names
+     * @param agencyTag unique agency tag
+     * @param latitude latitude of the location
+     * @param longitude longitude of the location
+     * @param radiusMeters maximum distance of a returned stop, capped at MAX_RADIUS_METERS
+     * @param k maximum number of stops
+     * @return a cursor with columns NextbusProvider.NEARBY_STOPS_CURSOR_COLUMNS, nearest stop first
+     */
+    static Cursor nearby(SQLiteDatabase db, NextbusSchema schema, String agencyTag,
+                         double latitude, double longitude, double radiusMeters, long k) {
+        radiusMeters = Math.min(radiusMeters, MAX_RADIUS_METERS);
+        double cosLatitude = Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+        double latitudeDelta = radiusMeters / METERS_PER_DEGREE;
+        double longitudeDelta = latitudeDelta / cosLatitude;
+
+        // One cell id range per grid row; pad by a cell to absorb rounding differences with the SQL cell expression
+        long firstColumn = column(longitude - longitudeDelta) - 1;
+        long lastColumn = column(longitude + longitudeDelta) + 1;
+        StringBuilder cellRanges = new StringBuilder();
+        for (long row = row(latitude - latitudeDelta) - 1; row <= row(latitude + latitudeDelta) + 1; row++) {
+            if (cellRanges.length() > 0)
+                cellRanges.append(" OR ");
+            cellRanges.append(String.format(Locale.US, "c.%s BETWEEN %d AND %d", COLUMN_CELL,
+                                            row * ROW_STRIDE + firstColumn, row * ROW_STRIDE + lastColumn));
+        }
+
+        // Numbers are inlined rather than bound, since bound strings would compare as text
+        String dy = String.format(Locale.US, "(c.%s - %s)", COLUMN_LATITUDE, Double.toString(latitude));
+        String dx = String.format(Locale.US, "((c.%s - %s) * %s)", COLUMN_LONGITUDE, Double.toString(longitude),
+                                  Double.toString(cosLatitude));
+        String sql = String.format(Locale.US,
+                "SELECT s.%1$s, s.%2$s, s.%3$s, s.%4$s, c.%5$s, c.%6$s, %7$s * %7$s + %8$s * %8$s AS d2" +
+                " FROM %9$s AS c JOIN %10$s AS s ON s.%1$s = c.%11$s JOIN %12$s AS a ON a.%13$s = c.%14$s" +
+                " WHERE a.%15$s = ? AND (%16$s) AND d2 <= %17$s" +
+                " ORDER BY d2 LIMIT %18$d",
+                Stop.FIELD_ID, Stop.FIELD_TAG, Stop.FIELD_TITLE, Stop.FIELD_SHORT_TITLE,
+                COLUMN_LATITUDE, COLUMN_LONGITUDE, dy, dx,
+                TABLE, schema.stops, COLUMN_STOP, schema.agencies, Agency.FIELD_ID, COLUMN_AGENCY,
+                Agency.FIELD_TAG, cellRanges, Double.toString(latitudeDelta * latitudeDelta), k);
+
+        MatrixCursor result = new MatrixCursor(NextbusProvider.NEARBY_STOPS_CURSOR_COLUMNS);
+        float[] distance = new float[1];
+        Cursor cursor = db.rawQuery(sql, new String[] { agencyTag });
+        try {
+            while (cursor.moveToNext()) {
+                double stopLatitude = cursor.getDouble(4);
+                double stopLongitude = cursor.getDouble(5);
+                Location.distanceBetween(latitude, longitude, stopLatitude, stopLongitude, distance);
+                result.addRow(new Object[] { cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                                             cursor.getString(3), stopLatitude, stopLongitude, distance[0] });
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,343 @@
+package com.elliottsj.ftw.provider;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.location.Location;
+import android.net.Uri;
+import android.util.Log;
+
+import com.j256.ormlite.android.apptools.OpenHelperManager;
+
+import com.elliottsj.nextbus.domain.Agency;
+import com.elliottsj.nextbus.domain.Stop;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A read-only, memory-compact index of the stored stops of an agency, for answering nearest-stop queries on
+ * every location update without touching SQLite or creating Stop objects.
+ *
+ * Stops are kept in primitive arrays sorted by latitude, with their strings packed into one char array, and a query
+ * scans only the latitude band of its search circle. The index is rebuilt in the background when the stops change.
+ */
+public final class StopIndex {
+
+    private static final String TAG = StopIndex.class.getSimpleName();
+
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private static final ConcurrentMap<String, Holder> sHolders = new ConcurrentHashMap<String, Holder>();
+    private static final ExecutorService sRebuildExecutor = Executors.newSingleThreadExecutor();
+
+    private final int[] mIds;
+    private final float[] mLatitudes;
+    private final float[] mLongitudes;
+    // Tag i is mStrings[mOffsets[3i], mOffsets[3i + 1]), title i is mStrings[mOffsets[3i + 1], mOffsets[3i + 2])
+    // and short title i is mStrings[mOffsets[3i + 2], mOffsets[3i + 3])
+    private final int[] mOffsets;
+    private final char[] mStrings;
+    // Bit j is set if string j is null rather than empty
+    private final BitSet mNulls;
+
+    private StopIndex(int[] ids, float[] latitudes, float[] longitudes, int[] offsets, char[] strings, BitSet nulls) {
+        mIds = ids;
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+        mOffsets = offsets;
+        mStrings = strings;
+        mNulls = nulls;
+    }
+
+    /**
+     * Get the stop index of an agency, loading it from the database if it is not loaded yet. The first call for an
+     * agency blocks, so avoid calling it on the main thread.
+     *
+     * @param context a context
+     * @param agencyTag unique agency tag
+     * @return the current index, or null if it could not be loaded; later changes to the agency's stops are
+     *         reflected by later calls
+     */
+    public static StopIndex get(Context context, String agencyTag) {
+        Holder holder = sHolders.get(agencyTag);
+        if (holder == null) {
+            Holder newHolder = new Holder(context.getApplicationContext(), agencyTag);
+            holder = sHolders.putIfAbsent(agencyTag, newHolder);
+            if (holder == null) {
+                holder = newHolder;
+                holder.register();
+            }
+        }
+        return holder.getIndex();
+    }
+
+    /**
+     * Load the index of an agency from the stop grid.
+     */
+    static StopIndex load(SQLiteDatabase db, NextbusSchema schema, String agencyTag) {
+        String sql = String.format(
+                "SELECT c.%1$s, c.%2$s, c.%3$s, s.%4$s, s.%5$s, s.%13$s" +
+                " FROM %6$s AS c JOIN %7$s AS s ON s.%8$s = c.%1$s JOIN %9$s AS a ON a.%10$s = c.%11$s" +
+                " WHERE a.%12$s = ? ORDER BY c.%2$s",
+                StopGrid.COLUMN_STOP, StopGrid.COLUMN_LATITUDE, StopGrid.COLUMN_LONGITUDE,
+                Stop.FIELD_TAG, Stop.FIELD_TITLE,
+                StopGrid.TABLE, schema.stops, Stop.FIELD_ID, schema.agencies, Agency.FIELD_ID, StopGrid.COLUMN_AGENCY,
+                Agency.FIELD_TAG, Stop.FIELD_SHORT_TITLE);
+        Cursor cursor = db.rawQuery(sql, new String[] { agencyTag });
+        try {
+            int size = cursor.getCount();
+            int[] ids = new int[size];
+            float[] latitudes = new float[size];
+            float[] longitudes = new float[size];
+            int[] offsets = new int[3 * size + 1];
+            StringBuilder strings = new StringBuilder(size * 32);
+            BitSet nulls = new BitSet();
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getInt(0);
+                latitudes[i] = cursor.getFloat(1);
+                longitudes[i] = cursor.getFloat(2);
+                for (int j = 0; j < 3; j++) {
+                    offsets[3 * i + j] = strings.length();
+                    String string = cursor.getString(3 + j);
+                    if (string != null)
+                        strings.append(string);
+                    else
+                        nulls.set(3 * i + j);
+                }
+            }
+            offsets[3 * size] = strings.length();
+
+            char[] chars = new char[strings.length()];
+            strings.getChars(0, chars.length, chars, 0);
+            return new StopIndex(ids, latitudes, longitudes, offsets, chars, nulls);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public int size() {
+        return mIds.length;
+    }
+
+    /**
+     * @param index position in this index, as returned by a nearest-stop query
+     * @return the row id of the stop
+     */
+    public int getId(int index) {
+        return mIds[index];
+    }
+
+    public float getLatitude(int index) {
+        return mLatitudes[index];
+    }
+
+    public float getLongitude(int index) {
+        return mLongitudes[index];
+    }
+
+    public String getTag(int index) {
+        return getString(3 * index);
+    }
+
+    public String getTitle(int index) {
+        return getString(3 * index + 1);
+    }
+
+    /**
+     * @return the short title of the stop, or null if it has none
+     */
+    public String getShortTitle(int index) {
+        return getString(3 * index + 2);
+    }
+
+    private String getString(int offset) {
+        if (mNulls.get(offset))
+            return null;
+        return new String(mStrings, mOffsets[offset], mOffsets[offset + 1] - mOffsets[offset]);
+    }
+
+    /**
+     * Find the stop nearest to a location.
+     *
+     * @param latitude latitude of the location
+     * @param longitude longitude of the location
+     * @param radiusMeters maximum distance of the stop
+     * @return position of the nearest stop in this index, or -1 if no stop is within radiusMeters
+     */
+    public int nearest(double latitude, double longitude, double radiusMeters) {
+        double cosLatitude = Math.cos(Math.toRadians(latitude));
+        double latitudeDelta = radiusMeters / METERS_PER_DEGREE;
+        double bestDistanceSquared = latitudeDelta * latitudeDelta;
+        int best = -1;
+        for (int i = lowerBound(latitude - latitudeDelta); i < mLatitudes.length && mLatitudes[i] <= latitude + latitudeDelta; i++) {
+            double dy = mLatitudes[i] - latitude;
+            double dx = (mLongitudes[i] - longitude) * cosLatitude;
+            double distanceSquared = dx * dx + dy * dy;
+            if (distanceSquared <= bestDistanceSquared) {
+                bestDistanceSquared = distanceSquared;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Find the stops nearest to a location, nearest first. At most indexes.length stops are returned.
+     *
+     * @param latitude latitude of the location
+     * @param longitude longitude of the location
+     * @param radiusMeters maximum distance of a returned stop
+     * @param indexes receives the positions of the nearest stops in this index
+     * @param distances receives the approximate distances in meters of the nearest stops; at least as long as indexes
+     * @return the number of stops found
+     */
+    public int nearest(double latitude, double longitude, double radiusMeters, int[] indexes, float[] distances) {
+        int k = indexes.length;
+        if (k == 0)
+            return 0;
+        int found = 0;
+        double cosLatitude = Math.cos(Math.toRadians(latitude));
+        double latitudeDelta = radiusMeters / METERS_PER_DEGREE;
+        float maxDistanceSquared = (float) (latitudeDelta * latitudeDelta);
+        for (int i = lowerBound(latitude - latitudeDelta); i < mLatitudes.length && mLatitudes[i] <= latitude + latitudeDelta; i++) {
+            double dy = mLatitudes[i] - latitude;
+            double dx = (mLongitudes[i] - longitude) * cosLatitude;
+            float distanceSquared = (float) (dx * dx + dy * dy);
+            if (distanceSquared > maxDistanceSquared || (found == k && distanceSquared >= distances[k - 1]))
+                continue;
+
+            // Insert into the sorted results, dropping the farthest one if they are full
+            int j = found < k ? found++ : k - 1;
+            while (j > 0 && distances[j - 1] > distanceSquared) {
+                distances[j] = distances[j - 1];
+                indexes[j] = indexes[j - 1];
+                j--;
+            }
+            distances[j] = distanceSquared;
+            indexes[j] = i;
+        }
+        for (int i = 0; i < found; i++)
+            distances[i] = (float) (Math.sqrt(distances[i]) * METERS_PER_DEGREE);
+        return found;
+    }
+
+    /**
+     * Find the stops nearest to a location, as StopGrid.nearby does from the database.
+     *
+     * @param latitude latitude of the location
+     * @param longitude longitude of the location
+     * @param radiusMeters maximum distance of a returned stop, capped at StopGrid.MAX_RADIUS_METERS
+     * @param k maximum number of stops
+     * @return a cursor with columns NextbusProvider.NEARBY_STOPS_CURSOR_COLUMNS, nearest stop first
+     */
+    Cursor nearby(double latitude, double longitude, double radiusMeters, int k) {
+        int[] indexes = new int[k];
+        float[] distances = new float[k];
+        int found = nearest(latitude, longitude, Math.min(radiusMeters, StopGrid.MAX_RADIUS_METERS), indexes,
+                            distances);
+        MatrixCursor result = new MatrixCursor(NextbusProvider.NEARBY_STOPS_CURSOR_COLUMNS, found);
+        float[] distance = new float[1];
+        for (int i = 0; i < found; i++) {
+            int index = indexes[i];
+            Location.distanceBetween(latitude, longitude, mLatitudes[index], mLongitudes[index], distance);
+            result.addRow(new Object[] { (long) mIds[index], getTag(index), getTitle(index), getShortTitle(index),
+                                         (double) mLatitudes[index], (double) mLongitudes[index], distance[0] });
+        }
+        return result;
+    }
+
+    /**
+     * @return the first position whose latitude is at least the given latitude
+     */
+    private int lowerBound(double latitude) {
+        int i = Arrays.binarySearch(mLatitudes, (float) latitude);
+        if (i < 0)
+            return -i - 1;
+        // Step back over equal latitudes
+        while (i > 0 && mLatitudes[i - 1] >= latitude)
+            i--;
+        return i;
+    }
+
+    /**
+     * Holds the current index of an agency and replaces it when the agency's data changes.
+     */
+    private static class Holder extends ContentObserver {
+
+        private final Context mContext;
+        private final String mAgencyTag;
+        private volatile StopIndex mIndex;
+        private boolean mRebuildPending;
+
+        Holder(Context context, String agencyTag) {
+            super(null);
+            mContext = context;
+            mAgencyTag = agencyTag;
+        }
+
+        void register() {
+            // Stored route configurations are reported at the agency's stops uri; see ChangeNotifier
+            Uri stopsUri = Uri.withAppendedPath(NextbusProvider.CONTENT_URI, "agencies/" + mAgencyTag + "/stops");
+            mContext.getContentResolver().registerContentObserver(stopsUri, true, this);
+        }
+
+        StopIndex getIndex() {
+            StopIndex index = mIndex;
+            if (index == null) {
+                synchronized (this) {
+                    if (mIndex == null)
+                        mIndex = build();
+                    index = mIndex;
+                }
+            }
+            return index;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            synchronized (this) {
+                // Coalesce bursts of changes, e.g. while an agency's routes are prefetched, into one rebuild
+                if (mRebuildPending || mIndex == null)
+                    return;
+                mRebuildPending = true;
+            }
+            sRebuildExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Holder.this) {
+                        mRebuildPending = false;
+                    }
+                    StopIndex index = build();
+                    if (index != null)
+                        mIndex = index;
+                }
+            });
+        }
+
+        private StopIndex build() {
+            long startTime = System.nanoTime();
+            NextbusSQLiteHelper helper = OpenHelperManager.getHelper(mContext, NextbusSQLiteHelper.class);
+            try {
+                StopIndex index = load(helper.getReadableDatabase(), helper.getSchema(), mAgencyTag);
+                Log.i(TAG, String.format("Indexed %d stops of %s in %d ms", index.size(), mAgencyTag,
+                                         (System.nanoTime() - startTime) / 1000000));
+                return index;
+            } catch (SQLException e) {
+                Log.e(TAG, "Failed to index stops of " + mAgencyTag, e);
+                return mIndex;
+            } finally {
+                OpenHelperManager.releaseHelper();
+            }
+        }
+
+    }
+
+}
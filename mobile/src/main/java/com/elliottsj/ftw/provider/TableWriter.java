@@ -0,0 +1,139 @@
+package com.elliottsj.ftw.provider;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.j256.ormlite.field.FieldType;
+import com.j256.ormlite.table.TableInfo;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes rows of a single OrmLite table through reusable compiled statements, avoiding the per-row statement
+ * building and id lookups done by the DAOs. Instances are meant to be used for one batch inside a single
+ * transaction and closed afterwards.
+ *
+ * @param <T> the domain class mapped to the table
+ */
+class TableWriter<T> {
+
+    private final FieldType mIdField;
+    private final FieldType[] mColumns;
+
+    private final SQLiteStatement mInsertStatement;
+    private final SQLiteStatement mUpdateStatement;
+
+    /**
+     * @param database writable database, normally inside a transaction
+     * @param tableInfo OrmLite table info for the domain class
+     * @param conflictAlgorithm conflict clause for inserts, e.g. "OR IGNORE", or an empty string
+     */
+    TableWriter(SQLiteDatabase database, TableInfo<T, Integer> tableInfo, String conflictAlgorithm) {
+        mIdField = tableInfo.getIdField();
+
+        List<FieldType> columns = new ArrayList<FieldType>();
+        for (FieldType fieldType : tableInfo.getFieldTypes()) {
+            if (!fieldType.isGeneratedId() && !fieldType.isForeignCollection())
+                columns.add(fieldType);
+        }
+        mColumns = columns.toArray(new FieldType[columns.size()]);
+
+        StringBuilder insertSql = new StringBuilder("INSERT ").append(conflictAlgorithm)
+                .append(" INTO ").append(tableInfo.getTableName()).append(" (");
+        StringBuilder valuesSql = new StringBuilder(") VALUES (");
+        StringBuilder updateSql = new StringBuilder("UPDATE ").append(tableInfo.getTableName()).append(" SET ");
+        for (int i = 0; i < mColumns.length; i++) {
+            String separator = i == 0 ? "" : ", ";
+            insertSql.append(separator).append(mColumns[i].getColumnName());
+            valuesSql.append(separator).append('?');
+            updateSql.append(separator).append(mColumns[i].getColumnName()).append(" = ?");
+        }
+        insertSql.append(valuesSql).append(')');
+        updateSql.append(" WHERE ").append(mIdField.getColumnName()).append(" = ?");
+
+        mInsertStatement = database.compileStatement(insertSql.toString());
+        mUpdateStatement = database.compileStatement(updateSql.toString());
+    }
+
+    /**
+     * Insert a row and assign the generated id to the given object.
+     *
+     * @param data object to insert
+     * @return the generated row id, or -1 if the insert was ignored by the conflict clause
+     * @throws SQLException
+     */
+    long insert(T data) throws SQLException {
+        bindColumns(mInsertStatement, data);
+        long rowId = mInsertStatement.executeInsert();
+        if (rowId != -1)
+            assignId(data, rowId);
+        return rowId;
+    }
+
+    /**
+     * Update every column of the row whose id is assigned to the given object.
+     *
+     * @param data object to update
+     * @return the number of rows affected
+     * @throws SQLException
+     */
+    int update(T data) throws SQLException {
+        bindColumns(mUpdateStatement, data);
+        Object id = mIdField.extractJavaFieldToSqlArgValue(data);
+        bindValue(mUpdateStatement, mColumns.length + 1, id);
+        return mUpdateStatement.executeUpdateDelete();
+    }
+
+    /**
+     * Assign an existing row id to the given object, e.g. after resolving it through a tag lookup.
+     *
+     * @param data object to modify
+     * @param id row id
+     * @throws SQLException
+     */
+    void assignId(T data, long id) throws SQLException {
+        mIdField.assignIdValue(data, id, null);
+    }
+
+    void close() {
+        mInsertStatement.close();
+        mUpdateStatement.close();
+    }
+
+    private void bindColumns(SQLiteStatement statement, T data) throws SQLException {
+        statement.clearBindings();
+        for (int i = 0; i < mColumns.length; i++) {
+            FieldType fieldType = mColumns[i];
+            if (fieldType.isForeign() && fieldType.isForeignAutoCreate())
+                createForeignIfNecessary(fieldType, data);
+            bindValue(statement, i + 1, fieldType.extractJavaFieldToSqlArgValue(data));
+        }
+    }
+
+    /**
+     * Mirror OrmLite's foreignAutoCreate behaviour for foreign objects which have not been stored yet.
+     */
+    private void createForeignIfNecessary(FieldType fieldType, T data) throws SQLException {
+        Object foreign = fieldType.extractJavaFieldValue(data);
+        if (foreign != null && fieldType.getForeignIdField().isObjectsFieldValueDefault(foreign))
+            fieldType.createWithForeignDao(foreign);
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null)
+            statement.bindNull(index);
+        else if (value instanceof Float || value instanceof Double)
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        else if (value instanceof Number)
+            statement.bindLong(index, ((Number) value).longValue());
+        else if (value instanceof Boolean)
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        else if (value instanceof byte[])
+            statement.bindBlob(index, (byte[]) value);
+        else
+            statement.bindString(index, value.toString());
+    }
+
+}
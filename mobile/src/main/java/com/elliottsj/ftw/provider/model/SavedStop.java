@@ -12,6 +12,7 @@ public class SavedStop {
     public static final String FIELD_ID = "_id";
     public static final String FIELD_STOP_ID = "stop_id";
     public static final String FIELD_DIRECTION_ID = "direction_id";
+    public static final String FIELD_POSITION = "position";
 
     @DatabaseField(columnName = FIELD_ID, generatedId = true)
     private int _id;
@@ -22,6 +23,9 @@ public class SavedStop {
     @DatabaseField(columnName = FIELD_DIRECTION_ID, canBeNull = false, foreign = true)
     private Direction direction;
 
+    @DatabaseField(columnName = FIELD_POSITION, canBeNull = false, defaultValue = "0")
+    private int position;
+
     /**
      * Empty constructor for OrmLite
      */
@@ -44,4 +48,8 @@ public class SavedStop {
         return direction;
     }
 
+    public int getPosition() {
+        return position;
+    }
+
 }
@@ -1,16 +1,126 @@
 package com.elliottsj.ftw.services;
 
 import android.app.IntentService;
+import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
 
+import com.elliottsj.ftw.provider.NextbusQueryHelper;
+import com.elliottsj.ftw.utilities.AndroidNextbusService;
+import com.elliottsj.ftw.utilities.AndroidRPCImpl;
+import com.elliottsj.ftw.utilities.BandwidthGovernor;
+import com.elliottsj.ftw.utilities.ConditionalGetCache;
+
+import com.elliottsj.nextbus.domain.Route;
+import com.elliottsj.nextbus.service.ServiceException;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Prefetches the configuration of every route of an agency so that the agency can be browsed offline.
+ *
+ * Route configurations are downloaded and stored on a small thread pool, so one route's download overlaps another's
+ * storage. Each goes through NextbusQueryHelper#downloadRouteConfig, so a route the UI is already downloading is not
+ * downloaded twice. Routes whose stored configuration is still fresh are skipped, which lets an interrupted prefetch
+ * resume where it left off. Downloads are made at background priority, so the shared BandwidthGovernor paces them
+ * and keeps part of the NextBus bandwidth limit for interactive requests.
+ */
 public class CacheRouteConfigurationsService extends IntentService {
 
-    public CacheRouteConfigurationsService(String name) {
-        super(name);
+    private static final String TAG = CacheRouteConfigurationsService.class.getSimpleName();
+
+    public static final String EXTRA_AGENCY_TAG = "com.elliottsj.ftw.AGENCY_TAG";
+
+    // Maximum number of route configurations downloading at once
+    private static final int MAX_CONCURRENT_DOWNLOADS = 2;
+
+    public CacheRouteConfigurationsService() {
+        super(TAG);
+        // Restart the prefetch if the process is killed mid-way
+        setIntentRedelivery(true);
+    }
+
+    /**
+     * Start prefetching the route configurations of an agency.
+     *
+     * @param context a context
+     * @param agencyTag unique agency tag
+     */
+    public static void startCaching(Context context, String agencyTag) {
+        Intent intent = new Intent(context, CacheRouteConfigurationsService.class);
+        intent.putExtra(EXTRA_AGENCY_TAG, agencyTag);
+        context.startService(intent);
     }
 
     @Override
     protected void onHandleIntent(Intent intent) {
-//        intent.get
+        final String agencyTag = intent.getStringExtra(EXTRA_AGENCY_TAG);
+        if (agencyTag == null) {
+            Log.w(TAG, "No agency tag given");
+            return;
+        }
+
+        AndroidRPCImpl rpcImpl = new AndroidRPCImpl(ConditionalGetCache.get(this), BandwidthGovernor.Priority.BACKGROUND);
+        final NextbusQueryHelper queryHelper = new NextbusQueryHelper(this, new AndroidNextbusService(rpcImpl));
+        ExecutorService downloadExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS);
+        long startTime = SystemClock.elapsedRealtime();
+        int routesStored = 0;
+        try {
+            List<Route> routes = new ArrayList<Route>();
+            for (Route route : queryHelper.getRoutes(agencyTag)) {
+                if (queryHelper.isRouteConfigStale(agencyTag, route.getTag()))
+                    routes.add(route);
+            }
+            // Only looked up now, since fetching the routes is what stores the agency on a fresh install
+            if (queryHelper.getAgency(agencyTag) == null) {
+                Log.w(TAG, "Agency " + agencyTag + " is not served");
+                return;
+            }
+            Log.i(TAG, String.format("Caching %d route configurations for %s", routes.size(), agencyTag));
+
+            List<Future<Void>> downloads = new ArrayList<Future<Void>>();
+            for (final Route route : routes) {
+                downloads.add(downloadExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        queryHelper.downloadRouteConfig(agencyTag, route.getTag());
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < downloads.size(); i++) {
+                try {
+                    downloads.get(i).get();
+                    routesStored++;
+                } catch (ExecutionException e) {
+                    // Leave the route stale so that the next run retries it
+                    Log.w(TAG, "Failed to download route " + routes.get(i).getTag(), e.getCause());
+                }
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Failed to cache route configurations for " + agencyTag, e);
+        } catch (ServiceException e) {
+            Log.e(TAG, "Failed to fetch routes for " + agencyTag, e);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while caching route configurations for " + agencyTag);
+            Thread.currentThread().interrupt();
+        } finally {
+            downloadExecutor.shutdownNow();
+            queryHelper.release();
+        }
+
+        double seconds = Math.max(SystemClock.elapsedRealtime() - startTime, 1) / 1000.0;
+        Log.i(TAG, String.format("Cached %d routes for %s in %.1f s (%.2f routes/s, %.0f bytes/s)",
+                                 routesStored, agencyTag, seconds,
+                                 routesStored / seconds, rpcImpl.getBytesReceived() / seconds));
     }
+
 }
@@ -1,5 +1,7 @@
 package com.elliottsj.ftw.utilities;
 
+import android.content.Context;
+
 import com.elliottsj.nextbus.impl.NextbusService;
 
 /**
@@ -11,4 +13,15 @@ public class AndroidNextbusService extends NextbusService {
         super(new AndroidRPCImpl());
     }
 
+    /**
+     * Create a service whose responses are revalidated through the shared {@link ConditionalGetCache}.
+     */
+    public AndroidNextbusService(Context context) {
+        super(new AndroidRPCImpl(ConditionalGetCache.get(context)));
+    }
+
+    public AndroidNextbusService(AndroidRPCImpl rpcImpl) {
+        super(rpcImpl);
+    }
+
 }
@@ -11,81 +11,508 @@ import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 /**
  *
  */
 public class AndroidRPCImpl implements RPCImpl {
 
-    private long lastSuccessfulCallTimeUTC;
-    private long totalRPCCalls;
-    private long bytesReceived;
+    private volatile long lastSuccessfulCallTimeUTC;
+    private final AtomicLong totalRPCCalls = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesDecoded = new AtomicLong();
+    private final ConditionalGetCache responseCache;
+    private final BandwidthGovernor.Priority priority;
+    private final BandwidthGovernor governor;
 
     private static final String TAG = "AndroidRPCImpl";
 
-    // Enforces advisory warnings on bandwidth use - NextBus spec says 2MB/20sec Max
-    private static final long BANDWIDTH_LIMIT_INTERVAL_MILLISECONDS = 20*1000;
-    private static final long BANDWIDTH_LIMIT_INTERVAL_BYTES = (long) Math.pow(2, 21);
+    // NextBus spec says 2MB/20sec Max; enforced for every instance by BandwidthGovernor
+    public static final long BANDWIDTH_LIMIT_INTERVAL_MILLISECONDS = 20*1000;
+    public static final long BANDWIDTH_LIMIT_INTERVAL_BYTES = (long) Math.pow(2, 21);
 
-    // State machine values for Sliding bandwidth monitor
-    private long bwLimitIntervalStartTime;
-    private long bwLimitIntervalStartBytes;
+    // Attempts made for a call before its failure is passed to the caller
+    private static final int MAX_ATTEMPTS = 3;
+    // Upper bound of the delay before the first retry; doubled for each later retry up to MAX_BACKOFF_MILLIS
+    private static final long BASE_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 4000;
+
+    private static final Random sRandom = new Random();
 
     public AndroidRPCImpl() {
+        this(null);
+    }
+
+    /**
+     * @param responseCache stores responses with validators so that they are revalidated rather than downloaded
+     *                      again, or null
+     */
+    public AndroidRPCImpl(ConditionalGetCache responseCache) {
+        this(responseCache, BandwidthGovernor.Priority.INTERACTIVE);
+    }
+
+    /**
+     * @param responseCache stores responses with validators so that they are revalidated rather than downloaded
+     *                      again, or null
+     * @param priority priority of this instance's calls when the bandwidth limit is reached
+     */
+    public AndroidRPCImpl(ConditionalGetCache responseCache, BandwidthGovernor.Priority priority) {
+        this(responseCache, priority, BandwidthGovernor.getInstance());
+    }
+
+    /**
+     * @param governor the bandwidth budget charged for this instance's calls, e.g. a private one in tests
+     */
+    AndroidRPCImpl(ConditionalGetCache responseCache, BandwidthGovernor.Priority priority,
+                   BandwidthGovernor governor) {
+        this.responseCache = responseCache;
+        this.priority = priority;
+        this.governor = governor;
+    }
+
+    /**
+     * Consumes the body of a successful response as it is received. RPCImpl hands NextbusService whole response
+     * strings, so calls are always made with STRING_HANDLER; tests pass their own.
+     *
+     * @param <T> the result of the call
+     */
+    interface ResponseHandler<T> {
+        /**
+         * @param body the decoded response body; counted towards {@link #getBytesReceived()} and
+         *             {@link #getBytesDecoded()} as it is read, and closed by the caller
+         * @param charset the charset of the body, from its Content-Type header, or UTF-8
+         */
+        T handleResponse(InputStream body, String charset) throws IOException;
     }
 
+    private static final String DEFAULT_CHARSET = "UTF-8";
+    private static final int BUFFER_SIZE = 8192;
+
+    // Read buffer reused by every call on the same thread
+    private static final ThreadLocal<char[]> sCharBuffer = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[BUFFER_SIZE];
+        }
+    };
+
+    // Reads a whole body into a String, keeping its line breaks
+    private static final ResponseHandler<String> STRING_HANDLER = new ResponseHandler<String>() {
+        @Override
+        public String handleResponse(InputStream body, String charset) throws IOException {
+            Reader reader = new InputStreamReader(body, charset);
+            StringBuilder sb = new StringBuilder(BUFFER_SIZE);
+            char[] buffer = sCharBuffer.get();
+            int read;
+            while ((read = reader.read(buffer)) != -1)
+                sb.append(buffer, 0, read);
+            return sb.toString();
+        }
+    };
+
+    /**
+     * Make a call and return the response body.
+     *
+     * NextBus calls are GETs and safe to repeat, so a call which fails with an I/O error or a 5xx status is retried
+     * up to MAX_ATTEMPTS times with jittered exponential backoff, and the failure is counted by the host's
+     * {@link CircuitBreaker}. Any other status fails the call at once, since the host is answering and a retry
+     * would get the same answer. Only static feeds, the route list and route configurations, are stored; while the
+     * breaker is open the stored response is served if there is one, however old, and otherwise the call fails
+     * without a request.
+     * If the server answers 304 Not Modified but the stored response has been evicted meanwhile, it is requested
+     * once more without validators.
+     *
+     * @param request the request to make
+     * @return the response body
+     * @throws ServiceException
+     */
     public String call(RPCRequest request) throws ServiceException {
-        HttpURLConnection c = null;
+        URL url;
+        try {
+            url = new URL(request.getFullHttpRequest());
+        } catch (MalformedURLException mfu) {
+            Log.e(TAG, "Invalid URL. Inspect: " + request.getFullHttpRequest(), mfu);
+            throw new ServiceConfigurationException(mfu);
+        }
+        return call(url, STRING_HANDLER);
+    }
 
-        BufferedReader rd;
-        StringBuilder sb;
-        InputStream is;
-        String line;
+    /**
+     * Make a call to a URL, as {@link #call(RPCRequest)} does, and hand the response body to a handler as it is
+     * received.
+     */
+    <T> T call(URL url, ResponseHandler<T> handler) throws ServiceException {
+        ConditionalGetCache.Entry cached = isStored(url) ? responseCache.get(url.toString()) : null;
+        if (cached != null && cached.isFresh()) {
+            responseCache.recordHit();
+            T result = readStored(url, cached, handler);
+            lastSuccessfulCallTimeUTC = System.currentTimeMillis();
+            return result;
+        }
+
+        CircuitBreaker breaker = CircuitBreaker.forHost(url.getHost());
+        for (int attempt = 1; ; attempt++) {
+            if (!breaker.allowRequest())
+                return readStoredWhileOpen(url, cached, handler);
+            try {
+                T result;
+                try {
+                    result = callOnce(url, cached, handler);
+                } catch (StoredResponseMissingException e) {
+                    // The server answered, so this is not a failure of the host; ask again without validators, since
+                    // sending the same ones would only get another 304
+                    Log.w(TAG, "Stored response for " + url + " is gone after a 304; requesting it in full", e);
+                    responseCache.remove(url.toString());
+                    cached = null;
+                    result = callOnce(url, null, handler);
+                }
+                breaker.recordSuccess();
+                return result;
+            } catch (TransientServiceException e) {
+                if (e.getCause() instanceof InterruptedException) {
+                    breaker.recordAbandoned();
+                    throw e;
+                }
+                if (e.getCause() instanceof HttpStatusException && !((HttpStatusException) e.getCause()).isServerError()) {
+                    // The host answered; a retry would get the same answer
+                    breaker.recordSuccess();
+                    throw e;
+                }
+                breaker.recordFailure();
+                if (breaker.isOpen() && cached != null)
+                    return readStoredWhileOpen(url, cached, handler);
+                if (attempt == MAX_ATTEMPTS)
+                    throw e;
+
+                // Full jitter, so that callers which failed together do not retry together
+                long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (attempt - 1));
+                long delay = (long) (sRandom.nextDouble() * ceiling);
+                Log.w(TAG, String.format("Attempt %d of %d failed; retrying in %d ms", attempt, MAX_ATTEMPTS, delay));
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                // The host answered; a response the handler cannot parse would not be fixed by a retry
+                breaker.recordSuccess();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Serve the stored response while the host's circuit breaker is open.
+     *
+     * @param cached the stored response, or null if there is none
+     * @throws TransientServiceException if cached is null
+     */
+    private <T> T readStoredWhileOpen(URL url, ConditionalGetCache.Entry cached, ResponseHandler<T> handler) {
+        if (cached == null)
+            throw new TransientServiceException("Circuit open for " + url.getHost());
+        Log.w(TAG, "Circuit open for " + url.getHost() + "; serving the stored response");
+        return readStored(url, cached, handler);
+    }
+
+    private <T> T readStored(URL url, ConditionalGetCache.Entry cached, ResponseHandler<T> handler) {
+        RpcMetrics.Call metrics = RpcMetrics.getInstance().start(getEndpoint(url.toString()));
+        InputStream is = null;
         try {
-            URL url = new URL(request.getFullHttpRequest());
+            is = cached.openBody();
+            T result = handler.handleResponse(is, cached.charset);
+            metrics.succeed(RpcMetrics.STATUS_CACHED);
+            return result;
+        } catch (IOException ioe) {
+            Log.w(TAG, "Failed to read stored response", ioe);
+            metrics.fail(-1, ioe);
+            throw new TransientServiceException(ioe);
+        } catch (RuntimeException re) {
+            metrics.fail(-1, re);
+            throw re;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close stored response", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Make a single attempt at a call.
+     *
+     * @param cached the stored response to revalidate, or null
+     */
+    private <T> T callOnce(URL url, ConditionalGetCache.Entry cached, ResponseHandler<T> handler)
+            throws ServiceException {
+        HttpURLConnection c = null;
+        InputStream is = null;
+        boolean released = false;
+        ConditionalGetCache.Editor cacheEditor = null;
+        int http_status = -1;
+        RpcMetrics.Call metrics = RpcMetrics.getInstance().start(getEndpoint(url.toString()));
+        try {
+            // Wait for the shared bandwidth budget before making the request
+            governor.acquire(priority);
 
             c = (HttpURLConnection) url.openConnection();
+            // Ask for gzip explicitly rather than relying on the platform's transparent gzip, so that compressed
+            // and decoded bytes can be counted separately
+            c.setRequestProperty("Accept-Encoding", "gzip");
+            if (cached != null) {
+                if (cached.etag != null)
+                    c.setRequestProperty("If-None-Match", cached.etag);
+                if (cached.lastModified != null)
+                    c.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
             Log.i(TAG, "RPC handler opened HTTP connection");
 
             c.connect();
-            int http_status = c.getResponseCode();
+            http_status = c.getResponseCode();
+            if (http_status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                // Unchanged since it was stored; a 304 has no body, so the connection can be reused right away
+                released = true;
+                try {
+                    is = cached.openBody();
+                } catch (IOException ioe) {
+                    // Evicted or replaced since it was looked up
+                    metrics.fail(http_status, ioe);
+                    throw new StoredResponseMissingException(ioe);
+                }
+                responseCache.recordRevalidation();
+                T result = handler.handleResponse(is, cached.charset);
+                lastSuccessfulCallTimeUTC = System.currentTimeMillis();
+                metrics.succeed(http_status);
+                return result;
+            }
             if (http_status != HttpURLConnection.HTTP_OK) {
                 String msg = String.format("Received HTTP Status Code %s : %s", http_status, c.getResponseMessage());
                 Log.w(TAG, msg);
-                totalRPCCalls++;
-                throw new TransientServiceException(msg);
+                metrics.fail(http_status, null);
+                throw new TransientServiceException(new HttpStatusException(http_status, msg));
             }
 
-            is = new BufferedInputStream(c.getInputStream());
+            // Count the bytes received on the wire and the bytes decoded from them, as they are read
+            is = new ByteCountingInputStream(new BufferedInputStream(c.getInputStream(), BUFFER_SIZE), bytesReceived, true,
+                                              metrics);
+            if ("gzip".equalsIgnoreCase(c.getContentEncoding()))
+                is = new GZIPInputStream(is, BUFFER_SIZE);
+            is = new ByteCountingInputStream(is, bytesDecoded, false, metrics);
+            String charset = getCharset(c.getContentType());
+            if (isStored(url)) {
+                responseCache.recordMiss();
+                cacheEditor = responseCache.edit(url.toString(), c.getHeaderField("ETag"),
+                                                 c.getHeaderField("Last-Modified"), charset, getFreshUntil(c));
+                if (cacheEditor != null)
+                    is = cacheEditor.tee(is);
+            }
+            T result = handler.handleResponse(is, charset);
 
-            /* Read in the HTTP Response until end of buffer */
-            rd = new BufferedReader(new InputStreamReader(is));
-            sb = new StringBuilder();
-            while ((line = rd.readLine()) != null) {
-                bytesReceived += line.length();
-                sb.append(line);
-                Log.v(TAG, "Read " + line.length() + " bytes from the HTTP input buffer");
-                checkBandwidthLimits();
+            // Read to the end of the body so that the connection can be reused for the next call
+            drain(is);
+            is.close();
+            is = null;
+            released = true;
+            if (cacheEditor != null) {
+                cacheEditor.commit();
+                cacheEditor = null;
             }
 
             /* Done! Cleanup and return to the caller */
-            is.close();
-            rd.close();
-            Log.i(TAG, "RPC handler closed HTTP connection");
+            Log.i(TAG, "RPC handler released HTTP connection");
             lastSuccessfulCallTimeUTC = System.currentTimeMillis();
-            return sb.toString();
-        } catch (MalformedURLException mfu) {
-            Log.e(TAG, "Invalid URL. Inspect: " + request.getFullHttpRequest(), mfu);
-            throw new ServiceConfigurationException(mfu);
+            metrics.succeed(http_status);
+            return result;
         } catch (IOException ioe) {
             Log.w(TAG, "During http rpc to nextbus ", ioe);
+            metrics.fail(http_status, ioe);
             throw new TransientServiceException(ioe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            metrics.fail(http_status, ie);
+            throw new TransientServiceException(ie);
+        } catch (RuntimeException re) {
+            // e.g. thrown by a response handler's parser
+            metrics.fail(http_status, re);
+            throw re;
         } finally {
-            if (c != null) c.disconnect();
-            totalRPCCalls++;
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close HTTP input stream", e);
+                }
+            }
+            if (cacheEditor != null) cacheEditor.abort();
+            // A fully read response leaves the connection in the keep-alive pool; only drop it if the call failed
+            if (c != null && !released) c.disconnect();
+            totalRPCCalls.incrementAndGet();
         }
     }
 
+    /**
+     * Thrown by callOnce() when the server answered 304 Not Modified but the stored response can no longer be read.
+     */
+    private static class StoredResponseMissingException extends RuntimeException {
+
+        StoredResponseMissingException(IOException cause) {
+            super(cause);
+        }
+
+    }
+
+    /**
+     * The cause of the TransientServiceException thrown by callOnce() when the server answers with a status other
+     * than 200 OK or 304 Not Modified.
+     */
+    private static class HttpStatusException extends IOException {
+
+        final int status;
+
+        HttpStatusException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        boolean isServerError() {
+            return status >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+        }
+
+    }
+
+    /**
+     * @return the time until which a response may be served from the cache without revalidation, from its
+     *         Cache-Control max-age or Expires header, or 0 if it must always be revalidated
+     */
+    private static long getFreshUntil(HttpURLConnection c) {
+        String cacheControl = c.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim();
+                if (directive.equalsIgnoreCase("no-cache") || directive.equalsIgnoreCase("no-store"))
+                    return 0;
+                if (directive.regionMatches(true, 0, "max-age=", 0, 8)) {
+                    try {
+                        return System.currentTimeMillis() + Long.parseLong(directive.substring(8)) * 1000;
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        return c.getExpiration();
+    }
+
+    /**
+     * @param url a NextBus request URL, e.g. "http://.../publicXMLFeed?command=predictions&a=ttc&stopId=5292"
+     * @return the endpoint under which the call is counted in RpcMetrics, e.g. "nextbus/predictions"
+     */
+    private static String getEndpoint(String url) {
+        int start = url.indexOf("command=");
+        if (start == -1)
+            return "nextbus";
+        start += 8;
+        int end = url.indexOf('&', start);
+        return "nextbus/" + (end == -1 ? url.substring(start) : url.substring(start, end));
+    }
+
+    /**
+     * @return true iff the response to the URL is stored in the response cache. Only static feeds are: real-time
+     *         data such as predictions is useless once it is stale, and would only evict the route configurations
+     */
+    private boolean isStored(URL url) {
+        if (responseCache == null)
+            return false;
+        String endpoint = getEndpoint(url.toString());
+        return endpoint.equals("nextbus/routeList") || endpoint.equals("nextbus/routeConfig");
+    }
+
+    private static void drain(InputStream is) throws IOException {
+        byte[] buffer = new byte[512];
+        while (is.read(buffer) != -1) {
+            // Discard the rest of the body
+        }
+    }
+
+    /**
+     * @param contentType a Content-Type header value, e.g. "text/xml; charset=utf-8", or null
+     * @return the charset named by the header, or UTF-8
+     */
+    private static String getCharset(String contentType) {
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                parameter = parameter.trim();
+                if (parameter.regionMatches(true, 0, "charset=", 0, 8) && parameter.length() > 8)
+                    return parameter.substring(8).replace("\"", "");
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    /**
+     * Adds the bytes read through it to a counter and to the call's metrics, and charges wire bytes to the bandwidth
+     * governor as they are read.
+     */
+    private class ByteCountingInputStream extends FilterInputStream {
+
+        private final AtomicLong mCounter;
+        private final boolean mWire;
+        private final RpcMetrics.Call mMetrics;
+
+        ByteCountingInputStream(InputStream in, AtomicLong counter, boolean wire, RpcMetrics.Call metrics) {
+            super(in);
+            mCounter = counter;
+            mWire = wire;
+            mMetrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0)
+                count(read);
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            // A reset would count the same bytes twice
+            return false;
+        }
+
+        private void count(long bytes) {
+            mCounter.addAndGet(bytes);
+            if (mWire) {
+                mMetrics.addWireBytes(bytes);
+                governor.charge(bytes);
+            } else {
+                mMetrics.addDecodedBytes(bytes);
+            }
+        }
+
+    }
+
     /**
      * Diagnostic method
      * @return the last timestamp (in UTC time) when a Successful RPC was made
@@ -99,27 +526,24 @@ public class AndroidRPCImpl implements RPCImpl {
      * @return total number of RPC calls (failed and successful) made
      */
     public long getTotalRPCCalls() {
-        return totalRPCCalls;
+        return totalRPCCalls.get();
     }
 
     /**
-     * Implements a simple Bandwidth limit check.
-     * When b/w is exceeded, a WARN Advisory is posted to the logger.
-     * Tests whether more than N bytes are sent within an M second interval
+     * Diagnostic method
+     * @return total number of bytes received on the wire by this RPC implementation, before decompression; safe to
+     *         read from any thread
      */
-    private void checkBandwidthLimits() {
-        // Reset the observation time window if needed
-        if (bwLimitIntervalStartTime == 0 || (System.currentTimeMillis()-bwLimitIntervalStartTime) > BANDWIDTH_LIMIT_INTERVAL_MILLISECONDS) {
-            bwLimitIntervalStartTime = System.currentTimeMillis();
-            bwLimitIntervalStartBytes += bytesReceived;
-        }
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
 
-        // Check the total byte count inside the observation window
-        long bytesRecvInLimitWindow = bytesReceived - bwLimitIntervalStartBytes;
-        if ((bytesRecvInLimitWindow ) > BANDWIDTH_LIMIT_INTERVAL_BYTES) {
-            // The bandwidth limit has been exceeded!
-            Log.w(TAG, "Bandwidth advisory limit exceeded by "+bytesRecvInLimitWindow+" bytes!");
-        }
+    /**
+     * Diagnostic method
+     * @return total number of response body bytes after decompression; safe to read from any thread
+     */
+    public long getBytesDecoded() {
+        return bytesDecoded.get();
     }
 
     public void activate() { }
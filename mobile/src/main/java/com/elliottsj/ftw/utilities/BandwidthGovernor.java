@@ -0,0 +1,125 @@
+package com.elliottsj.ftw.utilities;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * A token bucket which keeps every NextBus call in the process under the NextBus bandwidth limit.
+ *
+ * The bucket holds up to half of the limit and refills at half the limit's rate. A call waits in
+ * {@link #acquire(Priority)} until the bucket has tokens, then each byte received is charged with
+ * {@link #charge(long)}; since response sizes are not known in advance the bucket may go into debt, which later
+ * calls wait to repay.
+ *
+ * In the worst case a full bucket is spent at once and then every refilled byte as soon as it arrives, so any
+ * interval receives at most the burst plus an interval of refill, limit / 2 + limit / 2 = limit: 2 MB per 20 s for
+ * NextBus. Debt lets this be exceeded only by the remainder of the responses in flight when the bucket ran out,
+ * and that overrun is repaid before the next call starts.
+ *
+ * Background calls only start while more than BACKGROUND_RESERVE_FRACTION of the bucket is left and while no
+ * interactive call is waiting, so interactive calls find tokens available unless background downloads already in
+ * flight overrun the reserve, and then only wait for that overrun to be repaid.
+ */
+public class BandwidthGovernor {
+
+    private static final String TAG = BandwidthGovernor.class.getSimpleName();
+
+    public enum Priority {
+        /** A call the user is waiting on, e.g. predictions */
+        INTERACTIVE,
+        /** A call nobody is waiting on, e.g. route configuration prefetch */
+        BACKGROUND
+    }
+
+    // Share of the bucket kept for interactive calls
+    private static final double BACKGROUND_RESERVE_FRACTION = 0.25;
+
+    private static final BandwidthGovernor sInstance = new BandwidthGovernor(
+            AndroidRPCImpl.BANDWIDTH_LIMIT_INTERVAL_BYTES, AndroidRPCImpl.BANDWIDTH_LIMIT_INTERVAL_MILLISECONDS);
+
+    private final long mCapacity;
+    private final double mBytesPerMilli;
+    private final double mBackgroundReserve;
+
+    private double mTokens;
+    private long mLastRefillTime;
+    private int mInteractiveWaiters;
+
+    /**
+     * @param limitBytes bytes which may be received in any interval
+     * @param intervalMillis length of the interval
+     */
+    public BandwidthGovernor(long limitBytes, long intervalMillis) {
+        // Burst plus refill over an interval must not exceed the limit
+        mCapacity = limitBytes / 2;
+        mBytesPerMilli = (double) (limitBytes - mCapacity) / intervalMillis;
+        mBackgroundReserve = mCapacity * BACKGROUND_RESERVE_FRACTION;
+        mTokens = mCapacity;
+        mLastRefillTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return the governor shared by every NextBus RPC caller
+     */
+    public static BandwidthGovernor getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Block until a call of the given priority may start.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized void acquire(Priority priority) throws InterruptedException {
+        boolean interactive = priority == Priority.INTERACTIVE;
+        if (interactive)
+            mInteractiveWaiters++;
+        try {
+            double threshold = interactive ? 0 : mBackgroundReserve;
+            boolean waited = false;
+            while (true) {
+                refill();
+                if (!interactive && mInteractiveWaiters > 0) {
+                    // Let waiting interactive calls go first; they notify when they start
+                    wait();
+                    continue;
+                }
+                if (mTokens > threshold)
+                    break;
+                if (!waited) {
+                    Log.i(TAG, String.format("Bandwidth limit reached; delaying %s call", priority));
+                    waited = true;
+                }
+                wait((long) Math.ceil((threshold - mTokens + 1) / mBytesPerMilli));
+            }
+        } finally {
+            if (interactive) {
+                mInteractiveWaiters--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Charge bytes received by a call against the bucket.
+     */
+    public synchronized void charge(long bytes) {
+        refill();
+        mTokens -= bytes;
+    }
+
+    /**
+     * @return bytes which may currently be received without exceeding the limit; negative while in debt
+     */
+    public synchronized long getAvailableBytes() {
+        refill();
+        return (long) mTokens;
+    }
+
+    private void refill() {
+        long now = SystemClock.elapsedRealtime();
+        mTokens = Math.min(mCapacity, mTokens + (now - mLastRefillTime) * mBytesPerMilli);
+        mLastRefillTime = now;
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.elliottsj.ftw.utilities;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops calls to a host which keeps failing, so that callers fail fast instead of each waiting out its own
+ * timeouts and retries.
+ *
+ * The breaker opens after FAILURE_THRESHOLD consecutive failures. While it is open no call is allowed until
+ * OPEN_MILLIS have passed; then a single trial call is let through, which closes the breaker if it succeeds and
+ * opens it again if it fails.
+ */
+public class CircuitBreaker {
+
+    private static final String TAG = CircuitBreaker.class.getSimpleName();
+
+    public static final int FAILURE_THRESHOLD = 5;
+    public static final long OPEN_MILLIS = 30 * 1000;
+
+    private static final Map<String, CircuitBreaker> sBreakers = new HashMap<String, CircuitBreaker>();
+
+    private final String mHost;
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+
+    private int mConsecutiveFailures;
+    // Time until which calls are refused, or 0 while the breaker is closed
+    private long mOpenUntil;
+    private boolean mTrialInFlight;
+
+    CircuitBreaker(String host) {
+        this(host, FAILURE_THRESHOLD, OPEN_MILLIS);
+    }
+
+    /**
+     * @param failureThreshold consecutive failures which open the breaker
+     * @param openMillis time for which calls are refused once the breaker opens
+     */
+    CircuitBreaker(String host, int failureThreshold, long openMillis) {
+        mHost = host;
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+    }
+
+    /**
+     * @param host a host name, e.g. "webservices.nextbus.com"
+     * @return the breaker shared by every call to the host
+     */
+    public static synchronized CircuitBreaker forHost(String host) {
+        CircuitBreaker breaker = sBreakers.get(host);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(host);
+            sBreakers.put(host, breaker);
+        }
+        return breaker;
+    }
+
+    /**
+     * Ask whether a call may be made now. A call which was allowed must be followed by
+     * {@link #recordSuccess()} or {@link #recordFailure()}.
+     *
+     * @return true if the breaker is closed, or if this call is the trial call after the breaker was open
+     */
+    public synchronized boolean allowRequest() {
+        if (mOpenUntil == 0)
+            return true;
+        if (mTrialInFlight || SystemClock.elapsedRealtime() < mOpenUntil)
+            return false;
+        mTrialInFlight = true;
+        return true;
+    }
+
+    public synchronized void recordSuccess() {
+        if (mOpenUntil != 0)
+            Log.i(TAG, "Closing circuit for " + mHost);
+        mConsecutiveFailures = 0;
+        mOpenUntil = 0;
+        mTrialInFlight = false;
+    }
+
+    /**
+     * Record that an allowed call ended without showing whether the host is healthy, e.g. it was interrupted.
+     */
+    public synchronized void recordAbandoned() {
+        mTrialInFlight = false;
+    }
+
+    public synchronized void recordFailure() {
+        mConsecutiveFailures++;
+        if (mTrialInFlight || mConsecutiveFailures >= mFailureThreshold) {
+            if (mOpenUntil == 0 || mTrialInFlight)
+                Log.w(TAG, String.format("Opening circuit for %s after %d failures", mHost, mConsecutiveFailures));
+            mOpenUntil = SystemClock.elapsedRealtime() + mOpenMillis;
+            mTrialInFlight = false;
+        }
+    }
+
+    /**
+     * @return true iff calls to the host are currently refused
+     */
+    public synchronized boolean isOpen() {
+        return mOpenUntil != 0 && (mTrialInFlight || SystemClock.elapsedRealtime() < mOpenUntil);
+    }
+
+}
@@ -0,0 +1,376 @@
+package com.elliottsj.ftw.utilities;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A disk-backed cache of HTTP response bodies keyed by request URL, used to revalidate responses with
+ * If-None-Match and If-Modified-Since instead of downloading them again.
+ *
+ * Only responses carrying an ETag or Last-Modified validator are stored, and AndroidRPCImpl only stores static feeds. Each entry is one file holding the
+ * validators followed by the decoded body. The total size of the entries is capped; the least recently used
+ * entries are evicted first, with file modification times preserving the order across restarts.
+ */
+public class ConditionalGetCache {
+
+    private static final String TAG = ConditionalGetCache.class.getSimpleName();
+
+    public static final long DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+
+    static final int MAGIC = 0x43474331; // "CGC1"
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long STALE_TEMP_FILE_MILLIS = 60 * 60 * 1000;
+
+    private static ConditionalGetCache sInstance;
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    // (file name -> entry size), least recently used first; null until the directory is scanned
+    private LinkedHashMap<String, Long> mSizes;
+    private long mTotalBytes;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mRevalidations = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    public ConditionalGetCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param context a context
+     * @return the cache shared by the NextBus RPC layer
+     */
+    public static synchronized ConditionalGetCache get(Context context) {
+        if (sInstance == null)
+            sInstance = new ConditionalGetCache(new File(context.getCacheDir(), "nextbus-http"), DEFAULT_MAX_BYTES);
+        return sInstance;
+    }
+
+    /**
+     * A stored response.
+     */
+    public static class Entry {
+
+        public final String etag;
+        public final String lastModified;
+        public final String charset;
+        // Time in milliseconds until which the response may be used without revalidation, or 0
+        public final long expiresAt;
+
+        private final File mFile;
+
+        Entry(File file, String etag, String lastModified, String charset, long expiresAt) {
+            mFile = file;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.charset = charset;
+            this.expiresAt = expiresAt;
+        }
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        /**
+         * @return the stored body; the caller must close it
+         */
+        public InputStream openBody() throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            readHeader(in);
+            return in;
+        }
+
+    }
+
+    /**
+     * Look up the stored response for a URL.
+     *
+     * @param url request URL
+     * @return the entry, or null if none is stored
+     */
+    public Entry get(String url) {
+        File file = new File(mDir, fileName(url));
+        if (!file.exists())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            String[] header = readHeader(in);
+            if (!url.equals(header[0]))
+                return null;
+            touch(file);
+            return new Entry(file, emptyToNull(header[1]), emptyToNull(header[2]), header[3], Long.parseLong(header[4]));
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable cache entry for " + url, e);
+            remove(file);
+            return null;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Dropping cache entry with a corrupt expiry time for " + url, e);
+            remove(file);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Remove the stored response for a URL, e.g. when its body could not be read.
+     *
+     * @param url request URL
+     */
+    public void remove(String url) {
+        remove(new File(mDir, fileName(url)));
+    }
+
+    /**
+     * Start storing a response. Read the body through {@link Editor#tee(InputStream)}, then commit the editor once
+     * the body was read to its end.
+     *
+     * @return an editor, or null if the response has no validator and cannot be revalidated
+     */
+    public Editor edit(String url, String etag, String lastModified, String charset, long expiresAt) {
+        if (etag == null && lastModified == null)
+            return null;
+        return new Editor(url, etag, lastModified, charset, expiresAt);
+    }
+
+    /**
+     * Writes a response body to a temporary file as it is read, and moves it into the cache on commit.
+     */
+    public class Editor {
+
+        private final String mUrl;
+        private final String[] mHeader;
+        private File mTempFile;
+        private OutputStream mOut;
+
+        Editor(String url, String etag, String lastModified, String charset, long expiresAt) {
+            mUrl = url;
+            mHeader = new String[] { url, nullToEmpty(etag), nullToEmpty(lastModified), charset,
+                                     Long.toString(expiresAt) };
+        }
+
+        /**
+         * @param body the decoded response body
+         * @return a stream which reads body and writes what it reads to the cache
+         */
+        public InputStream tee(InputStream body) throws IOException {
+            mDir.mkdirs();
+            // Unique per editor, since the same URL may be downloaded by two threads at once
+            mTempFile = File.createTempFile(fileName(mUrl) + "-", TEMP_SUFFIX, mDir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mTempFile)));
+            writeHeader(out, mHeader);
+            mOut = out;
+            return new FilterInputStream(body) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1)
+                        mOut.write(b);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0)
+                        mOut.write(buffer, offset, read);
+                    return read;
+                }
+
+                @Override
+                public long skip(long byteCount) throws IOException {
+                    // Read rather than skip so that the skipped bytes are stored too
+                    byte[] buffer = new byte[(int) Math.min(byteCount, 512)];
+                    int read = read(buffer, 0, buffer.length);
+                    return Math.max(read, 0);
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+        }
+
+        public void commit() throws IOException {
+            mOut.close();
+            File file = new File(mDir, fileName(mUrl));
+            if (!mTempFile.renameTo(file)) {
+                // The response was still read successfully; it is only not cached
+                Log.w(TAG, "Cannot store cache entry for " + mUrl);
+                mTempFile.delete();
+                return;
+            }
+            put(file);
+        }
+
+        public void abort() {
+            closeQuietly(mOut);
+            if (mTempFile != null)
+                mTempFile.delete();
+        }
+
+    }
+
+    public void recordHit() {
+        mHits.incrementAndGet();
+    }
+
+    public void recordRevalidation() {
+        mRevalidations.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        mMisses.incrementAndGet();
+    }
+
+    /**
+     * @return number of responses served from the cache without a request
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return number of responses served from the cache after the server answered 304 Not Modified
+     */
+    public long getRevalidationCount() {
+        return mRevalidations.get();
+    }
+
+    /**
+     * @return number of responses downloaded in full
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public synchronized long getSizeBytes() {
+        loadSizes();
+        return mTotalBytes;
+    }
+
+    private synchronized void touch(File file) {
+        loadSizes();
+        // Accessing a key of an access-ordered map moves it to the end
+        mSizes.get(file.getName());
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    private synchronized void put(File file) {
+        loadSizes();
+        Long oldSize = mSizes.remove(file.getName());
+        if (oldSize != null)
+            mTotalBytes -= oldSize;
+        mSizes.put(file.getName(), file.length());
+        mTotalBytes += file.length();
+
+        // Evict the least recently used entries, but never the one just stored
+        Iterator<Map.Entry<String, Long>> it = mSizes.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && mSizes.size() > 1) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(mDir, eldest.getKey()).delete();
+            mTotalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private synchronized void remove(File file) {
+        loadSizes();
+        Long size = mSizes.remove(file.getName());
+        if (size != null)
+            mTotalBytes -= size;
+        file.delete();
+    }
+
+    private void loadSizes() {
+        if (mSizes != null)
+            return;
+        mSizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mTotalBytes = 0;
+        File[] files = mDir.listFiles();
+        if (files == null)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.valueOf(lhs.lastModified()).compareTo(rhs.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // Being written, or left by an interrupted download
+                if (file.lastModified() < System.currentTimeMillis() - STALE_TEMP_FILE_MILLIS)
+                    file.delete();
+                continue;
+            }
+            mSizes.put(file.getName(), file.length());
+            mTotalBytes += file.length();
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, String[] header) throws IOException {
+        out.writeInt(MAGIC);
+        for (String field : header)
+            out.writeUTF(field);
+    }
+
+    /**
+     * @return url, etag, last modified, charset and expiry time
+     */
+    private static String[] readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a cache entry");
+        String[] header = new String[5];
+        for (int i = 0; i < header.length; i++)
+            header[i] = in.readUTF();
+        return header;
+    }
+
+    private static String fileName(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                name.append(String.format("%02x", b));
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String nullToEmpty(String s) {
+        return s != null ? s : "";
+    }
+
+    private static String emptyToNull(String s) {
+        return s.isEmpty() ? null : s;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close cache file", e);
+        }
+    }
+
+}
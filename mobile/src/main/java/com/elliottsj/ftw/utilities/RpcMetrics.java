@@ -0,0 +1,262 @@
+package com.elliottsj.ftw.utilities;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters for the calls made by both HTTP stacks: NextBus calls through {@link AndroidRPCImpl} and
+ * Protobus calls through Volley.
+ *
+ * Calls are grouped by endpoint, e.g. "nextbus/predictions" or "protobus/agencies". For each endpoint it keeps a
+ * latency histogram, wire and decoded byte counts, counts of HTTP status codes and exceptions, and the number of
+ * calls in flight. All methods are safe to call from any thread.
+ */
+public class RpcMetrics {
+
+    /** Status recorded for a response served from a local cache without a request */
+    public static final int STATUS_CACHED = 0;
+
+    // Upper bounds of the latency histogram buckets, in milliseconds; the last bucket is unbounded
+    private static final long[] LATENCY_BOUNDS_MILLIS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+    public static final String COLUMN_ENDPOINT = "endpoint";
+    public static final String COLUMN_CALLS = "calls";
+    public static final String COLUMN_ERRORS = "errors";
+    public static final String COLUMN_IN_FLIGHT = "in_flight";
+    public static final String COLUMN_WIRE_BYTES = "wire_bytes";
+    public static final String COLUMN_DECODED_BYTES = "decoded_bytes";
+    public static final String COLUMN_LATENCY_P50 = "latency_p50";
+    public static final String COLUMN_LATENCY_P90 = "latency_p90";
+    public static final String COLUMN_LATENCY_P99 = "latency_p99";
+    public static final String COLUMN_LATENCY_MAX = "latency_max";
+
+    public static final String[] CURSOR_COLUMNS =
+            { COLUMN_ENDPOINT,
+              COLUMN_CALLS,
+              COLUMN_ERRORS,
+              COLUMN_IN_FLIGHT,
+              COLUMN_WIRE_BYTES,
+              COLUMN_DECODED_BYTES,
+              COLUMN_LATENCY_P50,
+              COLUMN_LATENCY_P90,
+              COLUMN_LATENCY_P99,
+              COLUMN_LATENCY_MAX };
+
+    private static final RpcMetrics sInstance = new RpcMetrics();
+
+    private final ConcurrentMap<String, Endpoint> mEndpoints = new ConcurrentHashMap<String, Endpoint>();
+
+    /**
+     * @return the metrics shared by every RPC caller
+     */
+    public static RpcMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Start timing a call. The caller must end it with exactly one of {@link Call#succeed(int)} or
+     * {@link Call#fail(int, Throwable)}.
+     *
+     * @param endpoint the endpoint called, e.g. "nextbus/routeConfig"
+     * @return the call in progress
+     */
+    public Call start(String endpoint) {
+        Endpoint e = mEndpoints.get(endpoint);
+        if (e == null) {
+            Endpoint created = new Endpoint(endpoint);
+            e = mEndpoints.putIfAbsent(endpoint, created);
+            if (e == null)
+                e = created;
+        }
+        return new Call(e);
+    }
+
+    /**
+     * A call in progress.
+     */
+    public static class Call {
+
+        private final Endpoint mEndpoint;
+        private final long mStartTime;
+        private final AtomicInteger mEnded = new AtomicInteger();
+
+        Call(Endpoint endpoint) {
+            mEndpoint = endpoint;
+            mStartTime = SystemClock.elapsedRealtime();
+            endpoint.inFlight.incrementAndGet();
+        }
+
+        /**
+         * Count bytes received on the wire, before decompression.
+         */
+        public void addWireBytes(long bytes) {
+            mEndpoint.wireBytes.addAndGet(bytes);
+        }
+
+        /**
+         * Count bytes of response body, after decompression.
+         */
+        public void addDecodedBytes(long bytes) {
+            mEndpoint.decodedBytes.addAndGet(bytes);
+        }
+
+        /**
+         * @param status the HTTP status code of the response, or STATUS_CACHED
+         */
+        public void succeed(int status) {
+            end(status, null, false);
+        }
+
+        /**
+         * @param status the HTTP status code of the response, or -1 if there was none
+         * @param error the cause of the failure, or null
+         */
+        public void fail(int status, Throwable error) {
+            end(status, error != null ? error.getClass().getSimpleName() : null, true);
+        }
+
+        private void end(int status, String exception, boolean failed) {
+            // Ignore a second end so that a call cannot be counted twice or leave the gauge negative
+            if (!mEnded.compareAndSet(0, 1))
+                return;
+            mEndpoint.inFlight.decrementAndGet();
+            mEndpoint.calls.incrementAndGet();
+            if (failed)
+                mEndpoint.errors.incrementAndGet();
+            mEndpoint.recordLatency(SystemClock.elapsedRealtime() - mStartTime);
+            if (status >= 0)
+                increment(mEndpoint.statuses, status);
+            if (exception != null)
+                increment(mEndpoint.exceptions, exception);
+        }
+
+    }
+
+    /**
+     * @return one row per endpoint, with columns CURSOR_COLUMNS; latencies are in milliseconds
+     */
+    public Cursor newCursor() {
+        MatrixCursor cursor = new MatrixCursor(CURSOR_COLUMNS);
+        for (Endpoint e : sortedEndpoints()) {
+            cursor.addRow(new Object[] { e.name, e.calls.get(), e.errors.get(), e.inFlight.get(), e.wireBytes.get(),
+                                         e.decodedBytes.get(), e.percentile(0.5), e.percentile(0.9),
+                                         e.percentile(0.99), e.maxLatency.get() });
+        }
+        return cursor;
+    }
+
+    /**
+     * Print every endpoint's counters, histogram, status codes and exceptions.
+     */
+    public void dump(PrintWriter writer) {
+        for (Endpoint e : sortedEndpoints()) {
+            writer.println(e.name + ":");
+            writer.println(String.format("  calls=%d errors=%d in_flight=%d wire_bytes=%d decoded_bytes=%d",
+                                         e.calls.get(), e.errors.get(), e.inFlight.get(), e.wireBytes.get(),
+                                         e.decodedBytes.get()));
+            writer.println(String.format("  latency p50=%dms p90=%dms p99=%dms max=%dms",
+                                         e.percentile(0.5), e.percentile(0.9), e.percentile(0.99),
+                                         e.maxLatency.get()));
+            writer.print("  histogram");
+            for (int i = 0; i < e.latencies.length(); i++) {
+                String bound = i < LATENCY_BOUNDS_MILLIS.length ? "<=" + LATENCY_BOUNDS_MILLIS[i] : ">"
+                        + LATENCY_BOUNDS_MILLIS[LATENCY_BOUNDS_MILLIS.length - 1];
+                writer.print(" " + bound + ":" + e.latencies.get(i));
+            }
+            writer.println();
+            writer.println("  statuses " + e.statuses);
+            if (!e.exceptions.isEmpty())
+                writer.println("  exceptions " + e.exceptions);
+        }
+    }
+
+    private List<Endpoint> sortedEndpoints() {
+        List<String> names = new ArrayList<String>(mEndpoints.keySet());
+        Collections.sort(names);
+        List<Endpoint> endpoints = new ArrayList<Endpoint>(names.size());
+        for (String name : names)
+            endpoints.add(mEndpoints.get(name));
+        return endpoints;
+    }
+
+    private static <K> void increment(ConcurrentMap<K, AtomicLong> counts, K key) {
+        AtomicLong count = counts.get(key);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = counts.putIfAbsent(key, created);
+            if (count == null)
+                count = created;
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Counters of a single endpoint.
+     */
+    static class Endpoint {
+
+        final String name;
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong inFlight = new AtomicLong();
+        final AtomicLong wireBytes = new AtomicLong();
+        final AtomicLong decodedBytes = new AtomicLong();
+        final AtomicLong maxLatency = new AtomicLong();
+        final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BOUNDS_MILLIS.length + 1);
+        final ConcurrentMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<Integer, AtomicLong>();
+        final ConcurrentMap<String, AtomicLong> exceptions = new ConcurrentHashMap<String, AtomicLong>();
+
+        Endpoint(String name) {
+            this.name = name;
+        }
+
+        void recordLatency(long millis) {
+            int bucket = 0;
+            while (bucket < LATENCY_BOUNDS_MILLIS.length && millis > LATENCY_BOUNDS_MILLIS[bucket])
+                bucket++;
+            latencies.incrementAndGet(bucket);
+            long max;
+            while (millis > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, millis)) {
+                // Retry until the maximum is updated or another thread stored a larger one
+            }
+        }
+
+        /**
+         * @return the upper bound of the histogram bucket holding the given fraction of calls, or the maximum
+         *         latency if that falls in the unbounded bucket; 0 if there were no calls
+         */
+        long percentile(double fraction) {
+            long total = 0;
+            for (int i = 0; i < latencies.length(); i++)
+                total += latencies.get(i);
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BOUNDS_MILLIS.length; i++) {
+                seen += latencies.get(i);
+                if (seen >= rank)
+                    return Math.min(LATENCY_BOUNDS_MILLIS[i], maxLatency.get());
+            }
+            return maxLatency.get();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+
+    }
+
+}
@@ -12,12 +12,14 @@ import com.elliottsj.ftw.R
 import com.elliottsj.ftw.agencies.AddAgencyActivity
 import com.elliottsj.ftw.preferences.Preferences
 import com.elliottsj.ftw.stops.StopTabsFragment
+import com.elliottsj.ftw.util.AsyncTaskContext
 import com.elliottsj.protobus.Agency
 import org.scaloid.common.{Preferences => _, _}
 
 import scala.collection.JavaConverters._
+import scala.util.{Failure, Success}
 
-class MainActivity extends SActivity with Logger {
+class MainActivity extends SActivity with Logger with AsyncTaskContext {
 
   private var mDrawerLayout: DrawerLayout = _
   private var mDrawerPanel: RelativeLayout = _
@@ -26,6 +28,9 @@ class MainActivity extends SActivity with Logger {
   private var mDrawerToggle: ActionBarDrawerToggle = _
   private var mAddAgencyButton: TextView = _
 
+  // Refills the drawer when an agency is saved while this activity is visible
+  private val mAgenciesListener = (agencies: Seq[Agency]) => runOnUiThread(setDrawerAgencies(agencies))
+
   protected override def onCreate(savedInstanceState: Bundle): Unit = {
     super.onCreate(savedInstanceState)
     setContentView(R.layout.activity_main)
@@ -72,8 +77,27 @@ class MainActivity extends SActivity with Logger {
 
   override def onResume(): Unit = {
     super.onResume()
+    val preferences = Preferences(this)
+    preferences.addAgenciesListener(mAgenciesListener)
+
+    // Fill the drawer from the saved agencies in memory, loading them in the background the first time
+    preferences.getCachedAgencies match {
+      case Some(agencies) => setDrawerAgencies(agencies)
+      case None => preferences.loadAgencies onComplete {
+        case Success(agencies) => runOnUiThread(setDrawerAgencies(agencies))
+        case Failure(err) => error("Failed to load saved agencies", err)
+      }
+    }
+  }
+
+  override def onPause(): Unit = {
+    super.onPause()
+    Preferences(this).removeAgenciesListener(mAgenciesListener)
+  }
+
+  private def setDrawerAgencies(agencies: Seq[Agency]): Unit = {
     mDrawerAdapter.clear()
-    mDrawerAdapter.addAll(Preferences(this).getAgencies.asJavaCollection)
+    mDrawerAdapter.addAll(agencies.asJavaCollection)
   }
 
   override def onConfigurationChanged(newConfig: Configuration): Unit = {
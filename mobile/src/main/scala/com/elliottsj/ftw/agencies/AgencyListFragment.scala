@@ -9,6 +9,7 @@ import com.devspark.progressfragment.ProgressFragment
 import com.elliottsj.ftw.R
 import com.elliottsj.ftw.preferences.Preferences
 import com.elliottsj.ftw.protobus.Protobus
+import com.elliottsj.ftw.services.CacheRouteConfigurationsService
 import com.elliottsj.ftw.util.AsyncTaskContext
 import com.elliottsj.protobus.Agency
 import org.scaloid.common.{Logger, TagUtil, runOnUiThread}
@@ -66,7 +67,8 @@ class AgencyListFragment extends ProgressFragment with TagUtil with Logger with
     // Add the selected agency to preferences
     Try(Preferences(getActivity).saveAgency(agency)) match {
       case Success(_) =>
-        // Successfully added the agency; finish the activity
+        // Successfully added the agency; cache its routes for offline use and finish the activity
+        CacheRouteConfigurationsService.startCaching(getActivity, agency.getNextbusFields.agencyTag)
         getActivity.finish()
       case Failure(err) =>
         // Failed to add the agency; display the error
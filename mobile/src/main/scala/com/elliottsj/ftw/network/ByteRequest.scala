@@ -1,24 +1,103 @@
 package com.elliottsj.ftw.network
 
-import com.android.volley.{NetworkResponse, Request, Response}
+import java.net.{HttpURLConnection, URI}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
+
+import com.android.volley.{NetworkResponse, Request, Response, VolleyError}
 import com.android.volley.toolbox.HttpHeaderParser
+import com.elliottsj.ftw.utilities.RpcMetrics
 
 /**
  * A canned request for retrieving the response body at a given URL as raw bytes.
  *
+ * Responses are stored in the request queue's disk cache along with their ETag and Last-Modified validators,
+ * so that expired responses are revalidated and a 304 is served from disk. The outcome of each request is counted
+ * once in [[ByteRequest.cacheHits]], [[ByteRequest.cacheRevalidations]] or [[ByteRequest.cacheMisses]], and each
+ * request is timed from construction to its final delivery in [[RpcMetrics]].
+ *
  * @param method the request { @link Method} to use
  * @param url URL to fetch the bytes at
  * @param listener Listener to receive the bytes response
  * @param errorListener Error listener, or null to ignore errors
+ * @param endpoint the endpoint under which the request is counted in [[RpcMetrics]]
  */
-class ByteRequest(method: Int, url: String, listener: Response.Listener[Array[Byte]], errorListener: Response.ErrorListener)
+class ByteRequest(method: Int, url: String, listener: Response.Listener[Array[Byte]], errorListener: Response.ErrorListener,
+                  endpoint: String)
   extends Request[Array[Byte]](method, url, errorListener) {
 
+  /**
+   * Count the request in [[RpcMetrics]] under the path of its URL
+   */
+  def this(method: Int, url: String, listener: Response.Listener[Array[Byte]], errorListener: Response.ErrorListener) =
+    this(method, url, listener, errorListener, new URI(url).getPath)
+
   private val mListener: Response.Listener[Array[Byte]] = listener
 
-  protected def deliverResponse(response: Array[Byte]): Unit = mListener.onResponse(response)
+  // Volley's own HTTP stack decompresses transparently, so only decoded bytes can be counted
+  private val mMetrics = RpcMetrics.getInstance.start(endpoint)
+
+  // Set from Volley's markers: whether the cached entry must be refreshed, and whether the request was sent to the
+  // network. A soft-expired entry is delivered from the cache first and then sent to the network
+  @volatile private var mRefreshNeeded = false
+  @volatile private var mFromNetwork = false
+  // Status of the network response, and whether it was a 304 answered from the cached entry
+  @volatile private var mStatus = RpcMetrics.STATUS_CACHED
+  @volatile private var mNotModified = false
+  // Length of the cached response delivered before a refresh
+  @volatile private var mIntermediateLength = 0
+  private val mEnded = new AtomicBoolean()
+
+  override def addMarker(tag: String): Unit = {
+    super.addMarker(tag)
+    if (tag == "cache-hit-refresh-needed") mRefreshNeeded = true
+    else if (tag == "network-queue-take") mFromNetwork = true
+  }
+
+  override def hasHadResponseDelivered(): Boolean = {
+    val delivered = super.hasHadResponseDelivered()
+    // Volley only asks after a 304, and then ends a refreshed request without delivering the cached response again
+    if (delivered && mFromNetwork) end(ByteRequest.cacheRevalidations, HttpURLConnection.HTTP_NOT_MODIFIED,
+                                       mIntermediateLength)
+    delivered
+  }
 
-  protected def parseNetworkResponse(response: NetworkResponse): Response[Array[Byte]] =
+  protected def deliverResponse(response: Array[Byte]): Unit = {
+    // The cached response of a soft-expired entry is intermediate; only the final response ends the request
+    if (!mFromNetwork && mRefreshNeeded) mIntermediateLength = response.length
+    else if (!mFromNetwork) end(ByteRequest.cacheHits, mStatus, response.length)
+    else if (mNotModified) end(ByteRequest.cacheRevalidations, mStatus, response.length)
+    else end(ByteRequest.cacheMisses, mStatus, response.length)
+    mListener.onResponse(response)
+  }
+
+  private def end(outcome: AtomicLong, status: Int, decodedBytes: Int): Unit = {
+    if (mEnded.compareAndSet(false, true)) {
+      outcome.incrementAndGet()
+      mMetrics.addDecodedBytes(decodedBytes)
+      mMetrics.succeed(status)
+    }
+  }
+
+  override def deliverError(error: VolleyError): Unit = {
+    mMetrics.fail(if (error.networkResponse != null) error.networkResponse.statusCode else -1, error)
+    super.deliverError(error)
+  }
+
+  protected def parseNetworkResponse(response: NetworkResponse): Response[Array[Byte]] = {
+    if (mFromNetwork) {
+      mStatus = response.statusCode
+      mNotModified = response.notModified
+    }
     Response.success(response.data, HttpHeaderParser.parseCacheHeaders(response))
+  }
+
+}
 
+object ByteRequest {
+  /** Responses served from the disk cache without a request */
+  val cacheHits = new AtomicLong()
+  /** Responses served from the disk cache after the server answered 304 Not Modified */
+  val cacheRevalidations = new AtomicLong()
+  /** Responses downloaded in full */
+  val cacheMisses = new AtomicLong()
 }
@@ -1,9 +1,13 @@
 package com.elliottsj.ftw.preferences
 
+import java.util.concurrent.CopyOnWriteArrayList
+
 import android.content.Context
-import android.database.sqlite.SQLiteDatabase
+import com.elliottsj.ftw.util.AsyncTaskContext
 import com.elliottsj.protobus.Agency
 
+import scala.collection.JavaConverters._
+import scala.concurrent.Future
 import scala.slick.ast.{TableNode, TableExpansion}
 import scala.slick.driver.SQLiteDriver.simple._
 import scala.slick.jdbc.meta.MTable
@@ -13,39 +17,94 @@ import scala.slick.jdbc.meta.MTable
  * - saved transit agencies
  * - saved stops
  * - saved stop routes
+ *
+ * A single instance is shared by the whole process through [[Preferences.apply]]. It keeps one SQLDroid connection
+ * open, compiles its queries once and keeps the saved agencies in memory, so reading them after the first load
+ * does not touch the database.
  */
-class Preferences(context: Context) {
+class Preferences private (context: Context) extends AsyncTaskContext {
   final val DATABASE_NAME = "preferences.db"
   final val DATABASE_VERSION = 1
 
-  // Creates the database if it doesn't exist, then gets a SQLDroid JDBC connection
-  lazy val db = {
+  // Creates the database if it doesn't exist, then opens the SQLDroid JDBC connection used for every query.
+  // SQLDroid connections are not thread-safe, so the session is only used while holding its lock.
+  private lazy val session: Session = {
     val sqliteDb = context.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE, null)
 
     // TODO: database migrations
     sqliteDb.setVersion(DATABASE_VERSION)
 
-    Database.forURL("jdbc:sqlite:" + sqliteDb.getPath, driver = "org.sqldroid.SQLDroidDriver")
+    Database.forURL("jdbc:sqlite:" + sqliteDb.getPath, driver = "org.sqldroid.SQLDroidDriver").createSession()
   }
   lazy val agencies = createIfNotExists(TableQuery[Agencies])
 
+  private lazy val compiledAgencies = Compiled(agencies)
+  private lazy val agencyInserter = agencies.insertInvoker
+
+  // Saved agencies, or None until they are first loaded
+  @volatile private var mAgencies: Option[Seq[Agency]] = None
+  private val mListeners = new CopyOnWriteArrayList[Seq[Agency] => Unit]()
+
+  private def withSession[T](f: Session => T): T = session.synchronized(f(session))
+
   /**
    * Saves a transit agency
    *
    * @param agency a transit agency
-   * @return
+   * @return the number of agencies inserted
    */
-  def saveAgency(agency: Agency) = db.withSession { implicit session =>
-    agencies += agency
+  def saveAgency(agency: Agency): Int = {
+    val result = withSession { implicit session =>
+      agencyInserter += agency
+    }
+    // Reload rather than append so that the snapshot matches the table's order
+    invalidateAgencies()
+    result
   }
 
   /**
-   * Gets the list of saved transit agencies
+   * Gets the list of saved transit agencies, loading them from the database if they are not loaded yet
    *
    * @return
    */
-  def getAgencies: Seq[Agency] = db.withSession { implicit session =>
-    agencies.list
+  def getAgencies: Seq[Agency] = mAgencies getOrElse loadAgenciesNow()
+
+  /**
+   * Gets the saved transit agencies if they are loaded, without touching the database
+   *
+   * @return the saved agencies, or None if they must be loaded with [[loadAgencies]]
+   */
+  def getCachedAgencies: Option[Seq[Agency]] = mAgencies
+
+  /**
+   * Loads the saved transit agencies in the background
+   *
+   * @return the saved agencies
+   */
+  def loadAgencies: Future[Seq[Agency]] = mAgencies match {
+    case Some(agencies) => Future.successful(agencies)
+    case None => Future(getAgencies)
+  }
+
+  /**
+   * Registers a listener called with the saved agencies, on a background thread, whenever they change
+   */
+  def addAgenciesListener(listener: Seq[Agency] => Unit): Unit = mListeners.add(listener)
+
+  def removeAgenciesListener(listener: Seq[Agency] => Unit): Unit = mListeners.remove(listener)
+
+  private def loadAgenciesNow(): Seq[Agency] = withSession { implicit session =>
+    val agencies = compiledAgencies.run
+    mAgencies = Some(agencies)
+    agencies
+  }
+
+  private def invalidateAgencies(): Unit = {
+    mAgencies = None
+    if (!mListeners.isEmpty)
+      Future(getAgencies) onSuccess { case agencies =>
+        mListeners.asScala foreach (_(agencies))
+      }
   }
 
   /**
@@ -56,7 +115,7 @@ class Preferences(context: Context) {
    * @tparam T the type of tuple contained in the table
    * @return
    */
-  private def createIfNotExists[T <: Table[_]](table: TableQuery[T]) = db.withSession { implicit session =>
+  private def createIfNotExists[T <: Table[_]](table: TableQuery[T]) = withSession { implicit session =>
     // Ugly hack to get table name
     val tableName = table.toNode.asInstanceOf[TableExpansion].table.asInstanceOf[TableNode].tableName
 
@@ -67,5 +126,11 @@ class Preferences(context: Context) {
 }
 
 object Preferences {
-  def apply(context: Context) = new Preferences(context)
+  private var sInstance: Preferences = _
+
+  def apply(context: Context): Preferences = synchronized {
+    if (sInstance == null)
+      sInstance = new Preferences(context.getApplicationContext)
+    sInstance
+  }
 }
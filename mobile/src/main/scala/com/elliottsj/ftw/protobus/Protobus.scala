@@ -1,28 +1,46 @@
 package com.elliottsj.ftw.protobus
 
+import java.io.File
+
 import android.content.Context
+import android.util.LruCache
 import com.android.volley.Response.{ErrorListener, Listener}
 import com.android.volley.toolbox.Volley
 import com.android.volley.{Request, RequestQueue, VolleyError}
 import com.elliottsj.ftw.R
 import com.elliottsj.ftw.network.ByteRequest
 import com.elliottsj.ftw.util.AsyncTaskContext
-import com.elliottsj.protobus.{Stop, Agency, FeedMessage}
+import com.elliottsj.protobus.{FeedEntity, Stop, Agency, FeedMessage}
+import org.scaloid.common.{Logger, TagUtil}
 
+import scala.collection.concurrent.TrieMap
 import scala.concurrent.{Future, Promise}
-import scala.util.Try
+import scala.util.{Failure, Try}
 
 /**
- * A lightweight wrapper for calling the Protobus HTTP API
+ * A lightweight wrapper for calling the Protobus HTTP API. A single instance with a single request queue is
+ * shared by the whole process; get it with [[Protobus.apply]].
+ *
+ * Agencies and stops are served from snapshots stored by [[SnapshotStore]]; the network is only waited on when no
+ * snapshot is stored, and stale snapshots are refreshed in the background. The entities of recently used snapshots
+ * are kept decoded in memory, and concurrent fetches of the same feed share a single request.
  *
- * @param context a context from which to construct a request queue
+ * @param context the application context
  */
-class Protobus(context: Context) extends AsyncTaskContext {
+class Protobus private (context: Context) extends AsyncTaskContext with TagUtil with Logger {
   final val API_HOST = context.getString(R.string.api_host)
 
   // Instantiate the RequestQueue
   val queue: RequestQueue = Volley.newRequestQueue(context)
 
+  private val snapshots = new SnapshotStore(new File(context.getCacheDir, "protobus"))
+
+  // Decoded entities of recently used snapshots, keyed by API path
+  private val decoded = new LruCache[String, Protobus.DecodedFeed](Protobus.MAX_DECODED_FEEDS)
+
+  // Snapshot fetches in progress, keyed by API path
+  private val inFlight = TrieMap[String, Future[Snapshot]]()
+
   private def get(path: String): Future[FeedMessage] = {
     val p = Promise[FeedMessage]()
 
@@ -31,20 +49,124 @@ class Protobus(context: Context) extends AsyncTaskContext {
       override def onResponse(response: Array[Byte]): Unit = p complete Try(FeedMessage.parseFrom(response))
     }, new ErrorListener {
       override def onErrorResponse(err: VolleyError): Unit = p failure err
-    }))
+    }, "protobus" + path))
 
     p.future
   }
 
+  /**
+   * Get the stored snapshot of a feed, or fetch it if none is stored
+   *
+   * @param path API path of the feed
+   * @param name snapshot name
+   * @param key gives the key by which an entity of the feed can be looked up
+   */
+  private def getSnapshot(path: String, name: String, key: FeedEntity => String): Future[Snapshot] =
+    snapshots.get(name) match {
+      case Some(snapshot) =>
+        if (snapshot.isStale(Protobus.SNAPSHOT_TTL_MILLIS))
+          fetchSnapshot(path, name, key) onComplete {
+            // The fetch is no longer in flight and the snapshot is still stale, or was dropped if it could not be
+            // stored, so the next read fetches the feed again
+            case Failure(err) => error(s"Failed to refresh Protobus snapshot $name", err)
+            case _ =>
+          }
+        Future.successful(snapshot)
+      case None =>
+        fetchSnapshot(path, name, key)
+    }
+
+  /**
+   * Fetch a feed and store it as a snapshot, or join the fetch of the same feed already in progress
+   */
+  private def fetchSnapshot(path: String, name: String, key: FeedEntity => String): Future[Snapshot] = {
+    val p = Promise[Snapshot]()
+    inFlight.putIfAbsent(path, p.future) match {
+      case Some(running) => running
+      case None =>
+        p completeWith (for(message <- get(path)) yield snapshots.put(name, message.entities, key))
+        p.future onComplete { _ => inFlight.remove(path, p.future) }
+        p.future
+    }
+  }
+
+  /**
+   * Decode every entity of a snapshot, or reuse the entities decoded from it before
+   */
+  private def entities(path: String, snapshot: Snapshot): IndexedSeq[FeedEntity] = {
+    val cached = decoded.get(path)
+    // Entities decoded from a snapshot which has since been refreshed are discarded
+    if (cached != null && (cached.snapshot eq snapshot)) cached.entities
+    else {
+      val entities = snapshot.entities
+      decoded.put(path, Protobus.DecodedFeed(snapshot, entities))
+      entities
+    }
+  }
+
+  /**
+   * Find a single entity of a snapshot, decoding only that entity unless the snapshot is already decoded
+   */
+  private def find(path: String, snapshot: Snapshot, key: String): Option[FeedEntity] = {
+    val cached = decoded.get(path)
+    if (cached != null && (cached.snapshot eq snapshot)) snapshot.indexOf(key) map cached.entities
+    else snapshot.find(key)
+  }
+
+  private def agencyKey(entity: FeedEntity) = entity.getAgency.getNextbusFields.agencyTag
+
+  private def stopKey(entity: FeedEntity) = entity.getStop.getNextbusFields.stopTag
+
+  private final val AGENCIES_PATH = "/agencies"
+
+  private def stopsPath(agencyTag: String) = s"/agencies/$agencyTag"
+
+  private def agenciesSnapshot: Future[Snapshot] = getSnapshot(AGENCIES_PATH, "agencies", agencyKey)
+
+  private def stopsSnapshot(agencyTag: String): Future[Snapshot] =
+    getSnapshot(stopsPath(agencyTag), s"agencies-$agencyTag", stopKey)
+
   def getAgencies: Future[Array[Agency]] =
-    for(message <- get("/agencies")) yield
-      message.entities.map(_.getAgency).toArray
+    for(snapshot <- agenciesSnapshot) yield
+      entities(AGENCIES_PATH, snapshot).map(_.getAgency).toArray
+
+  /**
+   * Get a single agency without decoding the others
+   */
+  def getAgency(agencyTag: String): Future[Option[Agency]] =
+    for(snapshot <- agenciesSnapshot) yield
+      find(AGENCIES_PATH, snapshot, agencyTag).map(_.getAgency)
+
+  def getStops(agency: Agency): Future[Array[Stop]] = {
+    val agencyTag = agency.getNextbusFields.agencyTag
+    for(snapshot <- stopsSnapshot(agencyTag)) yield
+      entities(stopsPath(agencyTag), snapshot).map(_.getStop).toArray
+  }
 
-  def getStops(agency: Agency): Future[Array[Stop]] =
-    for(message <- get(s"/agencies/${agency.getNextbusFields.agencyTag}")) yield
-      message.entities.map(_.getStop).toArray
+  /**
+   * Get a single stop of an agency without decoding the others
+   */
+  def getStop(agency: Agency, stopTag: String): Future[Option[Stop]] = {
+    val agencyTag = agency.getNextbusFields.agencyTag
+    for(snapshot <- stopsSnapshot(agencyTag)) yield
+      find(stopsPath(agencyTag), snapshot, stopTag).map(_.getStop)
+  }
 }
 
 object Protobus {
-  def apply(context: Context) = new Protobus(context)
+  // Agencies and their stops rarely change; refresh snapshots about once a day
+  final val SNAPSHOT_TTL_MILLIS = 24 * 60 * 60 * 1000L
+
+  // Number of feeds kept decoded in memory: the agency list and the stops of a few agencies
+  final val MAX_DECODED_FEEDS = 4
+
+  private case class DecodedFeed(snapshot: Snapshot, entities: IndexedSeq[FeedEntity])
+
+  private var sInstance: Protobus = _
+
+  def apply(context: Context): Protobus = synchronized {
+    if (sInstance == null)
+      sInstance = new Protobus(context.getApplicationContext)
+    sInstance
+  }
 }
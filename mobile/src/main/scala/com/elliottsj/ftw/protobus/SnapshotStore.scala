@@ -0,0 +1,200 @@
+package com.elliottsj.ftw.protobus
+
+import java.io.{BufferedOutputStream, DataOutputStream, File, FileOutputStream, IOException, RandomAccessFile}
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+import com.elliottsj.protobus.FeedEntity
+
+import scala.collection.concurrent.TrieMap
+import scala.util.{Failure, Success, Try}
+
+/**
+ * An on-disk store of Protobus feed snapshots, read through memory-mapped files.
+ *
+ * A snapshot file holds a header, an index of (key, offset, length) for every entity and then the serialized
+ * entities. The index is written along with the entities, so opening a snapshot reads only the index and a single
+ * entity can be decoded without parsing the rest of the feed.
+ *
+ * @param dir directory holding the snapshot files
+ */
+class SnapshotStore(dir: File) {
+
+  private val snapshots = TrieMap[String, Snapshot]()
+
+  private def file(name: String) = new File(dir, name + ".snapshot")
+
+  /**
+   * Get a stored snapshot
+   *
+   * @param name snapshot name, e.g. "agencies"
+   * @return the snapshot, or None if none is stored or it cannot be read
+   */
+  def get(name: String): Option[Snapshot] = snapshots.get(name) orElse synchronized {
+    // Opened under the same lock as put, so that a corrupt file is never deleted just after put replaced it
+    snapshots.get(name) orElse {
+      val f = file(name)
+      if (!f.exists) None
+      else Try(Snapshot.open(f)) match {
+        case Success(snapshot) =>
+          snapshots.put(name, snapshot)
+          Some(snapshot)
+        case Failure(_) =>
+          // Written by an older version or truncated; drop it so that it is fetched again
+          drop(name)
+          None
+      }
+    }
+  }
+
+  /**
+   * Replace a snapshot with the given entities. The new file is written next to the old one and then renamed over
+   * it, so readers never see a partial snapshot. If writing fails the old snapshot is kept; if the new file cannot
+   * be opened the snapshot is dropped, so that either way the next read fetches the feed again.
+   *
+   * @param name snapshot name
+   * @param entities entities of the fetched feed, in feed order
+   * @param key gives the key by which an entity can be looked up
+   * @return the new snapshot
+   */
+  def put(name: String, entities: Seq[FeedEntity], key: FeedEntity => String): Snapshot = synchronized {
+    dir.mkdirs()
+    val tmp = new File(dir, name + ".tmp")
+    try {
+      Snapshot.write(tmp, entities, key, System.currentTimeMillis())
+      if (!tmp.renameTo(file(name)))
+        throw new IOException(s"Cannot replace snapshot $name")
+    } catch {
+      case e: Exception =>
+        tmp.delete()
+        throw e
+    }
+    Try(Snapshot.open(file(name))) match {
+      case Success(snapshot) =>
+        snapshots.put(name, snapshot)
+        snapshot
+      case Failure(err) =>
+        // The old file was replaced, so the old snapshot held in memory no longer matches the stored one
+        drop(name)
+        throw err
+    }
+  }
+
+  /**
+   * Delete a snapshot's file along with the snapshot held in memory
+   */
+  private def drop(name: String): Unit = {
+    snapshots.remove(name)
+    file(name).delete()
+  }
+
+}
+
+/**
+ * A read-only view of a snapshot file. Entities are decoded from the mapped file on each access.
+ *
+ * @param fetchedAt time in milliseconds at which the snapshot's feed was fetched
+ */
+class Snapshot private (buffer: MappedByteBuffer, val fetchedAt: Long,
+                        keys: Array[String], offsets: Array[Int], lengths: Array[Int]) {
+
+  private lazy val indexByKey: Map[String, Int] = keys.zipWithIndex.toMap
+
+  def size: Int = keys.length
+
+  def key(i: Int): String = keys(i)
+
+  /**
+   * Decode the entity at the given position in the feed
+   */
+  def entity(i: Int): FeedEntity = {
+    val bytes = new Array[Byte](lengths(i))
+    val view = buffer.duplicate()
+    view.position(offsets(i))
+    view.get(bytes)
+    FeedEntity.parseFrom(bytes)
+  }
+
+  /**
+   * @return the position in the feed of the entity with the given key
+   */
+  def indexOf(key: String): Option[Int] = indexByKey.get(key)
+
+  /**
+   * Decode the entity with the given key, without decoding any other entity
+   */
+  def find(key: String): Option[FeedEntity] = indexOf(key) map entity
+
+  /**
+   * Decode every entity, in feed order
+   */
+  def entities: IndexedSeq[FeedEntity] = (0 until size) map entity
+
+  /**
+   * @return true iff the snapshot was fetched longer than ttlMillis ago
+   */
+  def isStale(ttlMillis: Long): Boolean = System.currentTimeMillis() - fetchedAt > ttlMillis
+
+}
+
+object Snapshot {
+
+  private final val MAGIC = 0x50425353 // "PBSS"
+  private final val VERSION = 1
+
+  private[protobus] def write(file: File, entities: Seq[FeedEntity], key: FeedEntity => String, fetchedAt: Long): Unit = {
+    val keyBytes = entities.map(key(_).getBytes("UTF-8")).toArray
+    val entityBytes = entities.map(_.toByteArray).toArray
+
+    // Header, then (key length, key, offset, length) per entity
+    val indexSize = 4 + 4 + 8 + 4 + keyBytes.map(2 + _.length + 4 + 4).sum
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))
+    try {
+      out.writeInt(MAGIC)
+      out.writeInt(VERSION)
+      out.writeLong(fetchedAt)
+      out.writeInt(entityBytes.length)
+      var offset = indexSize
+      for (i <- entityBytes.indices) {
+        out.writeShort(keyBytes(i).length)
+        out.write(keyBytes(i))
+        out.writeInt(offset)
+        out.writeInt(entityBytes(i).length)
+        offset += entityBytes(i).length
+      }
+      entityBytes foreach out.write
+    } finally {
+      out.close()
+    }
+  }
+
+  private[protobus] def open(file: File): Snapshot = {
+    val raf = new RandomAccessFile(file, "r")
+    val buffer = try {
+      raf.getChannel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length)
+    } finally {
+      // The mapping stays valid after its channel is closed
+      raf.close()
+    }
+
+    val index = buffer.duplicate()
+    if (index.getInt != MAGIC || index.getInt != VERSION)
+      throw new IOException(s"Not a snapshot: $file")
+    val fetchedAt = index.getLong
+    val count = index.getInt
+    val keys = new Array[String](count)
+    val offsets = new Array[Int](count)
+    val lengths = new Array[Int](count)
+    for (i <- 0 until count) {
+      val bytes = new Array[Byte](index.getShort & 0xffff)
+      index.get(bytes)
+      keys(i) = new String(bytes, "UTF-8")
+      offsets(i) = index.getInt
+      lengths(i) = index.getInt
+      if (offsets(i) + lengths(i) > buffer.capacity)
+        throw new IOException(s"Truncated snapshot: $file")
+    }
+    new Snapshot(buffer, fetchedAt, keys, offsets, lengths)
+  }
+
+}